@@ -0,0 +1,99 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+/**
+ * Adjusts the number of rows requested per page towards a target latency
+ * and/or a response size budget, based on the cost per document measured
+ * for the pages fetched so far.
+ * <p>
+ * Since the fixed overhead of a request is attributed to the documents of
+ * the page, the cost per document is overestimated for small pages, which
+ * makes the page size grow until the measured latency meets the target.
+ * To avoid overshooting, the page size at most doubles from one page to
+ * the next, while it is reduced immediately when a page turns out too
+ * costly.
+ * </p>
+ * <p>
+ * Pages are fetched one after the other even when prefetching, but possibly
+ * on different threads, so access is synchronized.
+ * </p>
+ */
+class AdaptiveRows {
+    private static final double SMOOTHING = 0.5;
+    private static final double MAX_GROWTH = 2.0;
+
+    private final int minRows;
+    private final int maxRows;
+    private final long targetLatencyMs;
+    private final long maxResponseBytes;
+
+    private int rows;
+    private double msPerDoc = -1;
+    private double bytesPerDoc = -1;
+
+    /**
+     * @param minRows lower bound for the page size
+     * @param maxRows upper bound for the page size
+     * @param targetLatencyMs wanted latency per page in milliseconds, zero for no latency target
+     * @param maxResponseBytes wanted maximum response size in bytes, zero for no size budget
+     * @param initialRows page size of the first page
+     */
+    AdaptiveRows(int minRows, int maxRows, long targetLatencyMs, long maxResponseBytes, int initialRows) {
+        if (minRows < 1 || maxRows < minRows) {
+            throw new IllegalArgumentException("Invalid page size bounds: " + minRows + ".." + maxRows);
+        }
+        this.minRows = minRows;
+        this.maxRows = maxRows;
+        this.targetLatencyMs = targetLatencyMs;
+        this.maxResponseBytes = maxResponseBytes;
+        this.rows = clamp(initialRows);
+    }
+
+    /**
+     * @return number of rows to request for the next page
+     */
+    synchronized int getRows() {
+        return rows;
+    }
+
+    /**
+     * Records the cost of a fetched page and adjusts the page size accordingly
+     * @param docs number of documents in the page
+     * @param elapsedMs client side time spent fetching and decoding the page
+     * @param qTime server side query time reported for the page
+     * @param bytes size of the response
+     */
+    synchronized void update(int docs, long elapsedMs, int qTime, long bytes) {
+        if (docs <= 0) {
+            return;
+        }
+        // the client side measurement should always include QTime,
+        // but the clocks involved have different resolutions
+        msPerDoc = smooth(msPerDoc, (double) Math.max(elapsedMs, qTime) / docs);
+        bytesPerDoc = smooth(bytesPerDoc, (double) bytes / docs);
+
+        double wanted = maxRows;
+        if (targetLatencyMs > 0 && msPerDoc > 0) {
+            wanted = Math.min(wanted, targetLatencyMs / msPerDoc);
+        }
+        if (maxResponseBytes > 0 && bytesPerDoc > 0) {
+            wanted = Math.min(wanted, maxResponseBytes / bytesPerDoc);
+        }
+        rows = clamp((int) Math.min(wanted, rows * MAX_GROWTH));
+    }
+
+    private int clamp(int value) {
+        return Math.max(minRows, Math.min(maxRows, value));
+    }
+
+    private static double smooth(double average, double sample) {
+        if (average < 0) {
+            return sample;
+        }
+        return SMOOTHING * sample + (1 - SMOOTHING) * average;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Indexes large streams of JSON documents by splitting them into batches
+ * sent as separate {@link JsonUpdateRequest}s.
+ * <p>
+ * The input is either a JSON array of documents or documents following
+ * each other as in JSON lines. Documents are delimited by scanning their
+ * bytes and copied to their batch as is, never parsed into objects.
+ * </p>
+ * <p>
+ * When a concurrency greater than one is set, batches are sent on the given
+ * executor with at most that many batches in flight at once. Reading of
+ * the input blocks while the limit is reached, so memory use is bounded
+ * by the batch size times the concurrency however fast the input is. With
+ * leader routing a batch is being filled for every shard as well, raising
+ * the bound to roughly the batch size times the concurrency plus the
+ * number of shards.
+ * </p>
+ * <p>
+ * Each batch is retried according to {@link #withRetries(int, Duration)},
+ * and batches which still fail are reported in the {@link Result} along
+ * with their content, so that only those batches need to be retried
+ * (see {@link #retry(List)}). Committing is left to the caller.
+ * </p>
+ * <p>
+ * For SolrCloud collections routed by hash of id, documents may be grouped
+ * per shard and each batch sent directly to the leader of its shard, saving
+ * the forwarding of documents between nodes (see {@link #withLeaderRouting()}).
+ * </p>
+ */
+public class BulkJsonIndexer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkJsonIndexer.class);
+    private static final ReplicaSelector LEADER_FIRST = ReplicaSelector.leaderFirst();
+
+    private final SolrClient solrClient;
+    private final String collection;
+
+    private int maxDocuments = 1000;
+    private long maxBytes = 10 * 1024 * 1024;
+    private int maxInFlight = 1;
+    private Executor executor = null;
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private byte[] routingField = null;
+
+    public BulkJsonIndexer(SolrClient solrClient, String collection) {
+        this.solrClient = solrClient;
+        this.collection = collection;
+    }
+
+    /**
+     * Sets the bounds of a batch, defaults are 1000 documents and 10 MB
+     * @param maxDocuments maximum number of documents in a batch
+     * @param maxBytes maximum size of a batch in bytes, exceeded only
+     *                 by batches consisting of a single document
+     * @return this BulkJsonIndexer
+     */
+    public BulkJsonIndexer withBatchSize(int maxDocuments, long maxBytes) {
+        if (maxDocuments < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Batch bounds must be positive");
+        }
+        this.maxDocuments = maxDocuments;
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Sends batches concurrently.
+     * <p>
+     * Batches may be indexed in another order than they were read, so when
+     * the input holds several versions of a document with the same id, in
+     * different batches, the last one in the input is not guaranteed to win.
+     * </p>
+     * @param maxInFlight maximum number of batches sent at once
+     * @param executor executor on which batches are sent, it is never shut down by this class
+     * @return this BulkJsonIndexer
+     */
+    public BulkJsonIndexer withConcurrency(int maxInFlight, Executor executor) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Number of batches in flight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Retries failed batches with exponential backoff. Batches rejected by
+     * Solr with a client error (4xx) status are not retried.
+     * @param maxRetries maximum number of retries per batch
+     * @param initialBackoff wait before the first retry
+     * @return this BulkJsonIndexer
+     */
+    public BulkJsonIndexer withRetries(int maxRetries, Duration initialBackoff) {
+        this.retryPolicy = new RetryPolicy(maxRetries, initialBackoff);
+        return this;
+    }
+
+    /**
+     * Same as {@link #withLeaderRouting(String)} using "id" as unique key field
+     * @return this BulkJsonIndexer
+     */
+    public BulkJsonIndexer withLeaderRouting() {
+        return withLeaderRouting("id");
+    }
+
+    /**
+     * Groups documents into batches per shard by hashing their unique key
+     * the way the document router of the collection does, and sends each
+     * batch directly to the leader of its shard. The shard of a document is
+     * looked up in the current collection topology, so routing follows
+     * shard splits and leader changes. Documents without a string or number
+     * unique key, and all documents of collections not routed by hash of id,
+     * are batched and sent as usual.
+     * <p>
+     * Batches of routed documents do not hold documents following each other
+     * in the input, and batches are sent in the order they fill up.
+     * </p>
+     * @param uniqueKeyField name of the unique key field of the collection
+     * @return this BulkJsonIndexer
+     * @throws IllegalStateException if the client is not a {@link CloudSolrClient}
+     */
+    public BulkJsonIndexer withLeaderRouting(String uniqueKeyField) {
+        if (!(solrClient instanceof CloudSolrClient)) {
+            throw new IllegalStateException("Leader routing requires a CloudSolrClient");
+        }
+        this.routingField = uniqueKeyField.getBytes(StandardCharsets.UTF_8);
+        return this;
+    }
+
+    /**
+     * Indexes all documents of the given input, returning when all batches
+     * have been sent
+     * @param inputStream JSON array of documents or JSON lines
+     * @return result reporting the batches which failed
+     * @throws IOException on failure to read the input or if the input is malformed,
+     * in which case batches already read may have been indexed
+     */
+    public Result index(InputStream inputStream) throws IOException {
+        final JsonBatchSplitter splitter = new JsonBatchSplitter(inputStream, maxDocuments, maxBytes,
+                routingField == null ? null : this::route);
+        return send(splitter::next);
+    }
+
+    /**
+     * Sends the batches of earlier failures again
+     * @param failures failed batches
+     * @return result reporting the batches which failed again
+     */
+    public Result retry(List<BatchFailure> failures) {
+        final Iterator<BatchFailure> iterator = failures.iterator();
+        try {
+            return send(() -> iterator.hasNext() ? iterator.next().batch : null);
+        } catch (IOException e) {
+            // only thrown when reading input
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Result send(BatchSource batches) throws IOException {
+        final Result result = new Result();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        try {
+            JsonBatchSplitter.JsonBatch batch;
+            while ((batch = batches.next()) != null) {
+                acquire(inFlight, 1);
+                final JsonBatchSplitter.JsonBatch current = batch;
+                if (executor == null) {
+                    send(current, result, inFlight);
+                } else {
+                    try {
+                        executor.execute(() -> send(current, result, inFlight));
+                    } catch (RejectedExecutionException e) {
+                        inFlight.release();
+                        result.failed(current, e);
+                    }
+                }
+            }
+        } finally {
+            // wait for batches in flight, also when reading input failed
+            acquire(inFlight, maxInFlight);
+            inFlight.release(maxInFlight);
+        }
+        return result;
+    }
+
+    private void send(JsonBatchSplitter.JsonBatch batch, Result result, Semaphore inFlight) {
+        try {
+            retryPolicy.execute(() -> {
+                final JsonUpdateRequest request = new JsonUpdateRequest(new ByteArrayInputStream(batch.getBytes()));
+                final CollectionTopology.Shard shard = getShard(batch.getRoute());
+                if (shard == null) {
+                    return request.process(solrClient, collection);
+                }
+                // documents are forwarded by Solr if the shard has split meanwhile
+                return shard.request((CloudSolrClient) solrClient, request, LEADER_FIRST);
+            });
+            result.succeeded(batch);
+        } catch (IOException | SolrServerException | RuntimeException e) {
+            LOGGER.warn("Batch {} of {} documents from document {} failed: {}",
+                    batch.getNumber(), batch.getDocuments(), batch.getFirstDocument(), e.toString());
+            result.failed(batch, e);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /* shard name of document, or null when not routed */
+    private String route(byte[] document, int length) {
+        final String id = JsonBatchSplitter.getFieldValue(document, length, routingField);
+        if (id == null) {
+            return null;
+        }
+        final CollectionTopology.Shard shard =
+                CollectionTopology.get((CloudSolrClient) solrClient, collection).getTargetShard(id);
+        return shard == null ? null : shard.getName();
+    }
+
+    /* shard looked up anew for every attempt, so that retries reach a new leader */
+    private CollectionTopology.Shard getShard(String route) {
+        if (route == null) {
+            return null;
+        }
+        return CollectionTopology.get((CloudSolrClient) solrClient, collection).getShard(route);
+    }
+
+    private static void acquire(Semaphore semaphore, int permits) throws InterruptedIOException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for batches in flight");
+        }
+    }
+
+    @FunctionalInterface
+    private interface BatchSource {
+        JsonBatchSplitter.JsonBatch next() throws IOException;
+    }
+
+    /**
+     * Outcome of indexing a stream of documents
+     */
+    public static class Result {
+        private final List<BatchFailure> failures = new ArrayList<>();
+        private long batches = 0;
+        private long documents = 0;
+
+        /**
+         * @return number of batches sent, including failed batches
+         */
+        public synchronized long getBatches() {
+            return batches;
+        }
+
+        /**
+         * @return number of documents indexed successfully
+         */
+        public synchronized long getDocuments() {
+            return documents;
+        }
+
+        /**
+         * @return failed batches in input order
+         */
+        public synchronized List<BatchFailure> getFailures() {
+            final List<BatchFailure> sorted = new ArrayList<>(failures);
+            sorted.sort(Comparator.comparingLong(BatchFailure::getFirstDocument));
+            return Collections.unmodifiableList(sorted);
+        }
+
+        /**
+         * @return true if no batch failed
+         */
+        public synchronized boolean isSuccessful() {
+            return failures.isEmpty();
+        }
+
+        private synchronized void succeeded(JsonBatchSplitter.JsonBatch batch) {
+            batches++;
+            documents += batch.getDocuments();
+        }
+
+        private synchronized void failed(JsonBatchSplitter.JsonBatch batch, Exception cause) {
+            batches++;
+            failures.add(new BatchFailure(batch, cause));
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Result{" +
+                    "batches=" + batches +
+                    ", documents=" + documents +
+                    ", failures=" + failures.size() +
+                    '}';
+        }
+    }
+
+    /**
+     * Batch which could not be indexed
+     */
+    public static class BatchFailure {
+        private final JsonBatchSplitter.JsonBatch batch;
+        private final Exception cause;
+
+        private BatchFailure(JsonBatchSplitter.JsonBatch batch, Exception cause) {
+            this.batch = batch;
+            this.cause = cause;
+        }
+
+        /**
+         * @return zero based position in input of the first document of the batch
+         */
+        public long getFirstDocument() {
+            return batch.getFirstDocument();
+        }
+
+        /**
+         * @return number of documents in the batch
+         */
+        public int getDocumentCount() {
+            return batch.getDocuments();
+        }
+
+        /**
+         * @return documents of the batch as a JSON array
+         */
+        public InputStream getDocuments() {
+            return new ByteArrayInputStream(batch.getBytes());
+        }
+
+        public Exception getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            return "BatchFailure{" +
+                    "firstDocument=" + getFirstDocument() +
+                    ", documentCount=" + getDocumentCount() +
+                    ", cause=" + cause +
+                    '}';
+        }
+    }
+}
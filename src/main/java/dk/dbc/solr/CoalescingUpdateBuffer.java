@@ -0,0 +1,467 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers updates keyed on document id, keeping only the newest update
+ * per id, and sends the buffered updates as a single batch when the
+ * number of buffered ids reaches a limit, when the oldest buffered update
+ * reaches a maximum age, or on {@link #flush()}.
+ * <p>
+ * A full document or a delete replaces any buffered update for its id.
+ * Partial (atomic) updates, which hold field values such as
+ * {"set": value} or {"inc": 1}, cannot replace earlier updates without
+ * losing them, so by default the buffer is flushed before a partial update
+ * for an already buffered id is buffered. With
+ * {@link #withPartialUpdateMerging()} the partial update is instead merged
+ * into the buffered update where the operations allow it, for instance
+ * two "inc" operations become one, and a "set" followed by an "add" becomes
+ * a "set" of all values. Updates carrying a _version_ for optimistic
+ * concurrency, or child documents, are never merged.
+ * </p>
+ * <p>
+ * Updates are sent while holding the lock of the buffer, so adding blocks
+ * while a batch is being sent. If sending fails the updates are kept in
+ * the buffer. A failure of {@link #flush()} is thrown to the caller, while
+ * a flush failing after an update has been buffered is logged and tried
+ * again by the next update, so an update which {@link #add(SolrInputDocument)}
+ * or {@link #deleteById(String)} fails on was never buffered and can safely
+ * be retried. Failed scheduled flushes are logged and retried after the
+ * maximum age. Committing is left to the caller.
+ * </p>
+ */
+public class CoalescingUpdateBuffer implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CoalescingUpdateBuffer.class);
+    private static final String VERSION_FIELD = "_version_";
+    // merge result removing the field from a full document
+    private static final Object REMOVED = new Object();
+
+    private final SolrClient solrClient;
+    private final String collection;
+    private final LinkedHashMap<Object, Update> updates = new LinkedHashMap<>();
+
+    private String uniqueKeyField = "id";
+    private int maxDocuments = 1000;
+    private long maxDelayNanos = -1;
+    private ScheduledExecutorService scheduler;
+    private boolean mergePartialUpdates = false;
+
+    private long oldestUpdateAt;
+    private long generation = 0;
+    private ScheduledFuture<?> scheduledFlush;
+    private long updatesReceived = 0;
+    private long updatesSent = 0;
+    private long batchesSent = 0;
+
+    public CoalescingUpdateBuffer(SolrClient solrClient, String collection) {
+        this.solrClient = solrClient;
+        this.collection = collection;
+    }
+
+    /**
+     * @param uniqueKeyField name of the unique key field of the collection, default is "id"
+     * @return this CoalescingUpdateBuffer
+     */
+    public synchronized CoalescingUpdateBuffer withUniqueKeyField(String uniqueKeyField) {
+        this.uniqueKeyField = uniqueKeyField;
+        return this;
+    }
+
+    /**
+     * @param maxDocuments number of buffered ids causing a flush, default is 1000
+     * @return this CoalescingUpdateBuffer
+     */
+    public synchronized CoalescingUpdateBuffer withMaxDocuments(int maxDocuments) {
+        if (maxDocuments < 1) {
+            throw new IllegalArgumentException("Maximum number of documents must be positive");
+        }
+        this.maxDocuments = maxDocuments;
+        return this;
+    }
+
+    /**
+     * Flushes the buffer when its oldest update reaches the given age
+     * @param scheduler scheduler on which flushes run, it is never shut down by this class
+     * @param maxDelay maximum time an update is buffered
+     * @return this CoalescingUpdateBuffer
+     */
+    public synchronized CoalescingUpdateBuffer withScheduledFlush(ScheduledExecutorService scheduler,
+                                                                  Duration maxDelay) {
+        this.scheduler = scheduler;
+        this.maxDelayNanos = maxDelay.toNanos();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        if (!updates.isEmpty()) {
+            scheduleFlush();
+        }
+        return this;
+    }
+
+    /**
+     * Merges partial updates for an id into the buffered update for the id
+     * instead of flushing the buffer
+     * @return this CoalescingUpdateBuffer
+     */
+    public synchronized CoalescingUpdateBuffer withPartialUpdateMerging() {
+        this.mergePartialUpdates = true;
+        return this;
+    }
+
+    /**
+     * Buffers a full document or a partial update. If an exception is
+     * thrown the document was not buffered.
+     * @param document document
+     * @throws IOException on failure to communicate with Solr when flushing
+     *                     before the document could be buffered
+     * @throws SolrServerException on failure to index the buffered updates when flushing
+     *                             before the document could be buffered
+     */
+    public synchronized void add(SolrInputDocument document) throws IOException, SolrServerException {
+        final Object id = document.getFieldValue(uniqueKeyField);
+        // documents without id are never coalesced
+        buffer(id == null ? new Object() : id.toString(), new Update(null, document));
+    }
+
+    /**
+     * Buffers a delete. If an exception is thrown the delete was not buffered.
+     * @param id id of document
+     * @throws IOException on failure to communicate with Solr when flushing
+     *                     before the delete could be buffered
+     * @throws SolrServerException on failure to index the buffered updates when flushing
+     *                             before the delete could be buffered
+     */
+    public synchronized void deleteById(String id) throws IOException, SolrServerException {
+        buffer(id, new Update(id, null));
+    }
+
+    /**
+     * Sends all buffered updates as one batch
+     * @return number of updates sent
+     * @throws IOException on failure to communicate with Solr
+     * @throws SolrServerException on failure to index the updates
+     */
+    public synchronized int flush() throws IOException, SolrServerException {
+        if (updates.isEmpty()) {
+            return 0;
+        }
+        final UpdateRequest request = new UpdateRequest();
+        for (Update update : updates.values()) {
+            if (update.document == null) {
+                request.deleteById(update.deletedId);
+            } else {
+                request.add(update.document);
+            }
+        }
+        request.process(solrClient, collection);
+        final int sent = updates.size();
+        updates.clear();
+        updatesSent += sent;
+        batchesSent++;
+        generation++;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return sent;
+    }
+
+    /**
+     * @return number of buffered updates, at most one per id
+     */
+    public synchronized int size() {
+        return updates.size();
+    }
+
+    /**
+     * @return number of updates and deletes received
+     */
+    public synchronized long getUpdatesReceived() {
+        return updatesReceived;
+    }
+
+    /**
+     * @return number of updates and deletes sent after coalescing
+     */
+    public synchronized long getUpdatesSent() {
+        return updatesSent;
+    }
+
+    /**
+     * @return number of batches sent
+     */
+    public synchronized long getBatchesSent() {
+        return batchesSent;
+    }
+
+    /**
+     * Flushes the buffer and stops scheduled flushes
+     * @throws IOException on failure to communicate with Solr
+     * @throws SolrServerException on failure to index the buffered updates
+     */
+    @Override
+    public synchronized void close() throws IOException, SolrServerException {
+        flush();
+        scheduler = null;
+    }
+
+    /* Flushes which must succeed before the update can be buffered throw,
+       later ones do not, since the caller would then retry a buffered update */
+    private void buffer(Object key, Update update) throws IOException, SolrServerException {
+        if (updates.size() >= maxDocuments) {
+            // an earlier flush failed, keep the buffer bounded
+            flush();
+        }
+        final Update buffered = updates.get(key);
+        if (buffered != null && update.document != null && isPartial(update.document)) {
+            final SolrInputDocument merged = mergePartialUpdates && buffered.document != null
+                    ? merge(buffered.document, update.document) : null;
+            if (merged != null) {
+                updates.put(key, new Update(null, merged));
+                updatesReceived++;
+                return;
+            }
+            // the buffered update must reach Solr before the partial update
+            flush();
+        }
+        if (updates.isEmpty()) {
+            oldestUpdateAt = System.nanoTime();
+            if (scheduler != null) {
+                scheduleFlush();
+            }
+        }
+        updates.put(key, update);
+        updatesReceived++;
+        if (updates.size() >= maxDocuments
+                || maxDelayNanos >= 0 && System.nanoTime() - oldestUpdateAt >= maxDelayNanos) {
+            try {
+                flush();
+            } catch (IOException | SolrServerException | RuntimeException e) {
+                LOGGER.warn("Unable to flush {} updates to {}, retrying on next update",
+                        updates.size(), collection, e);
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+        final long scheduledGeneration = generation;
+        final long delayNanos = Math.max(0, maxDelayNanos - (System.nanoTime() - oldestUpdateAt));
+        scheduledFlush = scheduler.schedule(() -> scheduledFlush(scheduledGeneration),
+                delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void scheduledFlush(long scheduledGeneration) {
+        // the buffer may have been flushed since the flush was scheduled
+        if (scheduledGeneration != generation || updates.isEmpty()) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException | SolrServerException | RuntimeException e) {
+            LOGGER.warn("Unable to flush {} updates to {}", updates.size(), collection, e);
+            if (scheduler != null) {
+                oldestUpdateAt = System.nanoTime();
+                scheduleFlush();
+            }
+        }
+    }
+
+    /**
+     * Merges a partial update into an earlier update for the same document
+     * @param earlier full document or partial update
+     * @param later partial update
+     * @return merged update, a full document if the earlier update is one,
+     * or null if the updates cannot be merged
+     */
+    static SolrInputDocument merge(SolrInputDocument earlier, SolrInputDocument later) {
+        if (earlier.hasChildDocuments() || later.hasChildDocuments()
+                || earlier.containsKey(VERSION_FIELD) || later.containsKey(VERSION_FIELD)) {
+            return null;
+        }
+        final boolean full = !isPartial(earlier);
+        final SolrInputDocument merged = earlier.deepCopy();
+        for (SolrInputField field : later) {
+            final SolrInputField earlierField = earlier.getField(field.getName());
+            final Object value = mergeValue(earlierField == null ? null : earlierField.getValue(),
+                    field.getValue(), full);
+            if (value == null) {
+                return null;
+            }
+            if (value == REMOVED) {
+                merged.removeField(field.getName());
+            } else {
+                merged.setField(field.getName(), value);
+            }
+        }
+        return merged;
+    }
+
+    /* Result of applying a later value to an earlier value, plain values
+       being new field values in full documents and "set" operations in
+       partial updates. Null if not mergeable. */
+    private static Object mergeValue(Object earlier, Object later, boolean full) {
+        final String laterOperation = operationOf(later);
+        if (laterOperation == null) {
+            return null;
+        }
+        final Object laterValue = valueOf(later);
+        if ("set".equals(laterOperation)) {
+            if (full) {
+                return laterValue == null ? REMOVED : laterValue;
+            }
+            return later;
+        }
+        final String earlierOperation = earlier == null ? "absent" : operationOf(earlier);
+        if (earlierOperation == null) {
+            return null;
+        }
+        final Object earlierValue = earlier == null ? null : valueOf(earlier);
+        // value to set, or to apply with the later operation if the field was absent in a partial update
+        final Object value;
+        switch (laterOperation) {
+            case "inc":
+                if ("absent".equals(earlierOperation)) {
+                    return full ? laterValue : later;
+                }
+                value = add(earlierValue, laterValue);
+                if (value == null) {
+                    return null;
+                }
+                if ("inc".equals(earlierOperation)) {
+                    return operation("inc", value);
+                }
+                break;
+            case "add":
+                if ("absent".equals(earlierOperation)) {
+                    return full ? laterValue : later;
+                }
+                value = concat(earlierValue, laterValue);
+                if ("add".equals(earlierOperation)) {
+                    return operation("add", value);
+                }
+                break;
+            case "remove":
+                if ("absent".equals(earlierOperation)) {
+                    return full ? REMOVED : later;
+                }
+                value = remove(earlierValue, laterValue);
+                break;
+            default:
+                return null;
+        }
+        if (!"set".equals(earlierOperation)) {
+            return null;
+        }
+        if (full) {
+            return value == null ? REMOVED : value;
+        }
+        return operation("set", value);
+    }
+
+    /* single operation of an atomic update value, or "set" for a plain value */
+    private static String operationOf(Object value) {
+        if (!(value instanceof Map)) {
+            return "set";
+        }
+        final Map<?, ?> map = (Map<?, ?>) value;
+        if (map.size() != 1) {
+            return null;
+        }
+        final Object operation = map.keySet().iterator().next();
+        return operation instanceof String ? (String) operation : null;
+    }
+
+    private static Object valueOf(Object value) {
+        if (!(value instanceof Map)) {
+            return value;
+        }
+        return ((Map<?, ?>) value).values().iterator().next();
+    }
+
+    private static Map<String, Object> operation(String operation, Object value) {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put(operation, value);
+        return map;
+    }
+
+    private static Number add(Object a, Object b) {
+        if (!(a instanceof Number) || !(b instanceof Number)) {
+            return null;
+        }
+        if (isIntegral(a) && isIntegral(b)) {
+            return ((Number) a).longValue() + ((Number) b).longValue();
+        }
+        return ((Number) a).doubleValue() + ((Number) b).doubleValue();
+    }
+
+    private static boolean isIntegral(Object number) {
+        return number instanceof Long || number instanceof Integer
+                || number instanceof Short || number instanceof Byte;
+    }
+
+    private static List<Object> concat(Object a, Object b) {
+        final List<Object> values = new ArrayList<>(valuesOf(a));
+        values.addAll(valuesOf(b));
+        return values;
+    }
+
+    /* remaining values, or null if none remain */
+    private static Object remove(Object a, Object b) {
+        final List<Object> values = new ArrayList<>(valuesOf(a));
+        values.removeAll(valuesOf(b));
+        return values.isEmpty() ? null : values;
+    }
+
+    private static Collection<?> valuesOf(Object value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (value instanceof Collection) {
+            return (Collection<?>) value;
+        }
+        return Collections.singletonList(value);
+    }
+
+    private static boolean isPartial(SolrInputDocument document) {
+        for (SolrInputField field : document) {
+            if (field.getValue() instanceof Map) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* buffered full document, partial update or delete */
+    private static class Update {
+        private final String deletedId;
+        private final SolrInputDocument document;
+
+        Update(String deletedId, SolrInputDocument document) {
+            this.deletedId = deletedId;
+            this.document = document;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.LBSolrClient;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.HashBasedRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * Snapshot of the active shards of a SolrCloud collection
+ * along with their active replicas
+ */
+class CollectionTopology {
+    // topologies kept current by collection state watchers, per cluster connection
+    private static final Map<ZkStateReader, Map<String, AtomicReference<CollectionTopology>>> WATCHED =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final String collection;
+    private final DocCollection docCollection;
+    private final List<Shard> shards;
+    private final Map<String, Shard> shardsByName;
+    private final String shardsParam;
+
+    private CollectionTopology(String collection, DocCollection docCollection, List<Shard> shards) {
+        this.collection = collection;
+        this.docCollection = docCollection;
+        this.shards = Collections.unmodifiableList(shards);
+        this.shardsByName = shards.stream()
+                .collect(Collectors.toMap(Shard::getName, shard -> shard));
+        // pipe '|' indicates that solr should choose a
+        // shard replica randomly
+        this.shardsParam = shards.stream()
+                .map(shard -> String.join("|", shard.getReplicaUrls()))
+                .collect(Collectors.joining(","));
+    }
+
+    /**
+     * Reads the current topology of a collection from the cluster state
+     * @param cloudSolrClient client connected to the cluster
+     * @param collection collection name
+     * @return topology, without any shards if the collection is unknown
+     */
+    static CollectionTopology read(CloudSolrClient cloudSolrClient, String collection) {
+        cloudSolrClient.connect();
+        final ClusterState clusterState = cloudSolrClient.getZkStateReader().getClusterState();
+        return of(collection, clusterState.getCollectionOrNull(collection), clusterState.getLiveNodes());
+    }
+
+    /**
+     * Gets the current topology of a collection from a cache shared by all
+     * users of the cluster connection of the given client. On first use the
+     * topology is read from the cluster state and a collection state watcher
+     * is registered, replacing the cached topology whenever the collection
+     * state or the set of live nodes changes. Watchers are discarded when
+     * the client is closed.
+     * @param cloudSolrClient client connected to the cluster
+     * @param collection collection name
+     * @return topology, without any shards if the collection is unknown
+     */
+    static CollectionTopology get(CloudSolrClient cloudSolrClient, String collection) {
+        cloudSolrClient.connect();
+        final ZkStateReader zkStateReader = cloudSolrClient.getZkStateReader();
+        final Map<String, AtomicReference<CollectionTopology>> topologies =
+                WATCHED.computeIfAbsent(zkStateReader, reader -> new ConcurrentHashMap<>());
+        final AtomicReference<CollectionTopology> cached = topologies.get(collection);
+        if (cached != null) {
+            return cached.get();
+        }
+        final AtomicReference<CollectionTopology> topology =
+                new AtomicReference<>(read(cloudSolrClient, collection));
+        final AtomicReference<CollectionTopology> concurrent = topologies.putIfAbsent(collection, topology);
+        if (concurrent != null) {
+            return concurrent.get();
+        }
+        zkStateReader.registerCollectionStateWatcher(collection, (liveNodes, docCollection) -> {
+            topology.set(of(collection, docCollection, liveNodes));
+            // keeps watching
+            return false;
+        });
+        return topology.get();
+    }
+
+    private static CollectionTopology of(String collection, DocCollection docCollection, Set<String> liveNodes) {
+        final List<Shard> shards = new ArrayList<>();
+        if (docCollection != null && liveNodes != null) {
+            for (Slice slice : docCollection.getActiveSlices()) {
+                final List<Replica> replicas = new ArrayList<>();
+                for (Replica replica : slice.getReplicas()) {
+                    if (replica.isActive(liveNodes)) {
+                        replicas.add(replica);
+                    }
+                }
+                if (!replicas.isEmpty()) {
+                    shards.add(new Shard(slice.getName(), replicas));
+                }
+            }
+        }
+        return new CollectionTopology(collection, docCollection, shards);
+    }
+
+    String getCollection() {
+        return collection;
+    }
+
+    List<Shard> getShards() {
+        return shards;
+    }
+
+    /**
+     * @param name shard name
+     * @return shard, or null if the shard is not active or has no active replicas
+     */
+    Shard getShard(String name) {
+        return shardsByName.get(name);
+    }
+
+    /**
+     * Determines the shard a document belongs to the way the document
+     * router of the collection does. Only hash based routers, such as the
+     * default compositeId router, route on the id alone.
+     * @param id unique key of document
+     * @return shard, or null if the collection is not routed by hash of id
+     * or the shard is not available
+     */
+    Shard getTargetShard(String id) {
+        if (docCollection == null || !(docCollection.getRouter() instanceof HashBasedRouter)) {
+            return null;
+        }
+        final Slice slice = docCollection.getRouter().getTargetSlice(id, null, null, null, docCollection);
+        return slice == null ? null : shardsByName.get(slice.getName());
+    }
+
+    /**
+     * @return value for the shards parameter of a distributed request
+     * addressing all active shards of the collection
+     */
+    String getShardsParam() {
+        return shardsParam;
+    }
+
+    static class Shard {
+        private final String name;
+        private final List<Replica> replicas;
+        private final List<String> replicaUrls;
+
+        Shard(String name, List<Replica> replicas) {
+            this.name = name;
+            this.replicas = Collections.unmodifiableList(replicas);
+            this.replicaUrls = Collections.unmodifiableList(replicas.stream()
+                    .map(Replica::getCoreUrl)
+                    .collect(Collectors.toList()));
+        }
+
+        String getName() {
+            return name;
+        }
+
+        List<Replica> getReplicas() {
+            return replicas;
+        }
+
+        List<String> getReplicaUrls() {
+            return replicaUrls;
+        }
+
+        /**
+         * Sends a non-distributed query directly to a replica of this shard,
+         * failing over to the remaining replicas if necessary
+         * @param cloudSolrClient client connected to the cluster
+         * @param params query parameters
+         * @return query response
+         * @throws IOException if no replica could be reached
+         * @throws SolrServerException on failure to execute the query
+         */
+        QueryResponse query(CloudSolrClient cloudSolrClient, SolrParams params)
+                throws IOException, SolrServerException {
+            return query(cloudSolrClient, params, null);
+        }
+
+        /**
+         * Sends a non-distributed query directly to a replica of this shard,
+         * failing over to the remaining replicas in order of preference
+         * @param cloudSolrClient client connected to the cluster
+         * @param params query parameters
+         * @param replicaSelector selector ordering the replicas, or null for cluster state order
+         * @return query response
+         * @throws IOException if no replica could be reached
+         * @throws SolrServerException on failure to execute the query
+         */
+        QueryResponse query(CloudSolrClient cloudSolrClient, SolrParams params, ReplicaSelector replicaSelector)
+                throws IOException, SolrServerException {
+            final ModifiableSolrParams shardParams = new ModifiableSolrParams(params);
+            shardParams.set(CommonParams.DISTRIB, false);
+            return new QueryResponse(
+                    request(cloudSolrClient, new QueryRequest(shardParams), replicaSelector), cloudSolrClient);
+        }
+
+        /**
+         * Sends a request directly to a replica of this shard,
+         * failing over to the remaining replicas if necessary
+         * @param cloudSolrClient client connected to the cluster
+         * @param request request, which is not modified to be non-distributed
+         * @return raw response
+         * @throws IOException if no replica could be reached
+         * @throws SolrServerException on failure to execute the request
+         */
+        NamedList<Object> request(CloudSolrClient cloudSolrClient, SolrRequest<?> request)
+                throws IOException, SolrServerException {
+            return request(cloudSolrClient, request, null);
+        }
+
+        /**
+         * Sends a request directly to a replica of this shard, failing over
+         * to the remaining replicas in order of preference. The time taken is
+         * reported to the selector along with the replica which answered.
+         * @param cloudSolrClient client connected to the cluster
+         * @param request request, which is not modified to be non-distributed
+         * @param replicaSelector selector ordering the replicas, or null for cluster state order
+         * @return raw response
+         * @throws IOException if no replica could be reached
+         * @throws SolrServerException on failure to execute the request
+         */
+        NamedList<Object> request(CloudSolrClient cloudSolrClient, SolrRequest<?> request,
+                                  ReplicaSelector replicaSelector)
+                throws IOException, SolrServerException {
+            if (replicaSelector == null) {
+                return cloudSolrClient.getLbClient()
+                        .request(new LBSolrClient.Req(request, replicaUrls))
+                        .getResponse();
+            }
+            final List<String> urls = replicaSelector.order(name, replicas).stream()
+                    .map(Replica::getCoreUrl)
+                    .collect(Collectors.toList());
+            final long start = System.nanoTime();
+            final LBSolrClient.Rsp rsp = cloudSolrClient.getLbClient()
+                    .request(new LBSolrClient.Req(request, urls));
+            replicaSelector.onResponse(getCoreUrl(rsp.getServer()),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return rsp.getResponse();
+        }
+
+        /* The load balancer reports the server which answered without the
+           trailing slash of the core URL, so it is mapped back to the core
+           URL of the replica, which is what selectors know replicas by */
+        private String getCoreUrl(String server) {
+            final String normalized = stripTrailingSlash(server);
+            for (Replica replica : replicas) {
+                if (stripTrailingSlash(replica.getCoreUrl()).equals(normalized)) {
+                    return replica.getCoreUrl();
+                }
+            }
+            return server;
+        }
+
+        private static String stripTrailingSlash(String url) {
+            return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        }
+    }
+}
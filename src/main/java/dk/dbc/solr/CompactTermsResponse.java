@@ -0,0 +1,319 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.response.TermsResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Alternative to {@link TermsResponse} for large scans, keeping the terms
+ * of each field in a single UTF-8 buffer addressed through an array of
+ * offsets, with frequencies in primitive arrays.
+ * <p>
+ * Terms are accessed by index or through a flyweight {@link Entry} which
+ * is repositioned rather than created anew for each term, so no objects
+ * are created per term unless asked for explicitly, for instance by
+ * {@link Entry#getTerm()}.
+ * </p>
+ * @see SolrScan#executeCompact()
+ */
+public class CompactTermsResponse {
+    private final Map<String, Terms> fields;
+
+    CompactTermsResponse(Map<String, Terms> fields) {
+        this.fields = Collections.unmodifiableMap(new LinkedHashMap<>(fields));
+    }
+
+    /**
+     * @return names of the fields scanned, in response order
+     */
+    public Set<String> getFields() {
+        return fields.keySet();
+    }
+
+    /**
+     * @param field name of field
+     * @return terms of field, or null if the field was not scanned
+     */
+    public Terms getTerms(String field) {
+        return fields.get(field);
+    }
+
+    /**
+     * Terms of a single field in response order
+     */
+    public static class Terms implements Iterable<Entry> {
+        private final byte[] utf8;
+        private final int[] offsets;
+        private final long[] frequencies;
+        private final long[] totalTermFreqs;
+        private final int size;
+
+        private Terms(byte[] utf8, int[] offsets, long[] frequencies, long[] totalTermFreqs, int size) {
+            this.utf8 = utf8;
+            this.offsets = offsets;
+            this.frequencies = frequencies;
+            this.totalTermFreqs = totalTermFreqs;
+            this.size = size;
+        }
+
+        /**
+         * @return number of terms
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param index term index
+         * @return term at index as a new string
+         */
+        public String getTerm(int index) {
+            checkIndex(index);
+            return new String(utf8, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @param index term index
+         * @return document frequency of term at index
+         */
+        public long getFrequency(int index) {
+            checkIndex(index);
+            return frequencies[index];
+        }
+
+        /**
+         * @param index term index
+         * @return total term frequency of term at index,
+         * or -1 if total term frequencies were not requested
+         */
+        public long getTotalTermFreq(int index) {
+            checkIndex(index);
+            return totalTermFreqs == null ? -1 : totalTermFreqs[index];
+        }
+
+        /**
+         * @return flyweight entry positioned before the first term
+         */
+        public Entry entry() {
+            return new Entry(this);
+        }
+
+        /**
+         * @return iterator returning the same flyweight entry
+         * repositioned at each term
+         */
+        @Override
+        public Iterator<Entry> iterator() {
+            final Entry entry = entry();
+            return new Iterator<Entry>() {
+                @Override
+                public boolean hasNext() {
+                    return entry.index + 1 < size;
+                }
+
+                @Override
+                public Entry next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    entry.index++;
+                    return entry;
+                }
+            };
+        }
+
+        /**
+         * @return terms converted to SolrJ terms
+         */
+        public List<TermsResponse.Term> toTermList() {
+            final List<TermsResponse.Term> terms = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                terms.add(new TermsResponse.Term(getTerm(i), frequencies[i], getTotalTermFreq(i)));
+            }
+            return terms;
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+            }
+        }
+    }
+
+    /**
+     * Flyweight view of a single term
+     */
+    public static class Entry {
+        private final Terms terms;
+        private int index = -1;
+
+        private Entry(Terms terms) {
+            this.terms = terms;
+        }
+
+        /**
+         * @param index term index
+         * @return this entry positioned at the given index
+         */
+        public Entry moveTo(int index) {
+            terms.checkIndex(index);
+            this.index = index;
+            return this;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return term as a new string
+         */
+        public String getTerm() {
+            return terms.getTerm(index);
+        }
+
+        /**
+         * @return number of UTF-8 bytes of term
+         */
+        public int getUtf8Length() {
+            terms.checkIndex(index);
+            return terms.offsets[index + 1] - terms.offsets[index];
+        }
+
+        /**
+         * Copies the UTF-8 bytes of the term
+         * @param destination destination array
+         * @param offset offset in destination array
+         * @return number of bytes copied
+         */
+        public int copyUtf8(byte[] destination, int offset) {
+            final int length = getUtf8Length();
+            System.arraycopy(terms.utf8, terms.offsets[index], destination, offset, length);
+            return length;
+        }
+
+        /**
+         * @param prefix prefix
+         * @return true if the term starts with the given prefix, compared as UTF-8
+         */
+        public boolean startsWith(byte[] prefix) {
+            if (getUtf8Length() < prefix.length) {
+                return false;
+            }
+            final int offset = terms.offsets[index];
+            for (int i = 0; i < prefix.length; i++) {
+                if (terms.utf8[offset + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public long getFrequency() {
+            return terms.getFrequency(index);
+        }
+
+        public long getTotalTermFreq() {
+            return terms.getTotalTermFreq(index);
+        }
+
+        @Override
+        public String toString() {
+            return index < 0 ? "Entry{}" : "Entry{term='" + getTerm() + "', frequency=" + getFrequency() + "}";
+        }
+    }
+
+    /**
+     * Accumulates the terms of a field without creating objects per term
+     */
+    static class TermsBuilder {
+        private byte[] utf8 = new byte[1024];
+        private int[] offsets = new int[65];
+        private long[] frequencies = new long[64];
+        private long[] totalTermFreqs;
+        private int size = 0;
+
+        /**
+         * Appends term, encoding its characters as UTF-8
+         * @param chars characters
+         * @param start start offset of term in characters
+         * @param end end offset of term in characters
+         * @return this builder
+         */
+        TermsBuilder addTerm(char[] chars, int start, int end) {
+            if (size == frequencies.length) {
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2 + 1);
+                if (totalTermFreqs != null) {
+                    totalTermFreqs = Arrays.copyOf(totalTermFreqs, size * 2);
+                }
+            }
+            int position = offsets[size];
+            // at most three bytes per char, surrogate pairs take four bytes per two chars
+            final int required = position + 3 * (end - start);
+            if (required > utf8.length) {
+                utf8 = Arrays.copyOf(utf8, Math.max(required, utf8.length * 2));
+            }
+            for (int i = start; i < end; i++) {
+                final char c = chars[i];
+                if (c < 0x80) {
+                    utf8[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    utf8[position++] = (byte) (0xC0 | c >> 6);
+                    utf8[position++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+                    final int codePoint = Character.toCodePoint(c, chars[++i]);
+                    utf8[position++] = (byte) (0xF0 | codePoint >> 18);
+                    utf8[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    utf8[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    utf8[position++] = (byte) (0x80 | codePoint & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired surrogate, replaced like String.getBytes() does
+                    utf8[position++] = '?';
+                } else {
+                    utf8[position++] = (byte) (0xE0 | c >> 12);
+                    utf8[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    utf8[position++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            size++;
+            offsets[size] = position;
+            return this;
+        }
+
+        /**
+         * Sets frequencies of the most recently added term
+         * @param frequency document frequency
+         * @param totalTermFreq total term frequency, or -1 if unknown
+         * @return this builder
+         */
+        TermsBuilder setFrequencies(long frequency, long totalTermFreq) {
+            frequencies[size - 1] = frequency;
+            if (totalTermFreq >= 0) {
+                if (totalTermFreqs == null) {
+                    totalTermFreqs = new long[frequencies.length];
+                }
+                totalTermFreqs[size - 1] = totalTermFreq;
+            }
+            return this;
+        }
+
+        Terms build() {
+            return new Terms(utf8, offsets, frequencies, totalTermFreqs, size);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.noggit.CharArr;
+import org.noggit.JSONParser;
+import org.noggit.ObjectBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parses JSON responses of the terms component, reading the terms section
+ * straight into a {@link CompactTermsResponse} stored under the "terms"
+ * key of the returned response. Terms are expected in flat named list
+ * format (json.nl=flat), but map format is accepted as well. Other sections
+ * are parsed into generic values.
+ */
+class CompactTermsResponseParser extends ResponseParser {
+    static final String TERMS = "terms";
+    private static final String RESPONSE_HEADER = "responseHeader";
+    private static final String ERROR = "error";
+
+    @Override
+    public String getWriterType() {
+        return "json";
+    }
+
+    /* No content type check, the JSON writer
+       content type is configurable in Solr */
+    @Override
+    public String getContentType() {
+        return null;
+    }
+
+    @Override
+    public NamedList<Object> processResponse(InputStream body, String encoding) {
+        try {
+            return processResponse(encoding == null
+                    ? new InputStreamReader(body, StandardCharsets.UTF_8)
+                    : new InputStreamReader(body, encoding));
+        } catch (UnsupportedEncodingException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unsupported encoding: " + encoding, e);
+        }
+    }
+
+    @Override
+    public NamedList<Object> processResponse(Reader reader) {
+        try {
+            final JSONParser parser = new JSONParser(reader);
+            expect(parser, JSONParser.OBJECT_START);
+            final NamedList<Object> response = new NamedList<>();
+            while (parser.nextEvent() == JSONParser.STRING) {
+                final String key = parser.getString();
+                if (TERMS.equals(key)) {
+                    response.add(key, parseTerms(parser));
+                } else {
+                    parser.nextEvent();
+                    final Object value = ObjectBuilder.getVal(parser);
+                    response.add(key, RESPONSE_HEADER.equals(key) || ERROR.equals(key)
+                            ? toNamedList(value) : value);
+                }
+            }
+            if (parser.lastEvent() != JSONParser.OBJECT_END) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                        "Unexpected " + JSONParser.getEventString(parser.lastEvent()) + " in response");
+            }
+            return response;
+        } catch (IOException | JSONParser.ParseException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unable to parse terms response", e);
+        }
+    }
+
+    private static CompactTermsResponse parseTerms(JSONParser parser) throws IOException {
+        expect(parser, JSONParser.OBJECT_START);
+        final Map<String, CompactTermsResponse.Terms> fields = new LinkedHashMap<>();
+        final CharArr chars = new CharArr(64);
+        while (parser.nextEvent() == JSONParser.STRING) {
+            final String field = parser.getString();
+            final int start = parser.nextEvent();
+            if (start != JSONParser.ARRAY_START && start != JSONParser.OBJECT_START) {
+                throw unexpected(parser);
+            }
+            final CompactTermsResponse.TermsBuilder builder = new CompactTermsResponse.TermsBuilder();
+            while (parser.nextEvent() == JSONParser.STRING) {
+                chars.reset();
+                parser.getString(chars);
+                builder.addTerm(chars.getArray(), chars.getStart(), chars.getEnd());
+                parseFrequencies(parser, builder, chars);
+            }
+            fields.put(field, builder.build());
+        }
+        return new CompactTermsResponse(fields);
+    }
+
+    /* Either a plain document frequency or an
+       object holding "df" and "ttf" frequencies */
+    private static void parseFrequencies(JSONParser parser, CompactTermsResponse.TermsBuilder builder,
+                                         CharArr chars) throws IOException {
+        final int event = parser.nextEvent();
+        if (event == JSONParser.LONG) {
+            builder.setFrequencies(parser.getLong(), -1);
+            return;
+        }
+        if (event != JSONParser.OBJECT_START) {
+            throw unexpected(parser);
+        }
+        long frequency = 0;
+        long totalTermFreq = -1;
+        while (parser.nextEvent() == JSONParser.STRING) {
+            chars.reset();
+            parser.getString(chars);
+            expect(parser, JSONParser.LONG);
+            if (isKey(chars, "df")) {
+                frequency = parser.getLong();
+            } else if (isKey(chars, "ttf")) {
+                totalTermFreq = parser.getLong();
+            }
+        }
+        builder.setFrequencies(frequency, totalTermFreq);
+    }
+
+    private static boolean isKey(CharArr chars, String key) {
+        if (chars.length() != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (chars.charAt(i) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Objects of the header and error sections are
+       converted to named lists, as expected by SolrJ */
+    @SuppressWarnings("unchecked")
+    private static Object toNamedList(Object value) {
+        if (value instanceof Map) {
+            final NamedList<Object> namedList = new SimpleOrderedMap<>();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                namedList.add(entry.getKey(), toNamedList(entry.getValue()));
+            }
+            return namedList;
+        }
+        return value;
+    }
+
+    private static void expect(JSONParser parser, int event) throws IOException {
+        if (parser.nextEvent() != event) {
+            throw unexpected(parser);
+        }
+    }
+
+    private static SolrException unexpected(JSONParser parser) {
+        return new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                "Unexpected " + JSONParser.getEventString(parser.lastEvent())
+                        + " at position " + parser.getPosition() + " in terms response");
+    }
+}
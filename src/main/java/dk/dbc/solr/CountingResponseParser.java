@@ -0,0 +1,99 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Response parser counting the number of bytes read by the parser it wraps.
+ * A new instance must be used for each request.
+ */
+class CountingResponseParser extends ResponseParser {
+    private final ResponseParser delegate;
+    private long bytesRead = 0;
+
+    CountingResponseParser(ResponseParser delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return number of bytes read from the response stream, or
+     * the number of characters if the response was parsed from a reader
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public String getWriterType() {
+        return delegate.getWriterType();
+    }
+
+    @Override
+    public String getContentType() {
+        return delegate.getContentType();
+    }
+
+    @Override
+    public String getVersion() {
+        return delegate.getVersion();
+    }
+
+    @Override
+    public NamedList<Object> processResponse(InputStream body, String encoding) {
+        return delegate.processResponse(new FilterInputStream(body) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b >= 0) {
+                    bytesRead++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesRead += n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                final long skipped = super.skip(n);
+                bytesRead += skipped;
+                return skipped;
+            }
+        }, encoding);
+    }
+
+    @Override
+    public NamedList<Object> processResponse(Reader reader) {
+        return delegate.processResponse(new Reader() {
+            @Override
+            public int read(char[] buffer, int off, int len) throws IOException {
+                final int n = reader.read(buffer, off, len);
+                if (n > 0) {
+                    bytesRead += n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.io.Serializable;
+
+/**
+ * Serializable position within a cursor based iteration, from which
+ * the iteration can be resumed using
+ * {@link SolrSearch#resumeCursorBasedIteration(CursorCheckpoint)}
+ * <p>
+ * The position is recorded as the cursor mark of the page holding the next
+ * document together with the number of documents already emitted from that
+ * page. Should the index change between checkpoint and resumption, the
+ * documents of that page may shift accordingly.
+ * </p>
+ */
+public class CursorCheckpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String collection;
+    private final ModifiableSolrParams params;
+    private final String cursorMark;
+    private final int consumedInPage;
+    private final long emitted;
+
+    CursorCheckpoint(String collection, SolrParams params, String cursorMark, int consumedInPage, long emitted) {
+        this.collection = collection;
+        this.params = new ModifiableSolrParams(params);
+        this.cursorMark = cursorMark;
+        this.consumedInPage = consumedInPage;
+        this.emitted = emitted;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public SolrParams getParams() {
+        return new ModifiableSolrParams(params);
+    }
+
+    public String getCursorMark() {
+        return cursorMark;
+    }
+
+    public int getConsumedInPage() {
+        return consumedInPage;
+    }
+
+    /**
+     * @return number of documents emitted by the iteration
+     * up until the time the checkpoint was taken
+     */
+    public long getEmitted() {
+        return emitted;
+    }
+
+    @Override
+    public String toString() {
+        return "CursorCheckpoint{" +
+                "collection='" + collection + '\'' +
+                ", params=" + params +
+                ", cursorMark='" + cursorMark + '\'' +
+                ", consumedInPage=" + consumedInPage +
+                ", emitted=" + emitted +
+                '}';
+    }
+}
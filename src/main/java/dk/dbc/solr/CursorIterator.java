@@ -0,0 +1,265 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Iterates the documents of a cursor based query page by page.
+ * <p>
+ * When a prefetch depth greater than zero is given, up to that many
+ * pages following the current one are requested on the given executor
+ * while the current page is being consumed. Since a page can only be
+ * requested once the cursor mark of the preceding page is known, the
+ * prefetched pages are fetched one after the other, never concurrently.
+ * </p>
+ */
+class CursorIterator implements Iterator<SolrDocument> {
+    @FunctionalInterface
+    interface PageFetcher {
+        QueryResponse fetch(String cursorMark) throws IOException, SolrServerException;
+    }
+
+    private final PageFetcher fetcher;
+    private final int prefetchDepth;
+    private final Executor executor;
+    private final Deque<CompletableFuture<Page>> prefetched = new ArrayDeque<>();
+    private final long numFound;
+
+    private Page page;
+    private Iterator<SolrDocument> documents;
+    private int consumedInPage;
+    private long emitted;
+
+    CursorIterator(PageFetcher fetcher, int prefetchDepth, Executor executor) throws SolrServerException {
+        this(fetcher, CursorMarkParams.CURSOR_MARK_START, 0, 0, prefetchDepth, executor);
+    }
+
+    /**
+     * Opens the cursor at the given position
+     * @param fetcher page fetcher
+     * @param cursorMark cursor mark of the page to start from
+     * @param skip number of documents to skip from the given cursor mark on
+     * @param emitted number of documents already emitted before the given position
+     * @param prefetchDepth number of pages to fetch ahead
+     * @param executor executor on which pages are prefetched
+     * @throws SolrServerException on failure to fetch the first page
+     */
+    CursorIterator(PageFetcher fetcher, String cursorMark, int skip, long emitted,
+                   int prefetchDepth, Executor executor) throws SolrServerException {
+        if (prefetchDepth > 0 && executor == null) {
+            throw new IllegalArgumentException("An executor is required for prefetching");
+        }
+        this.fetcher = fetcher;
+        this.prefetchDepth = prefetchDepth;
+        this.executor = executor;
+        try {
+            setPage(fetchPage(cursorMark));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        numFound = page.response.getResults().getNumFound();
+        // the page may now hold fewer rows than when the position was recorded,
+        // for instance after adaptive page sizing grew it, so skipping goes on
+        // into the following pages
+        for (int i = 0; i < skip && hasNext(); i++) {
+            documents.next();
+            consumedInPage++;
+        }
+        this.emitted = emitted;
+    }
+
+    long getNumFound() {
+        return numFound;
+    }
+
+    /**
+     * @return number of documents emitted by this cursor,
+     * including those emitted before the position it was opened at
+     */
+    long getEmitted() {
+        return emitted;
+    }
+
+    /**
+     * @return cursor mark of the page holding the next document to be emitted
+     */
+    String getCursorMark() {
+        if (!documents.hasNext() && !page.isLast()) {
+            return page.getNextCursorMark();
+        }
+        return page.cursorMark;
+    }
+
+    /**
+     * @return number of documents already emitted from the page
+     * identified by {@link #getCursorMark()}
+     */
+    int getConsumedInPage() {
+        if (!documents.hasNext() && !page.isLast()) {
+            return 0;
+        }
+        return consumedInPage;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!documents.hasNext()) {
+            if (!advance()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public SolrDocument next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        consumedInPage++;
+        emitted++;
+        return documents.next();
+    }
+
+    /**
+     * @return true if {@link #hasNext()} can be answered without waiting
+     * for a prefetched page to arrive
+     */
+    boolean isReady() {
+        return documents.hasNext() || page.isLast()
+                || prefetched.isEmpty() || prefetched.getFirst().isDone();
+    }
+
+    /**
+     * @return future completing when this cursor becomes ready
+     */
+    CompletableFuture<?> whenReady() {
+        if (isReady()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return prefetched.getFirst();
+    }
+
+    private boolean advance() {
+        if (page.isLast()) {
+            documents = Collections.emptyIterator();
+            return false;
+        }
+        final Page nextPage;
+        if (prefetchDepth > 0) {
+            if (prefetched.isEmpty()) {
+                prefetch();
+            }
+            try {
+                nextPage = join(prefetched.removeFirst());
+            } catch (RuntimeException e) {
+                // pages chained on the failed one are lost as well,
+                // prefetching restarts from the current page on next advance
+                prefetched.clear();
+                throw e;
+            }
+        } else {
+            try {
+                nextPage = fetchPage(page.getNextCursorMark());
+            } catch (SolrServerException e) {
+                throw new IllegalStateException(e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        setPage(nextPage);
+        return true;
+    }
+
+    private void setPage(Page page) {
+        this.page = page;
+        this.documents = page.response.getResults().iterator();
+        this.consumedInPage = 0;
+        prefetch();
+    }
+
+    /* Tops up the prefetch queue by chaining requests for the
+       pages following the last page requested so far */
+    private void prefetch() {
+        if (prefetchDepth <= 0) {
+            return;
+        }
+        while (prefetched.size() < prefetchDepth) {
+            final CompletableFuture<Page> previous = prefetched.isEmpty()
+                    ? CompletableFuture.completedFuture(page) : prefetched.getLast();
+            prefetched.addLast(previous.thenApplyAsync(this::fetchPageFollowing, executor));
+        }
+    }
+
+    private Page fetchPageFollowing(Page previous) {
+        if (previous == null || previous.isLast()) {
+            return null;
+        }
+        try {
+            return fetchPage(previous.getNextCursorMark());
+        } catch (IOException | SolrServerException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private Page fetchPage(String cursorMark) throws IOException, SolrServerException {
+        return new Page(cursorMark, fetcher.fetch(cursorMark));
+    }
+
+    private Page join(CompletableFuture<Page> future) {
+        try {
+            final Page nextPage = future.join();
+            if (nextPage == null) {
+                throw new IllegalStateException("Prefetched page unexpectedly missing");
+            }
+            return nextPage;
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static class Page {
+        private final String cursorMark;
+        private final QueryResponse response;
+
+        Page(String cursorMark, QueryResponse response) {
+            this.cursorMark = cursorMark;
+            this.response = response;
+        }
+
+        String getNextCursorMark() {
+            return response.getNextCursorMark();
+        }
+
+        /* Solr signals the end of a cursor by returning
+           the cursor mark it was given */
+        boolean isLast() {
+            return cursorMark.equals(response.getNextCursorMark());
+        }
+    }
+}
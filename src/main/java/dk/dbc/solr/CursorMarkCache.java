@@ -0,0 +1,126 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Cache of cursor marks at known result offsets, used by {@link SolrSearch}
+ * to turn deep start/rows paging into cursor based seeks
+ * (see {@link SolrSearch#withDeepPaging(CursorMarkCache, int)}).
+ * <p>
+ * Marks are kept per query and collection for the least recently used
+ * queries only. Since a cursor mark identifies a position by sort values,
+ * it stays valid when the index changes, but the offset recorded for it
+ * may drift by the number of documents added or deleted before it.
+ * Call {@link #clear()} when exact offsets matter after an index change.
+ * </p>
+ * <p>
+ * The cache is thread safe and is meant to be shared
+ * between SolrSearch instances.
+ * </p>
+ */
+public class CursorMarkCache {
+    private static final String[] IGNORED_PARAMS = {
+            CommonParams.START, CommonParams.ROWS, CommonParams.FL, CursorMarkParams.CURSOR_MARK_PARAM};
+
+    private final int maxMarksPerQuery;
+    private final LinkedHashMap<String, TreeMap<Long, String>> marks;
+
+    /**
+     * @param maxQueries maximum number of queries for which marks are kept
+     * @param maxMarksPerQuery maximum number of marks kept per query
+     */
+    public CursorMarkCache(int maxQueries, int maxMarksPerQuery) {
+        if (maxQueries < 1 || maxMarksPerQuery < 1) {
+            throw new IllegalArgumentException("Cache sizes must be positive");
+        }
+        this.maxMarksPerQuery = maxMarksPerQuery;
+        this.marks = new LinkedHashMap<String, TreeMap<Long, String>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TreeMap<Long, String>> eldest) {
+                return size() > maxQueries;
+            }
+        };
+    }
+
+    /**
+     * @return number of queries for which marks are cached
+     */
+    public synchronized int size() {
+        return marks.size();
+    }
+
+    public synchronized void clear() {
+        marks.clear();
+    }
+
+    /**
+     * Finds the cached mark nearest to, but not past, the given offset
+     * @param key query key, see {@link #keyOf(String, SolrParams)}
+     * @param offset result offset
+     * @return offset and mark, or null if no mark is cached at or before the offset
+     */
+    synchronized Map.Entry<Long, String> floor(String key, long offset) {
+        final TreeMap<Long, String> queryMarks = marks.get(key);
+        if (queryMarks == null) {
+            return null;
+        }
+        final Map.Entry<Long, String> entry = queryMarks.floorEntry(offset);
+        return entry == null ? null : new AbstractMap.SimpleImmutableEntry<>(entry);
+    }
+
+    /**
+     * Records the cursor mark identifying the position at the given offset.
+     * When the query already has the maximum number of marks the one at the
+     * lowest offset is dropped, since low offsets are the cheapest to reach.
+     * @param key query key, see {@link #keyOf(String, SolrParams)}
+     * @param offset result offset
+     * @param mark cursor mark
+     */
+    synchronized void put(String key, long offset, String mark) {
+        final TreeMap<Long, String> queryMarks = marks.computeIfAbsent(key, k -> new TreeMap<>());
+        queryMarks.put(offset, mark);
+        while (queryMarks.size() > maxMarksPerQuery) {
+            queryMarks.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Creates a key identifying a query by the parameters determining
+     * the order of its results, ignoring paging and field list
+     * @param collection collection queried
+     * @param params query parameters
+     * @return cache key
+     */
+    static String keyOf(String collection, SolrParams params) {
+        final StringBuilder key = new StringBuilder(String.valueOf(collection));
+        final TreeSet<String> names = new TreeSet<>();
+        final Iterator<String> nameIterator = params.getParameterNamesIterator();
+        while (nameIterator.hasNext()) {
+            names.add(nameIterator.next());
+        }
+        names.removeAll(Arrays.asList(IGNORED_PARAMS));
+        for (String name : names) {
+            for (String value : params.getParams(name)) {
+                key.append('\u0000').append(name).append('=').append(value);
+            }
+        }
+        return key.toString();
+    }
+}
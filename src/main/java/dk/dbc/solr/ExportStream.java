@@ -0,0 +1,158 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.noggit.JSONParser;
+import org.noggit.ObjectBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Incremental reader of the JSON response written by the Solr /export
+ * handler. Only the document currently being handed out is decoded,
+ * so memory use does not depend on the number of results.
+ * The underlying stream is closed when the last document has been read.
+ */
+class ExportStream implements Iterator<SolrDocument>, Closeable {
+    private static final String EXCEPTION_KEY = "EXCEPTION";
+
+    private final InputStream inputStream;
+    private final JSONParser parser;
+    private long numFound;
+    private SolrDocument next;
+    private boolean exhausted;
+
+    /**
+     * Reads the response up to the first document
+     * @param inputStream JSON response body
+     * @throws IOException on failure to read the response
+     * @throws SolrServerException if the response reports an error
+     */
+    ExportStream(InputStream inputStream) throws IOException, SolrServerException {
+        this.inputStream = inputStream;
+        this.parser = new JSONParser(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        try {
+            advanceToDocs();
+        } catch (IOException | SolrServerException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    long getNumFound() {
+        return numFound;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !exhausted) {
+            try {
+                next = readDocument();
+            } catch (IOException e) {
+                closeQuietly();
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                closeQuietly();
+                throw e;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public SolrDocument next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final SolrDocument document = next;
+        next = null;
+        return document;
+    }
+
+    @Override
+    public void close() throws IOException {
+        exhausted = true;
+        inputStream.close();
+    }
+
+    private void advanceToDocs() throws IOException, SolrServerException {
+        expect(JSONParser.OBJECT_START);
+        int event;
+        while ((event = parser.nextEvent()) == JSONParser.STRING) {
+            final String key = parser.getString();
+            if ("response".equals(key)) {
+                expect(JSONParser.OBJECT_START);
+                while ((event = parser.nextEvent()) == JSONParser.STRING) {
+                    final String responseKey = parser.getString();
+                    if ("numFound".equals(responseKey)) {
+                        expect(JSONParser.LONG);
+                        numFound = parser.getLong();
+                    } else if ("docs".equals(responseKey)) {
+                        expect(JSONParser.ARRAY_START);
+                        return;
+                    } else {
+                        skipValue();
+                    }
+                }
+            } else if ("error".equals(key)) {
+                parser.nextEvent();
+                throw new SolrServerException("Export failed: " + ObjectBuilder.getVal(parser));
+            } else {
+                skipValue();
+            }
+        }
+        // no document list in response
+        close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private SolrDocument readDocument() throws IOException {
+        final int event = parser.nextEvent();
+        if (event == JSONParser.ARRAY_END || event == JSONParser.EOF) {
+            close();
+            return null;
+        }
+        if (event != JSONParser.OBJECT_START) {
+            throw new IllegalStateException("Unexpected JSON event " + event + " in export document list");
+        }
+        final Map<String, Object> fields = (Map<String, Object>) ObjectBuilder.getVal(parser);
+        if (fields.containsKey(EXCEPTION_KEY)) {
+            throw new IllegalStateException("Export failed: " + fields.get(EXCEPTION_KEY));
+        }
+        return new SolrDocument(fields);
+    }
+
+    private void expect(int expectedEvent) throws IOException {
+        final int event = parser.nextEvent();
+        if (event != expectedEvent) {
+            throw new IllegalStateException("Unexpected JSON event " + event
+                    + " in export response, expected " + expectedEvent);
+        }
+    }
+
+    private void skipValue() throws IOException {
+        parser.nextEvent();
+        ObjectBuilder.getVal(parser);
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // already failing
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Bounded least recently used cache of field analysis results keyed on
+ * collection, field type and value, to be shared between
+ * {@link SolrFieldAnalysis} instances
+ * (see {@link SolrFieldAnalysis#withCache(FieldAnalysisCache)}).
+ * <p>
+ * The cache is bounded both by number of entries and by weight, the weight
+ * of an entry being the combined length of its field type, value and result.
+ * </p>
+ * <p>
+ * For collections analyzed through a {@link CloudSolrClient} the schema
+ * resource of the collection configuration is watched in ZooKeeper, and
+ * all results for the collection are invalidated when it changes. The
+ * {@link SolrFieldAnalysis} instances using the cache then also discard
+ * the schema information and local analyzers they have built.
+ * </p>
+ */
+public class FieldAnalysisCache implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FieldAnalysisCache.class);
+
+    public static final String DEFAULT_SCHEMA_RESOURCE = "managed-schema";
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final String schemaResource;
+    private final LinkedHashMap<Key, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> watchedCollections = new HashSet<>();
+    private final Map<String, Long> schemaVersions = new HashMap<>();
+
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * @param maxEntries maximum number of cached results
+     * @param maxWeight maximum combined weight of cached results
+     */
+    public FieldAnalysisCache(int maxEntries, long maxWeight) {
+        this(maxEntries, maxWeight, DEFAULT_SCHEMA_RESOURCE);
+    }
+
+    /**
+     * @param maxEntries maximum number of cached results
+     * @param maxWeight maximum combined weight of cached results
+     * @param schemaResource name of the schema resource watched in the collection configuration
+     */
+    public FieldAnalysisCache(int maxEntries, long maxWeight, String schemaResource) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("Cache bounds must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.schemaResource = schemaResource;
+    }
+
+    /**
+     * @param collection collection name
+     * @param fieldType field type name
+     * @param value value to be analyzed
+     * @return cached result of field analysis, or null if not cached
+     */
+    public synchronized String get(String collection, String fieldType, String value) {
+        final String result = entries.get(new Key(collection, fieldType, value));
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    public synchronized void put(String collection, String fieldType, String value, String result) {
+        final Key key = new Key(collection, fieldType, value);
+        final String previous = entries.put(key, result);
+        if (previous != null) {
+            weight -= key.weight() + previous.length();
+        }
+        weight += key.weight() + result.length();
+        final Iterator<Map.Entry<Key, String>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || weight > maxWeight) && iterator.hasNext()) {
+            final Map.Entry<Key, String> eldest = iterator.next();
+            weight -= eldest.getKey().weight() + eldest.getValue().length();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Caches a result unless results for the collection have been
+     * invalidated since the given schema version was read, so that results
+     * analyzed with an outdated schema are not cached
+     * @param collection collection name
+     * @param schemaVersion schema version read before analyzing
+     *                      (see {@link #getSchemaVersion(String)})
+     * @param fieldType field type name
+     * @param value analyzed value
+     * @param result result of field analysis
+     */
+    synchronized void put(String collection, long schemaVersion, String fieldType, String value, String result) {
+        if (getSchemaVersion(collection) == schemaVersion) {
+            put(collection, fieldType, value, result);
+        }
+    }
+
+    /**
+     * Removes all cached results for a collection
+     * @param collection collection name
+     */
+    public synchronized void invalidate(String collection) {
+        final Iterator<Map.Entry<Key, String>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Key, String> entry = iterator.next();
+            if (entry.getKey().collection.equals(collection)) {
+                weight -= entry.getKey().weight() + entry.getValue().length();
+                iterator.remove();
+            }
+        }
+        schemaVersions.merge(collection, 1L, Long::sum);
+        invalidations++;
+    }
+
+    /**
+     * @param collection collection name
+     * @return number of times results for the collection have been invalidated
+     */
+    synchronized long getSchemaVersion(String collection) {
+        return schemaVersions.getOrDefault(collection, 0L);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(entries.size(), weight, hits, misses, evictions, invalidations);
+    }
+
+    /**
+     * Stops watching schema resources, cached results are retained
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Starts watching the schema resource of the configuration used by a
+     * collection, unless it is already being watched
+     * @param cloudSolrClient client connected to the cluster
+     * @param collection collection name
+     */
+    void watchSchema(CloudSolrClient cloudSolrClient, String collection) {
+        synchronized (this) {
+            if (closed || !watchedCollections.add(collection)) {
+                return;
+            }
+        }
+        try {
+            cloudSolrClient.connect();
+            final ZkStateReader zkStateReader = cloudSolrClient.getZkStateReader();
+            final String path = ZkStateReader.CONFIGS_ZKNODE + "/"
+                    + zkStateReader.readConfigName(collection) + "/" + schemaResource;
+            watch(zkStateReader.getZkClient(), path, collection);
+        } catch (KeeperException | RuntimeException e) {
+            LOGGER.warn("Unable to watch schema of collection '{}', cached results will not be invalidated",
+                    collection, e);
+            unwatched(collection);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unwatched(collection);
+        }
+    }
+
+    /* ZooKeeper watches fire only once, so the watch
+       is registered anew every time it is triggered */
+    private void watch(SolrZkClient zkClient, String path, String collection)
+            throws KeeperException, InterruptedException {
+        final Watcher watcher = event -> {
+            if (event.getType() == Watcher.Event.EventType.None) {
+                return;
+            }
+            LOGGER.info("Schema '{}' of collection '{}' changed, invalidating cached analysis results",
+                    path, collection);
+            invalidate(collection);
+            if (closed) {
+                unwatched(collection);
+                return;
+            }
+            try {
+                watch(zkClient, path, collection);
+            } catch (KeeperException e) {
+                LOGGER.warn("Unable to keep watching schema of collection '{}'", collection, e);
+                unwatched(collection);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                unwatched(collection);
+            }
+        };
+        zkClient.exists(path, watcher, true);
+    }
+
+    /* allows registration to be retried the next time the collection is analyzed */
+    private synchronized void unwatched(String collection) {
+        watchedCollections.remove(collection);
+    }
+
+    private static final class Key {
+        private final String collection;
+        private final String fieldType;
+        private final String value;
+
+        Key(String collection, String fieldType, String value) {
+            this.collection = collection;
+            this.fieldType = fieldType;
+            this.value = value;
+        }
+
+        long weight() {
+            return fieldType.length() + value.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return collection.equals(key.collection)
+                    && fieldType.equals(key.fieldType)
+                    && value.equals(key.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(collection, fieldType, value);
+        }
+    }
+
+    public static class Stats {
+        private final int size;
+        private final long weight;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long invalidations;
+
+        Stats(int size, long weight, long hits, long misses, long evictions, long invalidations) {
+            this.size = size;
+            this.weight = weight;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "size=" + size +
+                    ", weight=" + weight +
+                    ", hits=" + hits +
+                    ", misses=" + misses +
+                    ", evictions=" + evictions +
+                    ", invalidations=" + invalidations +
+                    '}';
+        }
+    }
+}
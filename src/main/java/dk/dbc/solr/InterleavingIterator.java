@@ -0,0 +1,74 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.SolrDocument;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Combines prefetching cursors into a single unordered iterator, handing out
+ * documents from whichever cursor has a page available, so that no cursor
+ * is kept waiting on a slower one.
+ */
+class InterleavingIterator implements Iterator<SolrDocument> {
+    private final List<CursorIterator> cursors;
+    private CursorIterator current;
+
+    InterleavingIterator(List<CursorIterator> cursors) {
+        this.cursors = new ArrayList<>(cursors);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (current != null && current.isReady() && current.hasNext()) {
+            return true;
+        }
+        current = null;
+        while (!cursors.isEmpty()) {
+            final Iterator<CursorIterator> iterator = cursors.iterator();
+            while (iterator.hasNext()) {
+                final CursorIterator cursor = iterator.next();
+                if (cursor.isReady()) {
+                    if (cursor.hasNext()) {
+                        current = cursor;
+                        return true;
+                    }
+                    iterator.remove();
+                }
+            }
+            awaitAnyReady();
+        }
+        return false;
+    }
+
+    @Override
+    public SolrDocument next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    private void awaitAnyReady() {
+        if (cursors.isEmpty()) {
+            return;
+        }
+        final CompletableFuture<?>[] pending = cursors.stream()
+                .map(CursorIterator::whenReady)
+                .toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.anyOf(pending).join();
+        } catch (CompletionException e) {
+            // the failure is rethrown by the failed cursor itself
+        }
+    }
+}
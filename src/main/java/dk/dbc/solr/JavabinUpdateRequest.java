@@ -0,0 +1,77 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.RequestWriter;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+
+/**
+ * Update request streaming documents to Solr in javabin format, sparing
+ * Solr the cost of parsing JSON.
+ * <p>
+ * Documents are taken from an iterator while the request body is written,
+ * so they need not all be held in memory at once. Combined with
+ * {@link JsonDocumentIterator} (see {@link #fromJson(InputStream)}) JSON
+ * input is converted to javabin one document at a time as it is sent.
+ * </p>
+ * <p>
+ * As the iterator is consumed when the request is sent, a request can
+ * only be sent once, and it should not be used with clients which retry
+ * requests on failure.
+ * </p>
+ */
+public class JavabinUpdateRequest extends AbstractUpdateRequest {
+    private final Iterator<SolrInputDocument> documents;
+
+    /**
+     * Construct a new update request for the given documents.
+     * @param documents documents, consumed while the request is sent
+     */
+    public JavabinUpdateRequest(Iterator<SolrInputDocument> documents) {
+        super(METHOD.POST, "/update");
+        this.documents = documents;
+    }
+
+    /**
+     * Construct a new update request converting JSON to javabin while sending.
+     * @param inputStream UTF-8 encoded JSON array of documents or JSON lines
+     * @return update request
+     */
+    public static JavabinUpdateRequest fromJson(InputStream inputStream) {
+        return new JavabinUpdateRequest(new JsonDocumentIterator(inputStream));
+    }
+
+    @Override
+    public RequestWriter.ContentWriter getContentWriter(String expectedType) {
+        return new RequestWriter.ContentWriter() {
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+                final UpdateRequest updateRequest = new UpdateRequest();
+                updateRequest.setDocIterator(documents);
+                try {
+                    new JavaBinUpdateRequestCodec().marshal(updateRequest, outputStream);
+                } catch (UncheckedIOException e) {
+                    // thrown by the iterator on failure to read its input
+                    throw e.getCause();
+                }
+            }
+
+            @Override
+            public String getContentType() {
+                return "application/javabin";
+            }
+        };
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splits a stream of JSON documents into batches, each batch being a JSON
+ * array of at most a given number of documents and, unless a single
+ * document is larger, at most a given number of bytes.
+ * <p>
+ * The input is either a JSON array of objects, or objects following each
+ * other separated by whitespace only, as in JSON lines. Documents are
+ * located by scanning the bytes for the braces and brackets delimiting
+ * them, skipping over string literals, so documents are never parsed
+ * into objects and are copied to their batch byte for byte.
+ * </p>
+ * <p>
+ * When a router is given, documents are grouped into separate batches per
+ * route, so the documents of a batch no longer follow each other in the
+ * input. Batches are then emitted as they fill up, and at the end of input.
+ * </p>
+ */
+class JsonBatchSplitter {
+    /**
+     * Decides the route of a document
+     */
+    @FunctionalInterface
+    interface DocumentRouter {
+        /**
+         * @param document buffer holding document
+         * @param length length of document in buffer
+         * @return route, or null for no particular route
+         */
+        String route(byte[] document, int length);
+    }
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final InputStream inputStream;
+    private final int maxDocuments;
+    private final long maxBytes;
+    private final DocumentRouter router;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final Map<String, BatchBuilder> open = new LinkedHashMap<>();
+    private final Deque<JsonBatch> ready = new ArrayDeque<>();
+
+    private int position = 0;
+    private int limit = 0;
+    private long offset = 0;
+    private Boolean array;
+    private boolean arrayClosed = false;
+
+    private byte[] document = new byte[1024];
+    private int documentLength = 0;
+
+    private long batchNumber = 0;
+    private long documentNumber = 0;
+
+    JsonBatchSplitter(InputStream inputStream, int maxDocuments, long maxBytes) {
+        this(inputStream, maxDocuments, maxBytes, null);
+    }
+
+    JsonBatchSplitter(InputStream inputStream, int maxDocuments, long maxBytes, DocumentRouter router) {
+        if (maxDocuments < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Batch bounds must be positive");
+        }
+        this.inputStream = inputStream;
+        this.maxDocuments = maxDocuments;
+        this.maxBytes = maxBytes;
+        this.router = router;
+    }
+
+    /**
+     * @return next batch, or null when the input is exhausted
+     * @throws IOException on failure to read the input, or if the input is not
+     * a sequence or an array of JSON objects
+     */
+    JsonBatch next() throws IOException {
+        while (ready.isEmpty()) {
+            if (!readDocument()) {
+                for (BatchBuilder builder : open.values()) {
+                    ready.add(builder.build());
+                }
+                open.clear();
+                break;
+            }
+            final String route = router == null ? null : router.route(document, documentLength);
+            BatchBuilder builder = open.get(route);
+            if (builder != null && !builder.fits(documentLength)) {
+                ready.add(builder.build());
+                builder = null;
+            }
+            if (builder == null) {
+                builder = new BatchBuilder(route);
+                open.put(route, builder);
+            }
+            builder.add(document, documentLength);
+            if (builder.documents == maxDocuments) {
+                ready.add(builder.build());
+                open.remove(route);
+            }
+        }
+        return ready.poll();
+    }
+
+    /* Reads the next document into the document buffer */
+    private boolean readDocument() throws IOException {
+        int b = skipSeparators();
+        if (b < 0) {
+            return false;
+        }
+        if (b != '{') {
+            throw unexpected(b);
+        }
+        documentLength = 0;
+        int depth = 0;
+        boolean inString = false;
+        while (true) {
+            append(b);
+            if (inString) {
+                if (b == '\\') {
+                    b = read();
+                    if (b < 0) {
+                        break;
+                    }
+                    append(b);
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (--depth == 0) {
+                    return true;
+                }
+            }
+            b = read();
+            if (b < 0) {
+                break;
+            }
+        }
+        throw new IOException("Truncated JSON document at end of input, offset " + offset);
+    }
+
+    /* Skips whitespace, the opening bracket and commas of an array, returning
+       the first byte of the next document, or -1 when no more documents follow */
+    private int skipSeparators() throws IOException {
+        while (true) {
+            final int b = read();
+            if (b < 0) {
+                if (array == Boolean.TRUE && !arrayClosed) {
+                    throw new IOException("Unterminated JSON array at end of input");
+                }
+                return -1;
+            }
+            if (isWhitespace(b)) {
+                continue;
+            }
+            if (array == null) {
+                array = b == '[';
+                if (array) {
+                    continue;
+                }
+            }
+            if (array && !arrayClosed) {
+                if (b == ',') {
+                    continue;
+                }
+                if (b == ']') {
+                    // only whitespace may follow the array
+                    arrayClosed = true;
+                    continue;
+                }
+            }
+            if (arrayClosed) {
+                throw unexpected(b);
+            }
+            return b;
+        }
+    }
+
+    /**
+     * Finds the value of a field of a document without parsing the document
+     * @param document buffer holding document
+     * @param length length of document in buffer
+     * @param field UTF-8 encoded field name
+     * @return value of top level field as string, or null if the field
+     * is missing or its value is an object or an array
+     */
+    static String getFieldValue(byte[] document, int length, byte[] field) {
+        int depth = 0;
+        int i = 0;
+        while (i < length) {
+            final byte b = document[i];
+            if (b == '"') {
+                final int end = endOfString(document, i, length);
+                if (depth == 1 && isField(document, i + 1, end, field)) {
+                    final int j = skipWhitespace(document, end + 1, length);
+                    if (j < length && document[j] == ':') {
+                        return readValue(document, skipWhitespace(document, j + 1, length), length);
+                    }
+                }
+                i = end + 1;
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            }
+            i++;
+        }
+        return null;
+    }
+
+    private static boolean isField(byte[] document, int start, int end, byte[] field) {
+        if (end - start != field.length) {
+            return false;
+        }
+        for (int i = 0; i < field.length; i++) {
+            if (document[start + i] != field[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readValue(byte[] document, int start, int length) {
+        if (start >= length) {
+            return null;
+        }
+        if (document[start] == '"') {
+            return decodeString(document, start, endOfString(document, start, length));
+        }
+        int end = start;
+        while (end < length && document[end] != ',' && document[end] != '}'
+                && document[end] != ']' && !isWhitespace(document[end])) {
+            end++;
+        }
+        if (end == start || document[start] == '{' || document[start] == '[') {
+            return null;
+        }
+        return new String(document, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /* index of the closing quote of the string starting at the given index */
+    private static int endOfString(byte[] document, int start, int length) {
+        int i = start + 1;
+        while (i < length && document[i] != '"') {
+            i += document[i] == '\\' ? 2 : 1;
+        }
+        return i;
+    }
+
+    private static String decodeString(byte[] document, int start, int end) {
+        final String raw = new String(document, start + 1, end - start - 1, StandardCharsets.UTF_8);
+        if (raw.indexOf('\\') < 0) {
+            return raw;
+        }
+        final StringBuilder value = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            final char c = raw.charAt(i);
+            if (c != '\\' || i + 1 == raw.length()) {
+                value.append(c);
+                continue;
+            }
+            final char escaped = raw.charAt(++i);
+            switch (escaped) {
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    if (i + 4 < raw.length()) {
+                        value.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    break;
+                default: value.append(escaped);
+            }
+        }
+        return value.toString();
+    }
+
+    private static int skipWhitespace(byte[] document, int start, int length) {
+        int i = start;
+        while (i < length && isWhitespace(document[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private void append(int b) {
+        if (documentLength == document.length) {
+            document = Arrays.copyOf(document, documentLength * 2);
+        }
+        document[documentLength++] = (byte) b;
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = inputStream.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        offset++;
+        return buffer[position++] & 0xFF;
+    }
+
+    private IOException unexpected(int b) {
+        return new IOException("Unexpected character '" + (char) b + "' at offset " + (offset - 1)
+                + ", expected a JSON object");
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private class BatchBuilder {
+        private final String route;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private long firstDocument = -1;
+        private int documents = 0;
+
+        BatchBuilder(String route) {
+            this.route = route;
+            bytes.write('[');
+        }
+
+        /* separating comma and closing bracket are accounted for */
+        boolean fits(int length) {
+            return documents == 0 || bytes.size() + 1 + length + 1 <= maxBytes;
+        }
+
+        void add(byte[] document, int length) {
+            if (documents > 0) {
+                bytes.write(',');
+            } else {
+                firstDocument = documentNumber;
+            }
+            bytes.write(document, 0, length);
+            documents++;
+            documentNumber++;
+        }
+
+        JsonBatch build() {
+            bytes.write(']');
+            return new JsonBatch(batchNumber++, route, firstDocument, documents, bytes.toByteArray());
+        }
+    }
+
+    /**
+     * Batch of documents as a JSON array
+     */
+    static class JsonBatch {
+        private final long number;
+        private final String route;
+        private final long firstDocument;
+        private final int documents;
+        private final byte[] bytes;
+
+        JsonBatch(long number, String route, long firstDocument, int documents, byte[] bytes) {
+            this.number = number;
+            this.route = route;
+            this.firstDocument = firstDocument;
+            this.documents = documents;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return zero based number of batch in input
+         */
+        long getNumber() {
+            return number;
+        }
+
+        /**
+         * @return route of the documents of the batch, or null for no particular route
+         */
+        String getRoute() {
+            return route;
+        }
+
+        /**
+         * @return zero based position of the first document of the batch in input
+         */
+        long getFirstDocument() {
+            return firstDocument;
+        }
+
+        int getDocuments() {
+            return documents;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.noggit.JSONParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Converts a stream of JSON documents into {@link SolrInputDocument}s one
+ * document at a time, so that no more than a single document is held in
+ * memory however large the input is.
+ * <p>
+ * The input is either a JSON array of objects or objects following each
+ * other, as in JSON lines. Strings, booleans and numbers become single
+ * field values, with integral numbers as longs and others as doubles,
+ * arrays become multiple values and nested objects become child
+ * documents. Null values are left out.
+ * </p>
+ * <p>
+ * Failure to read the input is thrown as {@link UncheckedIOException},
+ * malformed input as {@link JSONParser.ParseException}.
+ * </p>
+ */
+public class JsonDocumentIterator implements Iterator<SolrInputDocument> {
+    private final JSONParser parser;
+    private Boolean array;
+    private SolrInputDocument next;
+    private boolean done = false;
+
+    /**
+     * @param inputStream UTF-8 encoded JSON array of documents or JSON lines,
+     *                    which is not closed by this iterator
+     */
+    public JsonDocumentIterator(InputStream inputStream) {
+        parser = new JSONParser(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = readDocument();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            done = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public SolrInputDocument next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final SolrInputDocument document = next;
+        next = null;
+        return document;
+    }
+
+    private SolrInputDocument readDocument() throws IOException {
+        int event = parser.nextEvent();
+        if (array == null) {
+            array = event == JSONParser.ARRAY_START;
+            if (array) {
+                event = parser.nextEvent();
+            }
+        }
+        if (event == JSONParser.EOF || array && event == JSONParser.ARRAY_END) {
+            return null;
+        }
+        if (event != JSONParser.OBJECT_START) {
+            throw unexpected(event);
+        }
+        return readObject();
+    }
+
+    private SolrInputDocument readObject() throws IOException {
+        final SolrInputDocument document = new SolrInputDocument();
+        int event;
+        while ((event = parser.nextEvent()) == JSONParser.STRING) {
+            final String field = parser.getString();
+            event = parser.nextEvent();
+            if (event == JSONParser.ARRAY_START) {
+                final List<Object> values = new ArrayList<>();
+                while ((event = parser.nextEvent()) != JSONParser.ARRAY_END) {
+                    final Object value = readValue(event);
+                    if (value != null) {
+                        values.add(value);
+                    }
+                }
+                if (!values.isEmpty()) {
+                    document.addField(field, values);
+                }
+            } else {
+                final Object value = readValue(event);
+                if (value != null) {
+                    document.addField(field, value);
+                }
+            }
+        }
+        if (event != JSONParser.OBJECT_END) {
+            throw unexpected(event);
+        }
+        return document;
+    }
+
+    private Object readValue(int event) throws IOException {
+        switch (event) {
+            case JSONParser.STRING:
+                return parser.getString();
+            case JSONParser.LONG:
+                return parser.getLong();
+            case JSONParser.NUMBER:
+                return parser.getDouble();
+            case JSONParser.BIGNUMBER:
+                return parser.getNumberChars().toString();
+            case JSONParser.BOOLEAN:
+                return parser.getBoolean();
+            case JSONParser.NULL:
+                parser.getNull();
+                return null;
+            case JSONParser.OBJECT_START:
+                return readObject();
+            default:
+                throw unexpected(event);
+        }
+    }
+
+    private JSONParser.ParseException unexpected(int event) {
+        return new JSONParser.ParseException("Unexpected " + JSONParser.getEventString(event)
+                + " at position " + parser.getPosition() + ", expected a JSON object");
+    }
+}
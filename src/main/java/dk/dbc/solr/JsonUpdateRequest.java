@@ -6,37 +6,148 @@
 package dk.dbc.solr;
 
 import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
+import org.apache.solr.client.solrj.request.RequestWriter;
 import org.apache.solr.common.util.ContentStream;
 import org.apache.solr.common.util.ContentStreamBase;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Update request sending a stream of JSON documents to the
+ * /update/json/docs handler.
+ * <p>
+ * Requests created from a file, a file channel region or a buffer report
+ * the exact length of their content, so it is not sent in chunks. Unlike
+ * requests created from an input stream, they can be sent more than once,
+ * for instance when retrying.
+ * </p>
+ * <p>
+ * Optionally the content is gzip compressed while it is sent (see
+ * {@link #withGzip()}).
+ * </p>
+ */
 public class JsonUpdateRequest extends ContentStreamUpdateRequest {
-    private final InputStream inputStream;
+    private static final String CONTENT_TYPE = "application/json";
+    private static final int BUFFER_SIZE = 65536;
+
+    private final ContentStream contentStream;
+    private boolean gzip = false;
 
     /**
      * Construct a new update request for the given InputStream.
      * @param inputStream JSON stream
      */
     public JsonUpdateRequest(InputStream inputStream) {
+        this(new InputStreamContentStream(inputStream, CONTENT_TYPE));
+    }
+
+    private JsonUpdateRequest(ContentStream contentStream) {
         super("/update/json/docs");
-        this.inputStream = inputStream;
+        this.contentStream = contentStream;
         this.setParam("json.command", "false");
     }
 
+    /**
+     * Construct a new update request for the given file, which is
+     * opened anew each time the request is sent.
+     * @param path path of JSON file
+     * @return update request
+     * @throws IOException if the size of the file could not be determined
+     */
+    public static JsonUpdateRequest fromFile(Path path) throws IOException {
+        return new JsonUpdateRequest(new FileRegionContentStream(null, path, 0, Files.size(path)));
+    }
+
+    /**
+     * Construct a new update request for a region of the given channel.
+     * The channel is read without changing its position, and is not closed.
+     * @param channel channel holding JSON
+     * @param position position of the region in the channel
+     * @param size size of the region in bytes
+     * @return update request
+     */
+    public static JsonUpdateRequest fromChannel(FileChannel channel, long position, long size) {
+        if (position < 0 || size < 0) {
+            throw new IllegalArgumentException("Position and size must be non-negative");
+        }
+        return new JsonUpdateRequest(new FileRegionContentStream(channel, null, position, size));
+    }
+
+    /**
+     * Construct a new update request for the remaining bytes of the given
+     * buffer. The position and limit of the buffer are not changed, but its
+     * content must not be changed while the request is in use.
+     * @param buffer buffer holding JSON
+     * @return update request
+     */
+    public static JsonUpdateRequest fromBuffer(ByteBuffer buffer) {
+        return new JsonUpdateRequest(new ByteBufferContentStream(buffer.slice()));
+    }
+
+    /**
+     * Compresses the content with gzip while it is sent, marking the request
+     * with a 'Content-Encoding: gzip' header. The compressed length is not
+     * known in advance, so the content is sent in chunks.
+     * <p>
+     * Note that Solr only accepts compressed requests when its web server,
+     * or a proxy in front of it, is set up to inflate them, for instance by
+     * a Jetty GzipHandler with a positive inflate buffer size.
+     * </p>
+     * @return this JsonUpdateRequest
+     */
+    public JsonUpdateRequest withGzip() {
+        gzip = true;
+        addHeader("Content-Encoding", "gzip");
+        return this;
+    }
+
     @Override
     public Collection<ContentStream> getContentStreams() {
-        ContentStream jsonContentStream = new InputStreamContentStream(
-                inputStream, "application/json");
-        return Collections.singletonList(jsonContentStream);
+        return Collections.singletonList(contentStream);
+    }
+
+    @Override
+    public RequestWriter.ContentWriter getContentWriter(String expectedType) {
+        if (!gzip) {
+            return super.getContentWriter(expectedType);
+        }
+        return new RequestWriter.ContentWriter() {
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+                // finished rather than closed, the output stream belongs to the client
+                final GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream, BUFFER_SIZE);
+                try (InputStream inputStream = contentStream.getStream()) {
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = inputStream.read(buffer)) >= 0) {
+                        gzipOutputStream.write(buffer, 0, read);
+                    }
+                }
+                gzipOutputStream.finish();
+            }
+
+            @Override
+            public String getContentType() {
+                return contentStream.getContentType();
+            }
+        };
     }
 
     /**
      * A ContentStream for wrapping an InputStream.
      */
-    private class InputStreamContentStream extends ContentStreamBase {
+    private static class InputStreamContentStream extends ContentStreamBase {
         private final InputStream inputStream;
 
         public InputStreamContentStream(InputStream inputStream, String contentType) {
@@ -49,4 +160,151 @@ public class JsonUpdateRequest extends ContentStreamUpdateRequest {
             return inputStream;
         }
     }
+
+    /**
+     * A ContentStream for a region of a file channel, either given
+     * or opened from a path for each stream.
+     */
+    private static class FileRegionContentStream extends ContentStreamBase {
+        private final FileChannel channel;
+        private final Path path;
+        private final long position;
+
+        FileRegionContentStream(FileChannel channel, Path path, long position, long size) {
+            this.channel = channel;
+            this.path = path;
+            this.position = position;
+            this.setContentType(CONTENT_TYPE);
+            this.setSize(size);
+        }
+
+        @Override
+        public InputStream getStream() throws IOException {
+            if (path != null) {
+                return new FileRegionInputStream(FileChannel.open(path, StandardOpenOption.READ),
+                        position, size, true);
+            }
+            return new FileRegionInputStream(channel, position, size, false);
+        }
+    }
+
+    /**
+     * Reads a file region by positional reads straight into the
+     * buffers of the caller, leaving the channel position untouched.
+     */
+    private static class FileRegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private final boolean ownsChannel;
+        private long position;
+
+        FileRegionInputStream(FileChannel channel, long position, long size, boolean ownsChannel) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + size;
+            this.ownsChannel = ownsChannel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            final int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at position " + position + ", expected "
+                        + (end - position) + " more bytes");
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            final long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (ownsChannel) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * A ContentStream for a buffer, read through a new view for each stream.
+     */
+    private static class ByteBufferContentStream extends ContentStreamBase {
+        private final ByteBuffer buffer;
+
+        ByteBufferContentStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.setContentType(CONTENT_TYPE);
+            this.setSize((long) buffer.remaining());
+        }
+
+        @Override
+        public InputStream getStream() {
+            if (buffer.hasArray()) {
+                return new ByteArrayInputStream(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            return new ByteBufferInputStream(buffer.duplicate());
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int read = Math.min(len, buffer.remaining());
+            buffer.get(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
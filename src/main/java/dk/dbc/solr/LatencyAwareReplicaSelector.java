@@ -0,0 +1,110 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.cloud.Replica;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefers the replicas with the lowest exponentially weighted
+ * moving average of response times, unmeasured replicas first.
+ * <p>
+ * Every probe interval orderings of a shard the replica measured least
+ * recently is moved to the front instead, so that a replica which was slow
+ * once gets the chance to show that it has recovered.
+ * </p>
+ */
+class LatencyAwareReplicaSelector implements ReplicaSelector {
+    static final int DEFAULT_PROBE_INTERVAL = 100;
+
+    private final double smoothing;
+    private final int probeInterval;
+    private final ConcurrentMap<String, Measurement> measurements = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> orderings = new ConcurrentHashMap<>();
+    private final AtomicLong samples = new AtomicLong();
+
+    LatencyAwareReplicaSelector(double smoothing) {
+        this(smoothing, DEFAULT_PROBE_INTERVAL);
+    }
+
+    LatencyAwareReplicaSelector(double smoothing, int probeInterval) {
+        if (!(smoothing > 0 && smoothing <= 1)) {
+            throw new IllegalArgumentException("smoothing must be in (0, 1]");
+        }
+        if (probeInterval < 2) {
+            throw new IllegalArgumentException("probe interval must be at least 2");
+        }
+        this.smoothing = smoothing;
+        this.probeInterval = probeInterval;
+    }
+
+    @Override
+    public List<Replica> order(String shard, List<Replica> replicas) {
+        if (replicas.size() <= 1) {
+            return replicas;
+        }
+        final List<Replica> ordered = new ArrayList<>(replicas);
+        // stable sort keeps the cluster state order between equals
+        ordered.sort(Comparator.comparingDouble(replica -> getLatency(replica.getCoreUrl())));
+        final long ordering = orderings.computeIfAbsent(keyOf(shard, replicas),
+                key -> new AtomicLong()).incrementAndGet();
+        if (ordering % probeInterval == 0) {
+            Replica probe = ordered.get(1);
+            for (Replica replica : ordered.subList(2, ordered.size())) {
+                if (getSample(replica.getCoreUrl()) < getSample(probe.getCoreUrl())) {
+                    probe = replica;
+                }
+            }
+            ordered.remove(probe);
+            ordered.add(0, probe);
+        }
+        return ordered;
+    }
+
+    @Override
+    public void onResponse(String coreUrl, long elapsedMillis) {
+        final long sample = samples.incrementAndGet();
+        measurements.merge(coreUrl, new Measurement(elapsedMillis, sample),
+                (measurement, update) -> new Measurement(
+                        measurement.latency + smoothing * (update.latency - measurement.latency), sample));
+    }
+
+    /**
+     * @param coreUrl core URL of replica
+     * @return smoothed latency in milliseconds, or -1 if not yet measured
+     */
+    double getLatency(String coreUrl) {
+        final Measurement measurement = measurements.get(coreUrl);
+        return measurement == null ? -1 : measurement.latency;
+    }
+
+    /* sequence number of the latest measurement, 0 if not yet measured */
+    private long getSample(String coreUrl) {
+        final Measurement measurement = measurements.get(coreUrl);
+        return measurement == null ? 0 : measurement.sample;
+    }
+
+    private static final class Measurement {
+        private final double latency;
+        private final long sample;
+
+        Measurement(double latency, long sample) {
+            this.latency = latency;
+            this.sample = sample;
+        }
+    }
+
+    /* shard names repeat across collections */
+    private static String keyOf(String shard, List<Replica> replicas) {
+        return replicas.get(0).getCollection() + '/' + shard;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.AbstractAnalysisFactory;
+import org.apache.lucene.analysis.util.CharFilterFactory;
+import org.apache.lucene.analysis.util.ClasspathResourceLoader;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+import org.apache.lucene.analysis.util.TokenizerFactory;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.schema.AnalyzerDefinition;
+import org.apache.solr.client.solrj.request.schema.FieldTypeDefinition;
+import org.apache.solr.client.solrj.request.schema.SchemaRequest;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Lucene analyzers built from the field type definitions of a collection
+ * schema, allowing field analysis to run in-process.
+ * <p>
+ * Analysis components referenced by the "solr." shorthand are resolved
+ * among the factories registered with Lucene, so components only found
+ * in Solr itself cannot be built locally. Resource files are read from
+ * the collection configuration in ZooKeeper, which requires a
+ * {@link CloudSolrClient}.
+ * </p>
+ * <p>
+ * This class requires lucene-analyzers-common on the classpath.
+ * </p>
+ */
+class LocalAnalyzers {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalAnalyzers.class);
+    private static final String FIELD_NAME = "field";
+    private static final String SOLR_PREFIX = "solr.";
+
+    private static final Map<String, Class<? extends CharFilterFactory>> CHAR_FILTERS =
+            bySimpleName(CharFilterFactory.availableCharFilters(), CharFilterFactory::lookupClass);
+    private static final Map<String, Class<? extends TokenizerFactory>> TOKENIZERS =
+            bySimpleName(TokenizerFactory.availableTokenizers(), TokenizerFactory::lookupClass);
+    private static final Map<String, Class<? extends TokenFilterFactory>> TOKEN_FILTERS =
+            bySimpleName(TokenFilterFactory.availableTokenFilters(), TokenFilterFactory::lookupClass);
+
+    private final SolrClient solrClient;
+    private final String collection;
+    private final Map<String, Optional<Analyzer>> analyzers = new ConcurrentHashMap<>();
+
+    LocalAnalyzers(SolrClient solrClient, String collection) {
+        this.solrClient = solrClient;
+        this.collection = collection;
+    }
+
+    /**
+     * Determines whether values of a field type can be analyzed locally,
+     * building the analyzer on first use
+     * @param fieldType field type name
+     * @return true if the index analyzer of the field type could be built
+     * @throws SolrServerException on failure to read the field type definition
+     */
+    boolean supports(String fieldType) throws SolrServerException {
+        return getAnalyzer(fieldType).isPresent();
+    }
+
+    /**
+     * Analyzes a value using the index analyzer of a field type
+     * @param fieldType field type name, for which {@link #supports(String)} returned true
+     * @param value value to be analyzed
+     * @return first token emitted by the analyzer, or null if there was none
+     * @throws IOException on failure to analyze
+     * @throws SolrServerException on failure to read the field type definition
+     */
+    String analyze(String fieldType, String value) throws IOException, SolrServerException {
+        try {
+            return analyze(getSupportedAnalyzer(fieldType), value);
+        } catch (AlreadyClosedException e) {
+            // cleared by another thread, analyze using the analyzer built anew
+            return analyze(getSupportedAnalyzer(fieldType), value);
+        }
+    }
+
+    private static String analyze(Analyzer analyzer, String value) throws IOException {
+        try (TokenStream tokenStream = analyzer.tokenStream(FIELD_NAME, value)) {
+            final CharTermAttribute term = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            final String result = tokenStream.incrementToken() ? term.toString() : null;
+            tokenStream.end();
+            return result;
+        }
+    }
+
+    /**
+     * Discards and closes all analyzers, so that they are built anew from
+     * the current field type definitions on next use
+     */
+    void clear() {
+        final Iterator<Optional<Analyzer>> iterator = analyzers.values().iterator();
+        while (iterator.hasNext()) {
+            final Optional<Analyzer> analyzer = iterator.next();
+            iterator.remove();
+            analyzer.ifPresent(Analyzer::close);
+        }
+    }
+
+    private Analyzer getSupportedAnalyzer(String fieldType) throws SolrServerException {
+        return getAnalyzer(fieldType)
+                .orElseThrow(() -> new IllegalStateException("No local analyzer for type '" + fieldType + "'"));
+    }
+
+    private Optional<Analyzer> getAnalyzer(String fieldType) throws SolrServerException {
+        Optional<Analyzer> analyzer = analyzers.get(fieldType);
+        if (analyzer == null) {
+            analyzer = build(fieldType);
+            analyzers.put(fieldType, analyzer);
+        }
+        return analyzer;
+    }
+
+    private Optional<Analyzer> build(String fieldType) throws SolrServerException {
+        final FieldTypeDefinition definition;
+        try {
+            definition = new SchemaRequest.FieldType(fieldType).process(solrClient, collection).getFieldType();
+        } catch (IOException e) {
+            throw new SolrServerException("Unable to read definition of field type '" + fieldType + "'", e);
+        }
+        final AnalyzerDefinition analyzer = definition.getIndexAnalyzer() != null
+                ? definition.getIndexAnalyzer() : definition.getAnalyzer();
+        if (analyzer == null || analyzer.getTokenizer() == null) {
+            LOGGER.info("Field type '{}' has no analyzer chain, using remote analysis", fieldType);
+            return Optional.empty();
+        }
+        try {
+            final CustomAnalyzer.Builder builder = CustomAnalyzer.builder(new ConfigResourceLoader());
+            if (analyzer.getCharFilters() != null) {
+                for (Map<String, Object> charFilter : analyzer.getCharFilters()) {
+                    final String name = (String) charFilter.get("name");
+                    if (name != null) {
+                        builder.addCharFilter(name, getArgs(charFilter));
+                    } else {
+                        builder.addCharFilter(resolve(charFilter, CHAR_FILTERS, CharFilterFactory.class),
+                                getArgs(charFilter));
+                    }
+                }
+            }
+            final Map<String, Object> tokenizer = analyzer.getTokenizer();
+            final String tokenizerName = (String) tokenizer.get("name");
+            if (tokenizerName != null) {
+                builder.withTokenizer(tokenizerName, getArgs(tokenizer));
+            } else {
+                builder.withTokenizer(resolve(tokenizer, TOKENIZERS, TokenizerFactory.class), getArgs(tokenizer));
+            }
+            if (analyzer.getFilters() != null) {
+                for (Map<String, Object> filter : analyzer.getFilters()) {
+                    final String name = (String) filter.get("name");
+                    if (name != null) {
+                        builder.addTokenFilter(name, getArgs(filter));
+                    } else {
+                        builder.addTokenFilter(resolve(filter, TOKEN_FILTERS, TokenFilterFactory.class),
+                                getArgs(filter));
+                    }
+                }
+            }
+            return Optional.of(builder.build());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.info("Field type '{}' cannot be analyzed locally, using remote analysis: {}",
+                    fieldType, e.toString());
+            return Optional.empty();
+        }
+    }
+
+    private static <T extends AbstractAnalysisFactory> Class<? extends T> resolve(
+            Map<String, Object> component, Map<String, Class<? extends T>> bySimpleName, Class<T> type) {
+        final String className = (String) component.get("class");
+        if (className == null) {
+            throw new IllegalArgumentException("Analysis component without class or name: " + component);
+        }
+        if (className.startsWith(SOLR_PREFIX)) {
+            final Class<? extends T> factoryClass = bySimpleName.get(className.substring(SOLR_PREFIX.length()));
+            if (factoryClass == null) {
+                throw new IllegalArgumentException("Unknown analysis component " + className);
+            }
+            return factoryClass;
+        }
+        try {
+            return Class.forName(className).asSubclass(type);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unknown analysis component " + className, e);
+        }
+    }
+
+    private static Map<String, String> getArgs(Map<String, Object> component) {
+        final Map<String, String> args = new HashMap<>();
+        for (Map.Entry<String, Object> entry : component.entrySet()) {
+            if (!"class".equals(entry.getKey()) && !"name".equals(entry.getKey())) {
+                args.put(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+        return args;
+    }
+
+    private static <T> Map<String, Class<? extends T>> bySimpleName(
+            Set<String> spiNames, Function<String, Class<? extends T>> lookup) {
+        final Map<String, Class<? extends T>> classes = new HashMap<>();
+        for (String spiName : spiNames) {
+            final Class<? extends T> factoryClass = lookup.apply(spiName);
+            classes.put(factoryClass.getSimpleName(), factoryClass);
+        }
+        return classes;
+    }
+
+    /* Reads resource files from the configuration of the collection in ZooKeeper */
+    private class ConfigResourceLoader implements ResourceLoader {
+        private final ResourceLoader classpathResourceLoader = new ClasspathResourceLoader(LocalAnalyzers.class);
+
+        @Override
+        public InputStream openResource(String resource) throws IOException {
+            if (!(solrClient instanceof CloudSolrClient)) {
+                throw new IOException("Resource '" + resource + "' can only be read through a CloudSolrClient");
+            }
+            final ZkStateReader zkStateReader = ((CloudSolrClient) solrClient).getZkStateReader();
+            try {
+                final String path = ZkStateReader.CONFIGS_ZKNODE + "/"
+                        + zkStateReader.readConfigName(collection) + "/" + resource;
+                return new ByteArrayInputStream(zkStateReader.getZkClient().getData(path, null, null, true));
+            } catch (KeeperException e) {
+                throw new IOException("Unable to read resource '" + resource + "'", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading resource '" + resource + "'", e);
+            }
+        }
+
+        @Override
+        public <T> Class<? extends T> findClass(String cname, Class<T> expectedType) {
+            return classpathResourceLoader.findClass(cname, expectedType);
+        }
+
+        @Override
+        public <T> T newInstance(String cname, Class<T> expectedType) {
+            return classpathResourceLoader.newInstance(cname, expectedType);
+        }
+    }
+}
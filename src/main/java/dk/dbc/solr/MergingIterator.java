@@ -0,0 +1,64 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * K-way merge of individually sorted iterators into a single sorted iterator.
+ * Elements comparing equal are returned in the order of their source iterators.
+ * @param <T> element type
+ */
+class MergingIterator<T> implements Iterator<T> {
+    private final PriorityQueue<Head<T>> heads;
+
+    MergingIterator(List<? extends Iterator<T>> iterators, Comparator<? super T> comparator) {
+        final Comparator<Head<T>> headComparator = (head1, head2) -> {
+            final int result = comparator.compare(head1.element, head2.element);
+            return result != 0 ? result : Integer.compare(head1.source, head2.source);
+        };
+        heads = new PriorityQueue<>(Math.max(1, iterators.size()), headComparator);
+        for (int i = 0; i < iterators.size(); i++) {
+            final Iterator<T> iterator = iterators.get(i);
+            if (iterator.hasNext()) {
+                heads.add(new Head<>(iterator.next(), iterator, i));
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        final Head<T> head = heads.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        if (head.iterator.hasNext()) {
+            heads.add(new Head<>(head.iterator.next(), head.iterator, head.source));
+        }
+        return head.element;
+    }
+
+    private static class Head<T> {
+        private final T element;
+        private final Iterator<T> iterator;
+        private final int source;
+
+        Head(T element, Iterator<T> iterator, int source) {
+            this.element = element;
+            this.iterator = iterator;
+            this.source = source;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over a list of independent partitions of a result, for
+ * instance one per shard. Splitting hands off whole partitions, so each
+ * thread of a parallel stream drives its own partitions, and only splits
+ * within a partition once a single partition remains.
+ * <p>
+ * If the partitions are given in encounter order the spliterator is
+ * {@link Spliterator#ORDERED}, otherwise partitions are traversed one
+ * after the other with no particular order implied.
+ * </p>
+ * @param <T> element type
+ */
+class PartitionSpliterator<T> implements Spliterator<T> {
+    private final List<Spliterator<T>> partitions;
+    private final boolean ordered;
+    private int index;
+
+    PartitionSpliterator(List<Spliterator<T>> partitions, boolean ordered) {
+        this.partitions = new ArrayList<>(partitions);
+        this.ordered = ordered;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        while (index < partitions.size()) {
+            if (partitions.get(index).tryAdvance(action)) {
+                return true;
+            }
+            index++;
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        while (index < partitions.size()) {
+            partitions.get(index++).forEachRemaining(action);
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        final int remaining = partitions.size() - index;
+        if (remaining > 1) {
+            final int mid = index + remaining / 2;
+            final Spliterator<T> prefix = new PartitionSpliterator<>(partitions.subList(index, mid), ordered);
+            index = mid;
+            return prefix;
+        }
+        if (remaining == 1) {
+            return partitions.get(index).trySplit();
+        }
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        long size = 0;
+        for (int i = index; i < partitions.size(); i++) {
+            size += partitions.get(i).estimateSize();
+            if (size < 0) {
+                return Long.MAX_VALUE;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        int characteristics = SIZED | SUBSIZED | NONNULL;
+        for (int i = index; i < partitions.size(); i++) {
+            characteristics &= partitions.get(i).characteristics();
+        }
+        return ordered ? characteristics | ORDERED : characteristics & ~ORDERED;
+    }
+}
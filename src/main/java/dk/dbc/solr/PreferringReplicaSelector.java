@@ -0,0 +1,56 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.cloud.Replica;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Orders replicas matching a predicate before the remaining ones,
+ * leaving the order within each group to a fallback selector
+ */
+class PreferringReplicaSelector implements ReplicaSelector {
+    private static final String PREFERRED_SUFFIX = "\u0000preferred";
+
+    private final Predicate<Replica> preferred;
+    private final ReplicaSelector fallback;
+
+    PreferringReplicaSelector(Predicate<Replica> preferred, ReplicaSelector fallback) {
+        this.preferred = preferred;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public List<Replica> order(String shard, List<Replica> replicas) {
+        final List<Replica> matching = new ArrayList<>(replicas.size());
+        final List<Replica> remaining = new ArrayList<>(replicas.size());
+        for (Replica replica : replicas) {
+            if (preferred.test(replica)) {
+                matching.add(replica);
+            } else {
+                remaining.add(replica);
+            }
+        }
+        // each group is ordered under a key of its own, so that the state the
+        // fallback keeps per shard advances once per ordering of the group
+        final List<Replica> ordered = new ArrayList<>(replicas.size());
+        if (!matching.isEmpty()) {
+            ordered.addAll(fallback.order(shard + PREFERRED_SUFFIX, matching));
+        }
+        if (!remaining.isEmpty()) {
+            ordered.addAll(fallback.order(shard, remaining));
+        }
+        return ordered;
+    }
+
+    @Override
+    public void onResponse(String coreUrl, long elapsedMillis) {
+        fallback.onResponse(coreUrl, elapsedMillis);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocumentList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds a {@link TermDictionary} snapshot of a field, which can be
+ * replaced by a fresh snapshot on demand or in the background.
+ * <p>
+ * Background refreshes poll a fingerprint of the index, made up of the
+ * number of documents and the highest document version, and only reload
+ * the terms when it has changed, that is when new documents have been
+ * committed. Readers keep using the current snapshot while a new one is
+ * being loaded, and if loading fails the current snapshot is kept.
+ * </p>
+ */
+public class RefreshingTermDictionary implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RefreshingTermDictionary.class);
+    private static final String VERSION_FIELD = "_version_";
+
+    private final SolrClient solrClient;
+    private final String collection;
+    private final String field;
+    private final int pageSize;
+
+    private volatile TermDictionary termDictionary;
+    private String fingerprint;
+    private ScheduledFuture<?> scheduledRefresh;
+
+    /**
+     * Creates term dictionary holder loading the initial snapshot
+     * @param solrClient client
+     * @param collection collection name
+     * @param field name of field
+     * @param pageSize number of terms requested per page when loading
+     * @throws IOException on failure to communicate with Solr
+     * @throws SolrServerException on failure to load the terms
+     */
+    public RefreshingTermDictionary(SolrClient solrClient, String collection, String field, int pageSize)
+            throws IOException, SolrServerException {
+        this.solrClient = solrClient;
+        this.collection = collection;
+        this.field = field;
+        this.pageSize = pageSize;
+        refresh();
+    }
+
+    /**
+     * @return current snapshot
+     */
+    public TermDictionary get() {
+        return termDictionary;
+    }
+
+    /**
+     * Unconditionally replaces the current snapshot, for instance
+     * right after committing changes to the field
+     * @throws IOException on failure to communicate with Solr
+     * @throws SolrServerException on failure to load the terms
+     */
+    public synchronized void refresh() throws IOException, SolrServerException {
+        final String currentFingerprint = getIndexFingerprint();
+        load(currentFingerprint);
+    }
+
+    /**
+     * Replaces the current snapshot if the index has changed
+     * since the current snapshot was loaded
+     * @return true if the snapshot was replaced, otherwise false
+     * @throws IOException on failure to communicate with Solr
+     * @throws SolrServerException on failure to load the terms
+     */
+    public synchronized boolean refreshIfChanged() throws IOException, SolrServerException {
+        final String currentFingerprint = getIndexFingerprint();
+        if (currentFingerprint.equals(fingerprint)) {
+            return false;
+        }
+        load(currentFingerprint);
+        return true;
+    }
+
+    /**
+     * Checks for index changes at a fixed interval, replacing
+     * the snapshot when a change is detected
+     * @param scheduler scheduler on which refreshes run, it is never shut down by this class
+     * @param interval time between checks
+     * @return this RefreshingTermDictionary
+     */
+    public synchronized RefreshingTermDictionary withScheduledRefresh(ScheduledExecutorService scheduler,
+                                                                      Duration interval) {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
+        scheduledRefresh = scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                if (refreshIfChanged()) {
+                    LOGGER.debug("refreshed terms of {}/{}: {} terms",
+                            collection, field, termDictionary.size());
+                }
+            } catch (IOException | SolrServerException | RuntimeException e) {
+                LOGGER.warn("Unable to refresh terms of {}/{}", collection, field, e);
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Stops scheduled refreshes
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+    }
+
+    private void load(String currentFingerprint) throws SolrServerException {
+        termDictionary = TermDictionary.load(createScan().withField(field), pageSize);
+        fingerprint = currentFingerprint;
+    }
+
+    private String getIndexFingerprint() throws IOException, SolrServerException {
+        final SolrQuery query = new SolrQuery("*:*");
+        query.setRows(1);
+        query.setFields(VERSION_FIELD);
+        query.setSort(VERSION_FIELD, SolrQuery.ORDER.desc);
+        final SolrDocumentList results = new QueryRequest(query)
+                .process(solrClient, collection).getResults();
+        final Object version = results.isEmpty() ? null : results.get(0).getFirstValue(VERSION_FIELD);
+        return results.getNumFound() + ":" + version;
+    }
+
+    private SolrScan createScan() {
+        if (solrClient instanceof CloudSolrClient) {
+            return new SolrScan((CloudSolrClient) solrClient, collection);
+        }
+        return new SolrScan(solrClient, collection);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.ZkStateReader;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Strategy choosing which replicas of a shard requests are routed to.
+ * <p>
+ * Replicas are handed to the strategy in the order of the cluster state
+ * and returned in order of preference. The most preferred replica is the
+ * one addressed by distributed requests, the remaining ones are only used
+ * when failing over requests sent directly to a shard.
+ * </p>
+ * <p>
+ * Implementations must be thread safe, since one selector is typically
+ * shared by all requests against a collection.
+ * </p>
+ */
+public interface ReplicaSelector {
+    /**
+     * @param shard shard name
+     * @param replicas active replicas of the shard, never empty
+     * @return the given replicas in order of preference
+     */
+    List<Replica> order(String shard, List<Replica> replicas);
+
+    /**
+     * Called when a replica has answered a request
+     * @param coreUrl core URL of the replica
+     * @param elapsedMillis time taken by the request in milliseconds
+     */
+    default void onResponse(String coreUrl, long elapsedMillis) {}
+
+    /**
+     * @return selector cycling through the replicas of each shard
+     */
+    static ReplicaSelector roundRobin() {
+        return new RoundRobinReplicaSelector();
+    }
+
+    /**
+     * Creates selector preferring replicas with the lowest exponentially
+     * weighted moving average of their response times. Replicas not yet
+     * measured are preferred over measured ones, so that every replica
+     * gets measured. Every 100 orderings of a shard the replica measured
+     * least recently is preferred instead, so that slow replicas are
+     * measured again.
+     * @param smoothing weight of a new measurement in the average, in (0, 1]
+     * @return selector preferring the fastest replicas
+     */
+    static ReplicaSelector lowestLatency(double smoothing) {
+        return new LatencyAwareReplicaSelector(smoothing);
+    }
+
+    /**
+     * Creates selector preferring replicas with the lowest exponentially
+     * weighted moving average of their response times, like
+     * {@link #lowestLatency(double)}, but probing the replica measured least
+     * recently every given number of orderings of a shard
+     * @param smoothing weight of a new measurement in the average, in (0, 1]
+     * @param probeInterval number of orderings between probes, at least 2
+     * @return selector preferring the fastest replicas
+     */
+    static ReplicaSelector lowestLatency(double smoothing, int probeInterval) {
+        return new LatencyAwareReplicaSelector(smoothing, probeInterval);
+    }
+
+    /**
+     * Creates selector preferring replicas matching the given predicate,
+     * for instance replicas in the same zone as the client, cycling through
+     * the replicas within the preferred and the remaining replicas
+     * @param preferred predicate selecting the preferred replicas
+     * @return selector preferring matching replicas
+     */
+    static ReplicaSelector preferring(Predicate<Replica> preferred) {
+        return preferring(preferred, roundRobin());
+    }
+
+    /**
+     * Creates selector preferring replicas matching the given predicate,
+     * keeping the order of the given fallback selector within the preferred
+     * and the remaining replicas
+     * @param preferred predicate selecting the preferred replicas
+     * @param fallback selector ordering replicas which are equally preferred
+     * @return selector preferring matching replicas
+     */
+    static ReplicaSelector preferring(Predicate<Replica> preferred, ReplicaSelector fallback) {
+        return new PreferringReplicaSelector(preferred, fallback);
+    }
+
+    /**
+     * @return selector preferring the leader of each shard
+     */
+    static ReplicaSelector leaderFirst() {
+        return preferring(replica -> replica.getBool(ZkStateReader.LEADER_PROP, false));
+    }
+
+    /**
+     * @param nodeName name of the preferred node as known by the cluster
+     *                 state, for example 'host:8983_solr'
+     * @return selector preferring replicas on the given node
+     */
+    static ReplicaSelector preferNode(String nodeName) {
+        return preferring(replica -> nodeName.equals(replica.getNodeName()));
+    }
+}
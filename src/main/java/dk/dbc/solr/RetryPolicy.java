@@ -0,0 +1,78 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Retries failed requests with exponential backoff.
+ * Failures reported by Solr with a client error (4xx) status are not retried.
+ */
+class RetryPolicy {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class);
+
+    static final RetryPolicy NONE = new RetryPolicy(0, Duration.ZERO);
+
+    @FunctionalInterface
+    interface Request<T> {
+        T execute() throws IOException, SolrServerException;
+    }
+
+    private final int maxRetries;
+    private final Duration initialBackoff;
+
+    RetryPolicy(int maxRetries, Duration initialBackoff) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Number of retries must not be negative: " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+    }
+
+    int getMaxRetries() {
+        return maxRetries;
+    }
+
+    Duration getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    <T> T execute(Request<T> request) throws IOException, SolrServerException {
+        long backoffMs = initialBackoff.toMillis();
+        int attempt = 0;
+        while (true) {
+            try {
+                return request.execute();
+            } catch (IOException | SolrServerException | SolrException e) {
+                if (attempt++ >= maxRetries || !isRetryable(e)) {
+                    throw e;
+                }
+                LOGGER.warn("Request failed on attempt {}, retrying in {} ms: {}", attempt, backoffMs, e.toString());
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                backoffMs = Math.max(1, backoffMs * 2);
+            }
+        }
+    }
+
+    private static boolean isRetryable(Exception e) {
+        if (e instanceof SolrException) {
+            final int code = ((SolrException) e).code();
+            return code < 400 || code >= 500;
+        }
+        return true;
+    }
+}
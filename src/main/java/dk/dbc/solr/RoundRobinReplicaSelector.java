@@ -0,0 +1,42 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.cloud.Replica;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cycles the preferred replica of each shard through its replicas,
+ * shards of different collections being cycled independently
+ */
+class RoundRobinReplicaSelector implements ReplicaSelector {
+    private final ConcurrentMap<String, AtomicInteger> positions = new ConcurrentHashMap<>();
+
+    @Override
+    public List<Replica> order(String shard, List<Replica> replicas) {
+        final int size = replicas.size();
+        if (size <= 1) {
+            return replicas;
+        }
+        final int offset = Math.floorMod(
+                positions.computeIfAbsent(keyOf(shard, replicas), key -> new AtomicInteger())
+                        .getAndIncrement(), size);
+        final List<Replica> ordered = new ArrayList<>(size);
+        ordered.addAll(replicas.subList(offset, size));
+        ordered.addAll(replicas.subList(0, offset));
+        return ordered;
+    }
+
+    /* shard names repeat across collections */
+    private static String keyOf(String shard, List<Replica> replicas) {
+        return replicas.get(0).getCollection() + '/' + shard;
+    }
+}
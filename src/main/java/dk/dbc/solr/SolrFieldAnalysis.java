@@ -8,17 +8,36 @@ package dk.dbc.solr;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.DocumentAnalysisRequest;
+import org.apache.solr.client.solrj.request.schema.SchemaRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.util.NamedList;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A request for the org.apache.solr.handler.FieldAnalysisRequestHandler
  */
 public class SolrFieldAnalysis {
+    private static final String BATCH_ID = "batch";
+    private static final String DYNAMIC_FIELD_STEM = "analysis";
+
     private final SolrClient solrClient;
     private final String collection;
+    private final Map<String, Optional<String>> analysisFields = new ConcurrentHashMap<>();
+    private int batchSize = 1000;
+    private String uniqueKey;
+    private FieldAnalysisCache cache;
+    private LocalAnalyzers localAnalyzers;
+    private volatile long schemaVersion = 0;
 
     public SolrFieldAnalysis(SolrClient solrClient, String collection) {
         this.solrClient = solrClient;
@@ -33,6 +52,19 @@ public class SolrFieldAnalysis {
      * @throws SolrServerException if unable to perform field analysis
      */
     public String byFieldType(String fieldType, String fieldValue) throws SolrServerException {
+        final long version = checkSchemaVersion();
+        final String cached = getCached(fieldType, fieldValue);
+        if (cached != null) {
+            return cached;
+        }
+        final String result = isLocal(fieldType)
+                ? analyzeLocally(fieldType, fieldValue)
+                : analyzeRemotely(fieldType, fieldValue);
+        putCached(version, fieldType, fieldValue, result);
+        return result;
+    }
+
+    private String analyzeRemotely(String fieldType, String fieldValue) throws SolrServerException {
         try {
             final SolrQuery query = new SolrQuery();
             query.setRequestHandler("/analysis/field");
@@ -45,6 +77,237 @@ public class SolrFieldAnalysis {
         }
     }
 
+    /**
+     * Enables caching of analysis results
+     * @param cache cache, which may be shared between SolrFieldAnalysis instances
+     * @return this SolrFieldAnalysis
+     */
+    public SolrFieldAnalysis withCache(FieldAnalysisCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Enables local analysis, building Lucene analyzers from the field type
+     * definitions read through the Schema API, so that values are analyzed
+     * in-process without any request to Solr.
+     * <p>
+     * Field types whose index analyzer cannot be built locally, for
+     * instance because it uses an analysis component only found in Solr or
+     * a resource file which cannot be read, are analyzed remotely. Resource
+     * files are read from the collection configuration in ZooKeeper, so
+     * they are only available when using a CloudSolrClient.
+     * </p>
+     * <p>
+     * Analyzers are built once per field type. When a cache is enabled
+     * (see {@link #withCache(FieldAnalysisCache)}) they are built anew after
+     * the cache has seen the schema of the collection change.
+     * </p>
+     * <p>
+     * Local analysis requires lucene-analyzers-common on the classpath.
+     * </p>
+     * @return this SolrFieldAnalysis
+     * @throws IllegalStateException if lucene-analyzers-common is not on the classpath
+     */
+    public SolrFieldAnalysis withLocalAnalysis() {
+        try {
+            Class.forName("org.apache.lucene.analysis.custom.CustomAnalyzer");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Local analysis requires lucene-analyzers-common", e);
+        }
+        this.localAnalyzers = new LocalAnalyzers(solrClient, collection);
+        return this;
+    }
+
+    private boolean isLocal(String fieldType) throws SolrServerException {
+        return localAnalyzers != null && localAnalyzers.supports(fieldType);
+    }
+
+    private String analyzeLocally(String fieldType, String fieldValue) throws SolrServerException {
+        final String result;
+        try {
+            result = localAnalyzers.analyze(fieldType, fieldValue);
+        } catch (IOException | RuntimeException e) {
+            throw new SolrServerException("Unable to complete local field analysis " +
+                    "for type='" + fieldType + "' and value='" + fieldValue + "'", e);
+        }
+        if (result == null) {
+            throw new SolrServerException("Local field analysis for type='" + fieldType +
+                    "' and value='" + fieldValue + "' resulted in no tokens");
+        }
+        return result;
+    }
+
+    /* Discards schema information and local analyzers when the cache
+       has seen the schema of the collection change, returning the
+       schema version which results are to be cached for */
+    private long checkSchemaVersion() {
+        if (cache == null) {
+            return 0;
+        }
+        if (solrClient instanceof CloudSolrClient) {
+            cache.watchSchema((CloudSolrClient) solrClient, collection);
+        }
+        final long version = cache.getSchemaVersion(collection);
+        if (version != schemaVersion) {
+            analysisFields.clear();
+            uniqueKey = null;
+            if (localAnalyzers != null) {
+                localAnalyzers.clear();
+            }
+            schemaVersion = version;
+        }
+        return version;
+    }
+
+    private String getCached(String fieldType, String fieldValue) {
+        if (cache == null) {
+            return null;
+        }
+        return cache.get(collection, fieldType, fieldValue);
+    }
+
+    private void putCached(long version, String fieldType, String fieldValue, String result) {
+        if (cache != null) {
+            cache.put(collection, version, fieldType, fieldValue, result);
+        }
+    }
+
+    /**
+     * Sets the maximum number of values analyzed per request
+     * by {@link #byFieldType(String, Collection)}
+     * @param batchSize number of values
+     * @return this SolrFieldAnalysis
+     */
+    public SolrFieldAnalysis withBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Analyze values using phases defined by given field type, packing
+     * up to batch size values into each request.
+     * <p>
+     * The values are sent to the org.apache.solr.handler.DocumentAnalysisRequestHandler
+     * as the values of a single document field having the given type, so the
+     * schema must contain such a field or dynamic field. If it does not, the
+     * values are analyzed one at a time using {@link #byFieldType(String, String)}.
+     * </p>
+     * @param fieldType field type name on which analysis should be performed
+     * @param fieldValues values to be analyzed
+     * @return values resulting from field analysis in the order of the given values
+     * @throws SolrServerException if unable to perform field analysis
+     */
+    public List<String> byFieldType(String fieldType, Collection<String> fieldValues) throws SolrServerException {
+        final long version = checkSchemaVersion();
+        final List<String> results = new ArrayList<>(fieldValues.size());
+        // values not cached along with their positions in the result
+        final List<String> values = new ArrayList<>();
+        final List<Integer> positions = new ArrayList<>();
+        for (String fieldValue : fieldValues) {
+            final String cached = getCached(fieldType, fieldValue);
+            if (cached == null) {
+                values.add(fieldValue);
+                positions.add(results.size());
+            }
+            results.add(cached);
+        }
+        if (values.isEmpty()) {
+            return results;
+        }
+        final List<String> analyzed = new ArrayList<>(values.size());
+        final boolean local = isLocal(fieldType);
+        final Optional<String> fieldName = local ? Optional.empty() : getAnalysisField(fieldType);
+        if (local) {
+            for (String value : values) {
+                analyzed.add(analyzeLocally(fieldType, value));
+            }
+        } else if (!fieldName.isPresent()) {
+            for (String value : values) {
+                analyzed.add(analyzeRemotely(fieldType, value));
+            }
+        } else {
+            for (int from = 0; from < values.size(); from += batchSize) {
+                final List<String> batch = values.subList(from, Math.min(from + batchSize, values.size()));
+                try {
+                    analyzed.addAll(analyzeBatch(fieldName.get(), batch));
+                } catch (Exception e) {
+                    throw new SolrServerException("Unable to complete field analysis request " +
+                            "for type='" + fieldType + "' and " + batch.size() + " values", e);
+                }
+            }
+        }
+        for (int i = 0; i < analyzed.size(); i++) {
+            results.set(positions.get(i), analyzed.get(i));
+            putCached(version, fieldType, values.get(i), analyzed.get(i));
+        }
+        return results;
+    }
+
+    private List<String> analyzeBatch(String fieldName, List<String> values)
+            throws IOException, SolrServerException {
+        final SolrInputDocument document = new SolrInputDocument();
+        document.setField(uniqueKey, BATCH_ID);
+        for (String value : values) {
+            document.addField(fieldName, value);
+        }
+        final DocumentAnalysisRequest request = new DocumentAnalysisRequest().addDocument(document);
+        final NamedList<Object> response = solrClient.request(request, collection);
+        final NamedList<Object> analysis = getValue(response, "analysis");
+        final NamedList<Object> batch = getValue(analysis, BATCH_ID);
+        final NamedList<Object> field = getValue(batch, fieldName);
+        final NamedList<Object> index = getValue(field, "index");
+        if (index.size() != values.size()) {
+            throw new IllegalStateException("Expected " + values.size() +
+                    " analyzed values in response, got " + index.size());
+        }
+        final List<String> results = new ArrayList<>(values.size());
+        for (int i = 0; i < index.size(); i++) {
+            @SuppressWarnings("unchecked")
+            final NamedList<Object> phases = (NamedList<Object>) index.getVal(i);
+            results.add(getResultValue(phases));
+        }
+        return results;
+    }
+
+    /* Finds a field, or makes up the name of a dynamic field,
+       having the given type */
+    private Optional<String> getAnalysisField(String fieldType) throws SolrServerException {
+        final Optional<String> cached = analysisFields.get(fieldType);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            if (uniqueKey == null) {
+                uniqueKey = new SchemaRequest.UniqueKey().process(solrClient, collection).getUniqueKey();
+            }
+            Optional<String> fieldName = new SchemaRequest.Fields().process(solrClient, collection)
+                    .getFields().stream()
+                    .filter(field -> fieldType.equals(field.get("type")))
+                    .map(field -> (String) field.get("name"))
+                    .filter(name -> !name.equals(uniqueKey))
+                    .findFirst();
+            if (!fieldName.isPresent()) {
+                fieldName = new SchemaRequest.DynamicFields().process(solrClient, collection)
+                        .getDynamicFields().stream()
+                        .filter(field -> fieldType.equals(field.get("type")))
+                        .map(field -> ((String) field.get("name")).replace("*", DYNAMIC_FIELD_STEM))
+                        .findFirst();
+            }
+            analysisFields.put(fieldType, fieldName);
+            return fieldName;
+        } catch (IOException e) {
+            throw new SolrServerException("Unable to read schema of collection '" + collection + "'", e);
+        }
+    }
+
     /*
         I would have liked to use the existing models in solrj like so:
 
@@ -79,11 +342,16 @@ public class SolrFieldAnalysis {
         final NamedList<Object> field_types = getValue(analysis, "field_types");
         final NamedList<Object> field = getValue(field_types, fieldType);
         final NamedList<Object> index = getValue(field,"index");
-        if (index.size() == 0) {
+        return getResultValue(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private String getResultValue(NamedList<Object> phases) {
+        if (phases.size() == 0) {
             throw new IllegalStateException("'index' element is empty");
         }
-        final ArrayList<NamedList<Object>> resultPhase =
-                (ArrayList<NamedList<Object>>) index.getVal(index.size() - 1);
+        final List<NamedList<Object>> resultPhase =
+                (List<NamedList<Object>>) phases.getVal(phases.size() - 1);
         final String resultValue = (String) resultPhase.get(0).get("text");
         if (resultValue == null) {
             throw new IllegalStateException("Result of field analysis was null");
@@ -12,18 +12,30 @@ import org.apache.solr.client.solrj.impl.CloudSolrClient;
 import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.TermsResponse;
-import org.apache.solr.common.cloud.DocCollection;
-import org.apache.solr.common.cloud.Replica;
-import org.apache.solr.common.cloud.Slice;
-import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.TermsParams;
+import org.apache.solr.common.util.NamedList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Index scans using the Solr Terms Component
@@ -32,11 +44,17 @@ import java.util.stream.Collectors;
 public class SolrScan {
     private static final Logger LOGGER = LoggerFactory.getLogger(SolrScan.class);
     private static final String HANDLER = "/terms";
+    private static final int FAN_OUT_PAGE_SIZE = 1000;
+    private static final String JSON_NL = "json.nl";
 
     private final SolrClient solrClient;
     private final SolrQuery solrQuery;
     private final String collection;
 
+    private Executor fanOutExecutor;
+    private ReplicaSelector replicaSelector;
+    private SolrScanCache cache;
+
     /**
      * @see <a href="https://docs.oracle.com/javase/tutorial/essential/regex/pattern.html">Regex flags</a>
      */
@@ -56,18 +74,14 @@ public class SolrScan {
         INDEX
     }
 
+    /**
+     * Creates a scan of a SolrCloud collection, which is distributed
+     * over the shards active at the time of execution
+     * @param solrClient client connected to the cluster
+     * @param collection collection name
+     */
     public SolrScan(CloudSolrClient solrClient, String collection) {
         this((SolrClient) solrClient, collection);
-        solrClient.connect();
-        final List<String> shardUrls = getShardUrls();
-        LOGGER.debug("shard urls: {}", shardUrls);
-        if (shardUrls.size() > 1) {
-            // The terms component does not seem to work
-            // transparently with CloudSolrClient so we still
-            // need to set it up for distributed operation
-            solrQuery.add("shards.qt", HANDLER);
-            solrQuery.add("shards", String.join(",", shardUrls));
-        }
     }
 
     public SolrScan(SolrClient solrClient, String collection) {
@@ -205,34 +219,385 @@ public class SolrScan {
         return solrQuery.getTermsUpperInclusive();
     }
 
+    /**
+     * Enables client side shard fan-out, so that {@link #execute()} sends a
+     * non-distributed terms request directly to a replica of each shard
+     * concurrently and merges the shard responses, instead of having a
+     * single node collect and merge the terms from all shards.
+     * <p>
+     * When sorting by index, the shard terms are paged through lazily and
+     * merged until the limit is satisfied. When sorting by count, the whole
+     * dictionary of each shard is paged through in index order and the
+     * frequencies summed before the terms are sorted and limited, so counts
+     * are exact, as they are for Solr's own distributed terms. Count
+     * restrictions are applied to the summed frequencies.
+     * </p>
+     * <p>
+     * Fan-out only applies to scans created with a CloudSolrClient.
+     * </p>
+     * @param executor executor on which shard requests are sent, it is never shut down by this class
+     * @return this SolrScan
+     */
+    public SolrScan withShardFanOut(Executor executor) {
+        this.fanOutExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Routes the requests of this scan to the replicas chosen by the given
+     * selector instead of letting Solr pick a replica of each shard at random.
+     * <p>
+     * Distributed requests address the most preferred replica of each shard.
+     * Their response times cover all shards, so the time taken is only
+     * reported to the selector when a single replica was addressed. When
+     * combined with {@link #withShardFanOut(Executor)} requests fail over to
+     * the remaining replicas in order of preference, and response times are
+     * measured per replica.
+     * </p>
+     * <p>
+     * Replica selection only applies to scans created with a CloudSolrClient.
+     * </p>
+     * @param replicaSelector replica selection strategy
+     * @return this SolrScan
+     * @see ReplicaSelector
+     */
+    public SolrScan withReplicaSelector(ReplicaSelector replicaSelector) {
+        this.replicaSelector = replicaSelector;
+        return this;
+    }
+
+    /**
+     * Answers {@link #execute()} from the given cache when an identical scan
+     * of the collection has been executed recently, or is in progress.
+     * The returned responses are then shared and must not be modified.
+     * @param cache scan result cache
+     * @return this SolrScan
+     * @see SolrScanCache
+     */
+    public SolrScan withCache(SolrScanCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
     public TermsResponse execute() throws IOException, SolrServerException {
-        final QueryRequest request = new QueryRequest(solrQuery);
-        final QueryResponse response = request.process(solrClient, collection);
+        if (cache != null) {
+            return cache.get(solrClient, collection, solrQuery, this::executeUncached);
+        }
+        return executeUncached();
+    }
+
+    private TermsResponse executeUncached() throws IOException, SolrServerException {
+        if (fanOutExecutor != null && solrClient instanceof CloudSolrClient) {
+            return executeFannedOut((CloudSolrClient) solrClient);
+        }
+        final QueryResponse response = process(getDistributedQuery());
         if (response != null) {
             return response.getTermsResponse();
         }
         return null;
     }
 
-    private List<String> getShardUrls() {
-        final List<String> urls = new ArrayList<>();
-        final ZkStateReader zkStateReader = ((CloudSolrClient) solrClient).getZkStateReader();
-        final DocCollection docCollection = zkStateReader.getClusterState().getCollectionOrNull(collection);
-        if (docCollection != null) {
-            for (Slice slice : docCollection.getSlices()) {
-                final List<String> replicas = new ArrayList<>();
-                for (Replica replica : slice.getReplicas()) {
-                    if (replica.getState() == Replica.State.ACTIVE) {
-                        replicas.add(replica.getCoreUrl());
-                    }
+    /**
+     * Executes the scan like {@link #execute()}, but parses the response
+     * straight into a {@link CompactTermsResponse} holding the terms of
+     * each field in a single UTF-8 buffer, which for large scans creates
+     * far less garbage than a {@link TermsResponse}.
+     * <p>
+     * The response is requested in JSON format, and
+     * {@link #withShardFanOut(Executor)} does not apply.
+     * </p>
+     * @return compact terms response
+     * @throws IOException on failure to communicate with Solr
+     * @throws SolrServerException on failure to execute the scan
+     */
+    public CompactTermsResponse executeCompact() throws IOException, SolrServerException {
+        final SolrQuery query = getDistributedQuery().getCopy();
+        query.set(JSON_NL, "flat");
+        final QueryRequest request = new QueryRequest(query);
+        request.setResponseParser(new CompactTermsResponseParser());
+        final long start = System.nanoTime();
+        final NamedList<Object> response = solrClient.request(request, collection);
+        reportElapsed(query, start);
+        final CompactTermsResponse termsResponse =
+                (CompactTermsResponse) response.get(CompactTermsResponseParser.TERMS);
+        return termsResponse != null ? termsResponse : new CompactTermsResponse(Collections.emptyMap());
+    }
+
+    /**
+     * Iterates all terms of the scanned field in index order, lazily
+     * fetching pages of terms as the iteration progresses.
+     * <p>
+     * Each page starts after the last term of the preceding one, lower, upper,
+     * prefix, regex and count restrictions apply throughout. If a limit has
+     * been set it caps the total number of terms iterated.
+     * </p>
+     * @param pageSize number of terms requested per page
+     * @return iterator of terms
+     * @throws SolrServerException on failure to fetch the first page
+     */
+    public Iterator<TermsResponse.Term> iterate(int pageSize) throws SolrServerException {
+        return iterate(pageSize, null);
+    }
+
+    /**
+     * Iterates all terms of the scanned field in index order, lazily
+     * fetching pages of terms as the iteration progresses, and prefetching
+     * the page following the current one on the given executor
+     * @param pageSize number of terms requested per page
+     * @param executor executor on which pages are prefetched, or null to disable prefetching,
+     *                 it is never shut down by this class
+     * @return iterator of terms
+     * @throws SolrServerException on failure to fetch the first page
+     * @see #iterate(int)
+     */
+    public Iterator<TermsResponse.Term> iterate(int pageSize, Executor executor) throws SolrServerException {
+        final String field = getField();
+        if (field == null) {
+            throw new IllegalStateException("Iteration requires a field to be scanned");
+        }
+        final SolrQuery query = getDistributedQuery().getCopy();
+        // when counts are filtered after the limit has been applied
+        // pages may come up short before the end is reached
+        final boolean shortPageIsLast = query.get(TermsParams.TERMS_MINCOUNT) == null
+                && query.get(TermsParams.TERMS_MAXCOUNT) == null;
+        final String limit = query.get(TermsParams.TERMS_LIMIT);
+        return new TermIterator((after, size) -> fetchTerms(query, field, after, size,
+                this::process),
+                pageSize, limit == null ? -1 : Integer.parseInt(limit), shortPageIsLast, executor);
+    }
+
+    /**
+     * Streams all terms of the scanned field in index order
+     * @param pageSize number of terms requested per page
+     * @return sequential stream of terms
+     * @throws SolrServerException on failure to fetch the first page
+     * @see #iterate(int)
+     */
+    public Stream<TermsResponse.Term> stream(int pageSize) throws SolrServerException {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterate(pageSize),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private static List<TermsResponse.Term> fetchTerms(SolrQuery query, String field, String after, int pageSize,
+                                                       QueryExecutor executor)
+            throws IOException, SolrServerException {
+        final SolrQuery pageQuery = query.getCopy();
+        pageQuery.setTermsSortString(SortType.INDEX.name().toLowerCase());
+        pageQuery.setTermsLimit(pageSize);
+        if (after != null) {
+            pageQuery.setTermsLower(after);
+            pageQuery.setTermsLowerInclusive(false);
+        }
+        return getTerms(executor.execute(pageQuery), field);
+    }
+
+    private static List<TermsResponse.Term> getTerms(QueryResponse response, String field) {
+        final TermsResponse termsResponse = response == null ? null : response.getTermsResponse();
+        final List<TermsResponse.Term> terms = termsResponse == null ? null : termsResponse.getTerms(field);
+        return terms == null ? Collections.emptyList() : terms;
+    }
+
+    private TermsResponse executeFannedOut(CloudSolrClient cloudSolrClient)
+            throws IOException, SolrServerException {
+        final List<CollectionTopology.Shard> shards =
+                CollectionTopology.get(cloudSolrClient, collection).getShards();
+        if (shards.isEmpty()) {
+            throw new SolrServerException("No active shards found for collection '" + collection + "'");
+        }
+        // counts must be restricted after frequencies have been summed
+        final SolrQuery shardQuery = solrQuery.getCopy();
+        shardQuery.remove(TermsParams.TERMS_MINCOUNT);
+        shardQuery.remove(TermsParams.TERMS_MAXCOUNT);
+        shardQuery.remove(TermsParams.TERMS_FIELD);
+        final boolean totalTermFreq = solrQuery.getBool(TermsParams.TERMS_TTF, false);
+        final NamedList<NamedList<Object>> termsInfo = new NamedList<>();
+        for (String field : solrQuery.getTermsFields()) {
+            final SolrQuery fieldQuery = shardQuery.getCopy();
+            fieldQuery.addTermsField(field);
+            final List<TermsResponse.Term> terms = getSort() == SortType.INDEX
+                    ? mergeByIndex(cloudSolrClient, shards, fieldQuery, field)
+                    : mergeByCount(cloudSolrClient, shards, fieldQuery, field);
+            final NamedList<Object> fieldTerms = new NamedList<>();
+            for (TermsResponse.Term term : terms) {
+                if (totalTermFreq) {
+                    final NamedList<Object> frequencies = new NamedList<>();
+                    frequencies.add("df", term.getFrequency());
+                    frequencies.add("ttf", term.getTotalTermFreq());
+                    fieldTerms.add(term.getTerm(), frequencies);
+                } else {
+                    fieldTerms.add(term.getTerm(), term.getFrequency());
                 }
-                if (!replicas.isEmpty()) {
-                    // pipe '|' indicates that solr should choose a
-                    // shard replica randomly
-                    urls.add(String.join("|", replicas));
+            }
+            termsInfo.add(field, fieldTerms);
+        }
+        return new TermsResponse(termsInfo);
+    }
+
+    /* Lazily pages through the terms of each shard in index order,
+       merging them until the limit is satisfied */
+    private List<TermsResponse.Term> mergeByIndex(CloudSolrClient cloudSolrClient,
+                                                  List<CollectionTopology.Shard> shards,
+                                                  SolrQuery query, String field) throws SolrServerException {
+        final int limit = solrQuery.getTermsLimit();
+        final List<TermsResponse.Term> terms = new ArrayList<>();
+        if (limit == 0) {
+            return terms;
+        }
+        final int pageSize = limit > 0 && !hasCountRestriction()
+                ? Math.min(limit, FAN_OUT_PAGE_SIZE) : FAN_OUT_PAGE_SIZE;
+        mergeShardTerms(cloudSolrClient, shards, query, field, pageSize, term -> {
+            if (isWithinCountRestriction(term)) {
+                terms.add(term);
+            }
+            return limit < 0 || terms.size() < limit;
+        });
+        return terms;
+    }
+
+    /* Pages through the whole dictionary of each shard in index order,
+       summing frequencies before sorting and limiting, the way Solr's
+       own distributed terms requests all shard terms */
+    private List<TermsResponse.Term> mergeByCount(CloudSolrClient cloudSolrClient,
+                                                  List<CollectionTopology.Shard> shards,
+                                                  SolrQuery query, String field) throws SolrServerException {
+        final int limit = solrQuery.getTermsLimit();
+        final List<TermsResponse.Term> terms = new ArrayList<>();
+        mergeShardTerms(cloudSolrClient, shards, query, field, FAN_OUT_PAGE_SIZE, term -> {
+            if (isWithinCountRestriction(term)) {
+                terms.add(term);
+            }
+            return true;
+        });
+        return terms.stream()
+                .sorted(Comparator.comparingLong(TermsResponse.Term::getFrequency).reversed()
+                        .thenComparing(TermsResponse.Term::getTerm, SortClauseComparator::compareCodePoints))
+                .limit(limit < 0 ? Long.MAX_VALUE : limit)
+                .collect(Collectors.toList());
+    }
+
+    /* Merges the terms of all shards in index order, passing each term with
+       its frequencies summed over the shards to the consumer until it
+       returns false */
+    private void mergeShardTerms(CloudSolrClient cloudSolrClient, List<CollectionTopology.Shard> shards,
+                                 SolrQuery query, String field, int pageSize,
+                                 Predicate<TermsResponse.Term> consumer) throws SolrServerException {
+        final SolrQuery shardQuery = query.getCopy();
+        shardQuery.remove(TermsParams.TERMS_LIMIT);
+        final List<CompletableFuture<TermIterator>> openings = new ArrayList<>(shards.size());
+        for (CollectionTopology.Shard shard : shards) {
+            openings.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new TermIterator((after, size) -> fetchTerms(shardQuery, field, after, size,
+                            pageQuery -> shard.query(cloudSolrClient, pageQuery, replicaSelector)),
+                            pageSize, -1, true, fanOutExecutor);
+                } catch (SolrServerException e) {
+                    throw new CompletionException(e);
                 }
+            }, fanOutExecutor));
+        }
+        final List<TermIterator> iterators = new ArrayList<>(shards.size());
+        for (CompletableFuture<TermIterator> opening : openings) {
+            iterators.add(join(opening));
+        }
+        final Iterator<TermsResponse.Term> merged = new MergingIterator<>(iterators,
+                (term1, term2) -> SortClauseComparator.compareCodePoints(term1.getTerm(), term2.getTerm()));
+        TermsResponse.Term current = null;
+        while (merged.hasNext()) {
+            final TermsResponse.Term term = merged.next();
+            if (current != null && current.getTerm().equals(term.getTerm())) {
+                current.addFrequency(term.getFrequency());
+                current.addTotalTermFreq(term.getTotalTermFreq());
+                continue;
+            }
+            if (current != null && !consumer.test(current)) {
+                return;
             }
+            current = new TermsResponse.Term(term.getTerm(), term.getFrequency(), term.getTotalTermFreq());
+        }
+        if (current != null) {
+            consumer.test(current);
+        }
+    }
+
+    private boolean hasCountRestriction() {
+        return solrQuery.get(TermsParams.TERMS_MINCOUNT) != null
+                || solrQuery.get(TermsParams.TERMS_MAXCOUNT) != null;
+    }
+
+    private boolean isWithinCountRestriction(TermsResponse.Term term) {
+        final int maxCount = solrQuery.getTermsMaxCount();
+        return term.getFrequency() >= solrQuery.getTermsMinCount()
+                && (maxCount < 0 || term.getFrequency() <= maxCount);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws SolrServerException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SolrServerException) {
+                throw (SolrServerException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SolrServerException(cause);
+        }
+    }
+
+    @FunctionalInterface
+    private interface QueryExecutor {
+        QueryResponse execute(SolrQuery query) throws IOException, SolrServerException;
+    }
+
+    /* The terms component does not seem to work
+       transparently with CloudSolrClient so we still
+       need to set it up for distributed operation */
+    private SolrQuery getDistributedQuery() {
+        if (!(solrClient instanceof CloudSolrClient)) {
+            return solrQuery;
+        }
+        final CollectionTopology topology = CollectionTopology.get((CloudSolrClient) solrClient, collection);
+        if (topology.getShards().isEmpty()
+                || replicaSelector == null && topology.getShards().size() == 1) {
+            return solrQuery;
+        }
+        final String shards = replicaSelector == null
+                ? topology.getShardsParam() : getSelectedShardsParam(topology);
+        LOGGER.debug("shards: {}", shards);
+        final SolrQuery query = solrQuery.getCopy();
+        query.set(ShardParams.SHARDS_QT, HANDLER);
+        query.set(ShardParams.SHARDS, shards);
+        return query;
+    }
+
+    private String getSelectedShardsParam(CollectionTopology topology) {
+        final StringBuilder shards = new StringBuilder();
+        for (CollectionTopology.Shard shard : topology.getShards()) {
+            if (shards.length() > 0) {
+                shards.append(',');
+            }
+            shards.append(replicaSelector.order(shard.getName(), shard.getReplicas()).get(0).getCoreUrl());
+        }
+        return shards.toString();
+    }
+
+    private QueryResponse process(SolrQuery query) throws IOException, SolrServerException {
+        final long start = System.nanoTime();
+        final QueryResponse response = new QueryRequest(query).process(solrClient, collection);
+        reportElapsed(query, start);
+        return response;
+    }
+
+    private void reportElapsed(SolrQuery query, long start) {
+        final String shards = query.get(ShardParams.SHARDS);
+        // the time of a request spanning several replicas says nothing about each of them
+        if (replicaSelector != null && shards != null
+                && shards.indexOf(',') < 0 && shards.indexOf('|') < 0) {
+            replicaSelector.onResponse(shards, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
         }
-        return urls;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.LukeRequest;
+import org.apache.solr.client.solrj.response.TermsResponse;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Bounded least recently used cache of {@link SolrScan} results keyed on
+ * collection and scan parameters, with entries expiring after a fixed time
+ * to live (see {@link SolrScan#withCache(SolrScanCache)}).
+ * <p>
+ * Concurrent executions of identical scans are coalesced, so that only one
+ * of them sends a request to Solr while the others wait for its result.
+ * Failed scans are not cached.
+ * </p>
+ * <p>
+ * Optionally the index version of a collection is checked at a given
+ * interval when scans are looked up, and all results for the collection
+ * are invalidated when it has changed. For SolrCloud collections the
+ * version of each shard is read from its leader.
+ * </p>
+ * <p>
+ * Cached results are shared between callers and must not be modified.
+ * The cache is thread safe and is meant to be shared between SolrScan
+ * instances.
+ * </p>
+ */
+public class SolrScanCache {
+    private static final ReplicaSelector LEADER_FIRST = ReplicaSelector.leaderFirst();
+
+    private final long ttlNanos;
+    private final LinkedHashMap<String, CachedScan> entries;
+    private final Map<String, IndexVersion> indexVersions = new HashMap<>();
+
+    private long indexVersionCheckIntervalNanos = -1;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxEntries maximum number of cached results
+     * @param ttl time to live of cached results
+     */
+    public SolrScanCache(int maxEntries, Duration ttl) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Time to live must be positive");
+        }
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new LinkedHashMap<String, CachedScan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedScan> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Invalidates the results for a collection when its index version
+     * has changed, checking the version at most once per interval
+     * @param interval minimum time between index version checks for a collection
+     * @return this SolrScanCache
+     */
+    public synchronized SolrScanCache withIndexVersionCheck(Duration interval) {
+        indexVersionCheckIntervalNanos = interval.toNanos();
+        return this;
+    }
+
+    /**
+     * @return number of cached results, including scans in progress
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of lookups answered by a cached result or a scan in progress
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups causing a scan to be executed
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Removes all results for a collection
+     * @param collection collection name
+     */
+    public synchronized void invalidate(String collection) {
+        entries.values().removeIf(entry -> entry.collection.equals(collection));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Gets the cached result of a scan, executing the scan if no
+     * unexpired result is cached and the scan is not already in progress
+     * @param solrClient client used for index version checks
+     * @param collection collection scanned
+     * @param params scan parameters
+     * @param loader executes the scan
+     * @return scan result
+     * @throws IOException on failure to communicate with Solr
+     * @throws SolrServerException on failure to execute the scan
+     */
+    TermsResponse get(SolrClient solrClient, String collection, SolrParams params, Loader loader)
+            throws IOException, SolrServerException {
+        checkIndexVersion(solrClient, collection);
+        final String key = keyOf(collection, params);
+        final CachedScan entry;
+        final boolean load;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final CachedScan cached = entries.get(key);
+            if (cached != null && !cached.isExpired(now)) {
+                hits++;
+                entry = cached;
+                load = false;
+            } else {
+                misses++;
+                entry = new CachedScan(collection, now);
+                entries.put(key, entry);
+                load = true;
+            }
+        }
+        if (load) {
+            try {
+                entry.future.complete(loader.load());
+            } catch (Throwable e) {
+                // errors too, scans waiting for the entry would otherwise wait forever
+                synchronized (this) {
+                    entries.remove(key, entry);
+                }
+                entry.future.completeExceptionally(e);
+                throw e;
+            }
+        }
+        return join(entry.future);
+    }
+
+    /**
+     * Creates a key identifying a scan by all of its parameters
+     * @param collection collection scanned
+     * @param params scan parameters
+     * @return cache key
+     */
+    static String keyOf(String collection, SolrParams params) {
+        final StringBuilder key = new StringBuilder(String.valueOf(collection));
+        final TreeSet<String> names = new TreeSet<>();
+        final Iterator<String> nameIterator = params.getParameterNamesIterator();
+        while (nameIterator.hasNext()) {
+            names.add(nameIterator.next());
+        }
+        for (String name : names) {
+            for (String value : params.getParams(name)) {
+                key.append('\u0000').append(name).append('=').append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    private void checkIndexVersion(SolrClient solrClient, String collection)
+            throws IOException, SolrServerException {
+        final long intervalNanos;
+        final IndexVersion indexVersion;
+        synchronized (this) {
+            intervalNanos = indexVersionCheckIntervalNanos;
+            if (intervalNanos < 0) {
+                return;
+            }
+            indexVersion = indexVersions.computeIfAbsent(collection, name -> new IndexVersion());
+        }
+        // other lookups for the collection wait for an ongoing check
+        synchronized (indexVersion) {
+            final long now = System.nanoTime();
+            if (indexVersion.version != null && now - indexVersion.checkedAt < intervalNanos) {
+                return;
+            }
+            final String version = readIndexVersion(solrClient, collection);
+            if (indexVersion.version != null && !indexVersion.version.equals(version)) {
+                invalidate(collection);
+            }
+            indexVersion.version = version;
+            indexVersion.checkedAt = now;
+        }
+    }
+
+    private static String readIndexVersion(SolrClient solrClient, String collection)
+            throws IOException, SolrServerException {
+        final LukeRequest lukeRequest = new LukeRequest();
+        lukeRequest.setNumTerms(0);
+        lukeRequest.setShowSchema(false);
+        if (!(solrClient instanceof CloudSolrClient)) {
+            return String.valueOf(lukeRequest.process(solrClient, collection).getIndexInfo().get("version"));
+        }
+        final CloudSolrClient cloudSolrClient = (CloudSolrClient) solrClient;
+        final StringBuilder version = new StringBuilder();
+        for (CollectionTopology.Shard shard : CollectionTopology.get(cloudSolrClient, collection).getShards()) {
+            final NamedList<Object> response = shard.request(cloudSolrClient, lukeRequest, LEADER_FIRST);
+            final NamedList<?> indexInfo = (NamedList<?>) response.get("index");
+            version.append(shard.getName()).append('=')
+                    .append(indexInfo == null ? null : indexInfo.get("version")).append(',');
+        }
+        return version.toString();
+    }
+
+    private static TermsResponse join(CompletableFuture<TermsResponse> future)
+            throws IOException, SolrServerException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof SolrServerException) {
+                throw (SolrServerException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SolrServerException(cause);
+        }
+    }
+
+    @FunctionalInterface
+    interface Loader {
+        TermsResponse load() throws IOException, SolrServerException;
+    }
+
+    private class CachedScan {
+        private final String collection;
+        private final long createdAt;
+        private final CompletableFuture<TermsResponse> future = new CompletableFuture<>();
+
+        CachedScan(String collection, long createdAt) {
+            this.collection = collection;
+            this.createdAt = createdAt;
+        }
+
+        /* scans in progress never expire, so that
+           they keep being coalesced however long they take */
+        boolean isExpired(long now) {
+            return future.isDone() && now - createdAt > ttlNanos;
+        }
+    }
+
+    private static class IndexVersion {
+        private String version;
+        private long checkedAt;
+    }
+}
@@ -8,26 +8,71 @@ package dk.dbc.solr;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.InputStreamResponseParser;
 import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.HighlightParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.StatsParams;
+import org.apache.solr.common.util.NamedList;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Searches using the Solr SearchHandler
  * @see <a href="https://lucene.apache.org/solr/guide/6_6/common-query-parameters.html#common-query-parameters">Common parameters</a>
  */
 public class SolrSearch {
+    private static final String EXPORT_HANDLER = "/export";
+    private static final String DEFAULT_UNIQUE_KEY = "id";
+    private static final String PARTIAL_RESULTS = "partialResults";
+
     private final SolrClient solrClient;
     private final SolrQuery solrQuery;
     private final String collection;
+    private final Map<String, Boolean> sortMissingFirst = new HashMap<>();
+
+    private int prefetchDepth = 0;
+    private Executor prefetchExecutor;
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private int adaptiveMinRows = 0;
+    private int adaptiveMaxRows = 0;
+    private Duration targetPageLatency = Duration.ZERO;
+    private long maxPageBytes = 0;
+    private CursorMarkCache cursorMarkCache;
+    private int deepPagingThreshold;
+    private String uniqueKeyField = DEFAULT_UNIQUE_KEY;
 
     public SolrSearch(SolrClient solrClient, String collection) {
         this.solrClient = solrClient;
@@ -71,6 +116,34 @@ public class SolrSearch {
         return solrQuery.getSorts();
     }
 
+    /**
+     * Declares sort fields whose field type sets sortMissingFirst, so that
+     * documents missing a value are placed first when results from several
+     * shards are merged client side
+     * @param fields sort field names
+     * @return this SolrSearch
+     */
+    public SolrSearch withSortMissingFirst(String... fields) {
+        for (String field : fields) {
+            sortMissingFirst.put(field, true);
+        }
+        return this;
+    }
+
+    /**
+     * Declares sort fields whose field type sets sortMissingLast, so that
+     * documents missing a value are placed last when results from several
+     * shards are merged client side
+     * @param fields sort field names
+     * @return this SolrSearch
+     */
+    public SolrSearch withSortMissingLast(String... fields) {
+        for (String field : fields) {
+            sortMissingFirst.put(field, false);
+        }
+        return this;
+    }
+
     public SolrSearch withFields(String... fields) {
         solrQuery.setFields(fields);
         return this;
@@ -80,11 +153,225 @@ public class SolrSearch {
         return solrQuery.getFields();
     }
 
+    /**
+     * Enables prefetching for cursor based iteration, so that the pages
+     * following the one currently being consumed are requested in the background
+     * @param depth maximum number of pages to fetch ahead, zero disables prefetching
+     * @param executor executor on which the pages are fetched, it is
+     *                 never shut down by this class
+     * @return this SolrSearch
+     */
+    public SolrSearch withPrefetch(int depth, Executor executor) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Prefetch depth must not be negative: " + depth);
+        }
+        this.prefetchDepth = depth;
+        this.prefetchExecutor = executor;
+        return this;
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * Enables retrying of failed page requests during cursor based iteration,
+     * waiting initialBackoff before the first retry and doubling the wait
+     * for every subsequent one. Failures reported by Solr as client errors
+     * are never retried.
+     * <p>
+     * Requests whose response is streamed to a consumer as it is being
+     * decoded are not retried, since part of the page may already have
+     * been handed over.
+     * </p>
+     * @param maxRetries maximum number of retries per page, zero disables retrying
+     * @param initialBackoff wait before the first retry
+     * @return this SolrSearch
+     */
+    public SolrSearch withRetries(int maxRetries, Duration initialBackoff) {
+        this.retryPolicy = new RetryPolicy(maxRetries, initialBackoff);
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return retryPolicy.getMaxRetries();
+    }
+
+    /**
+     * Enables adaptive page sizing for cursor based iteration, adjusting the
+     * number of rows requested for each page towards a target latency and/or
+     * a response size budget, based on the measured cost of the pages fetched
+     * so far. The rows value set by {@link #withRows(int)} is used for the
+     * first page.
+     * <p>
+     * Since a cursor mark stays valid when the number of rows changes, the
+     * documents returned are unaffected. Shard parallel and range partitioned
+     * iteration adapt the page size of each cursor separately. Streamed
+     * iteration is not adapted.
+     * </p>
+     * @param minRows smallest number of rows per page
+     * @param maxRows largest number of rows per page
+     * @param targetLatency wanted time to fetch and decode a page, zero for no latency target
+     * @param maxResponseBytes wanted maximum response size in bytes, zero for no size budget
+     * @return this SolrSearch
+     */
+    public SolrSearch withAdaptiveRows(int minRows, int maxRows, Duration targetLatency, long maxResponseBytes) {
+        if (minRows < 1 || maxRows < minRows) {
+            throw new IllegalArgumentException("Invalid page size bounds: " + minRows + ".." + maxRows);
+        }
+        this.adaptiveMinRows = minRows;
+        this.adaptiveMaxRows = maxRows;
+        this.targetPageLatency = targetLatency;
+        this.maxPageBytes = maxResponseBytes;
+        return this;
+    }
+
+    public boolean isAdaptiveRows() {
+        return adaptiveMinRows > 0;
+    }
+
+    /**
+     * Enables conversion of deep start/rows paging into cursor based seeks
+     * for sorts using the uniqueKey field "id"
+     * @see #withDeepPaging(CursorMarkCache, int, String)
+     */
+    public SolrSearch withDeepPaging(CursorMarkCache cursorMarkCache, int threshold) {
+        return withDeepPaging(cursorMarkCache, threshold, DEFAULT_UNIQUE_KEY);
+    }
+
+    /**
+     * Enables conversion of deep start/rows paging into cursor based seeks.
+     * <p>
+     * When {@link #execute()} is called with a start offset of at least the
+     * given threshold and the sort clauses include the uniqueKey field, the
+     * page is fetched using a cursor mark instead. The mark is looked up in
+     * the cache, seeking forward from the nearest mark cached for the query
+     * in steps of at most threshold rows fetching only the uniqueKey field.
+     * The marks passed on the way and the mark following the returned page
+     * are cached, so that subsequent pages are cheap.
+     * </p>
+     * <p>
+     * The response looks like that of a start/rows request, but numFound
+     * and the offsets of cached marks may drift if the index has changed
+     * since the marks were cached.
+     * </p>
+     * @param cursorMarkCache cache of cursor marks, which should be shared between searches
+     * @param threshold smallest start offset converted, must be positive
+     * @param uniqueKeyField name of the uniqueKey field of the collection
+     * @return this SolrSearch
+     */
+    public SolrSearch withDeepPaging(CursorMarkCache cursorMarkCache, int threshold, String uniqueKeyField) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Deep paging threshold must be positive: " + threshold);
+        }
+        this.cursorMarkCache = cursorMarkCache;
+        this.deepPagingThreshold = threshold;
+        this.uniqueKeyField = uniqueKeyField;
+        return this;
+    }
+
     public QueryResponse execute() throws IOException, SolrServerException {
+        if (isDeepPage()) {
+            return executeFromCursorMark();
+        }
         final QueryRequest request = new QueryRequest(solrQuery);
         return request.process(solrClient, collection);
     }
 
+    /**
+     * Counts the documents matching the query without fetching any of them
+     * @return number of documents found
+     * @throws IOException on failure to communicate with Solr
+     * @throws SolrServerException on failure to execute the query
+     */
+    public long count() throws IOException, SolrServerException {
+        return new QueryRequest(createNoRowsQuery()).process(solrClient, collection)
+                .getResults().getNumFound();
+    }
+
+    /**
+     * Determines whether any document matches the query without fetching
+     * any of them, allowing Solr to stop searching after the given time.
+     * Solr does not stop at the first matching document, so within the
+     * time allowed this costs as much as {@link #count()}, but a query
+     * matching documents early on is answered once the time runs out.
+     * Should the time run out before any matching document has been found,
+     * the query is repeated without a time limit.
+     * @param timeAllowed time allowed for the initial search
+     * @return true if at least one document matches the query
+     * @throws IOException on failure to communicate with Solr
+     * @throws SolrServerException on failure to execute the query
+     */
+    public boolean exists(Duration timeAllowed) throws IOException, SolrServerException {
+        final SolrQuery query = createNoRowsQuery();
+        query.setTimeAllowed((int) Math.max(1, Math.min(Integer.MAX_VALUE, timeAllowed.toMillis())));
+        final QueryResponse response = new QueryRequest(query).process(solrClient, collection);
+        if (response.getResults().getNumFound() > 0) {
+            return true;
+        }
+        if (Boolean.TRUE.equals(response.getHeader().get(PARTIAL_RESULTS))) {
+            return count() > 0;
+        }
+        return false;
+    }
+
+    /* Solr collects hit counts only when no rows are requested,
+       so neither sorting nor stored fields are needed */
+    private SolrQuery createNoRowsQuery() {
+        final SolrQuery query = solrQuery.getCopy();
+        query.setRows(0);
+        query.remove(CommonParams.START);
+        query.remove(CommonParams.SORT);
+        query.remove(CommonParams.FL);
+        query.set(FacetParams.FACET, false);
+        query.set(HighlightParams.HIGHLIGHT, false);
+        query.set(StatsParams.STATS, false);
+        return query;
+    }
+
+    private boolean isDeepPage() {
+        final Integer start = solrQuery.getStart();
+        return cursorMarkCache != null && start != null && start >= deepPagingThreshold
+                && solrQuery.getSorts().stream()
+                        .anyMatch(sortClause -> uniqueKeyField.equals(sortClause.getItem()));
+    }
+
+    private QueryResponse executeFromCursorMark() throws IOException, SolrServerException {
+        final long start = solrQuery.getStart();
+        final SolrQuery query = solrQuery.getCopy();
+        query.remove(CommonParams.START);
+        final String key = CursorMarkCache.keyOf(collection, query);
+        final Map.Entry<Long, String> nearest = cursorMarkCache.floor(key, start);
+        long offset = nearest == null ? 0 : nearest.getKey();
+        String cursorMark = nearest == null ? CursorMarkParams.CURSOR_MARK_START : nearest.getValue();
+        while (offset < start) {
+            final SolrQuery skipQuery = query.getCopy();
+            skipQuery.setFields(uniqueKeyField);
+            skipQuery.setRows((int) Math.min(deepPagingThreshold, start - offset));
+            skipQuery.set(FacetParams.FACET, false);
+            skipQuery.set(HighlightParams.HIGHLIGHT, false);
+            skipQuery.set(StatsParams.STATS, false);
+            skipQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            final QueryResponse skipResponse = new QueryRequest(skipQuery).process(solrClient, collection);
+            final int skipped = skipResponse.getResults().size();
+            if (skipped == 0) {
+                // start is beyond the end of the result
+                break;
+            }
+            offset += skipped;
+            cursorMark = skipResponse.getNextCursorMark();
+            cursorMarkCache.put(key, offset, cursorMark);
+        }
+        query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        final QueryResponse response = new QueryRequest(query).process(solrClient, collection);
+        final SolrDocumentList results = response.getResults();
+        results.setStart(start);
+        if (offset == start && !results.isEmpty()) {
+            cursorMarkCache.put(key, start + results.size(), response.getNextCursorMark());
+        }
+        return response;
+    }
+
     /**
      * Fetches (a potentially very large number of) sorted results as an
      * iterable result set using the Solr cursor mechanism
@@ -92,57 +379,524 @@ public class SolrSearch {
      * @throws SolrServerException On failure to advance the cursor based result set
      */
     public ResultSet executeForCursorBasedIteration() throws SolrServerException {
-        return new ResultSet();
+        final SolrQuery query = solrQuery.getCopy();
+        final CursorIterator cursorIterator = new CursorIterator(
+                createPageFetcher(query, this::request), prefetchDepth, prefetchExecutor);
+        return new ResultSet(query, cursorIterator);
     }
 
-    public class ResultSet implements Iterable<SolrDocument> {
+    /**
+     * Resumes a cursor based iteration from a checkpoint taken with
+     * {@link ResultSet#checkpoint()}, possibly in another process.
+     * <p>
+     * The query parameters are taken from the checkpoint, while prefetching
+     * and retries are configured by this SolrSearch.
+     * </p>
+     * @param checkpoint position to resume from
+     * @return iterable result set holding the documents following the checkpoint,
+     * with a size being the total number of documents found
+     * @throws SolrServerException On failure to fetch the page holding the checkpoint
+     * @throws IllegalArgumentException if the checkpoint was taken for another collection
+     */
+    public ResultSet resumeCursorBasedIteration(CursorCheckpoint checkpoint) throws SolrServerException {
+        if (!Objects.equals(collection, checkpoint.getCollection())) {
+            throw new IllegalArgumentException("Checkpoint was taken for collection '" +
+                    checkpoint.getCollection() + "' not '" + collection + "'");
+        }
+        final SolrQuery query = new SolrQuery();
+        query.add(checkpoint.getParams());
+        final CursorIterator cursorIterator = new CursorIterator(
+                createPageFetcher(query, this::request), checkpoint.getCursorMark(),
+                checkpoint.getConsumedInPage(), checkpoint.getEmitted(), prefetchDepth, prefetchExecutor);
+        return new ResultSet(query, cursorIterator);
+    }
+
+    /**
+     * Fetches sorted results using the Solr cursor mechanism, pushing each
+     * document to the given consumer as soon as it has been decoded from
+     * the response, so that no page is ever held in memory as a whole
+     * @param consumer document consumer
+     * @return number of documents found
+     * @throws SolrServerException On failure to advance the cursor
+     */
+    public long executeForCursorBasedStreaming(Consumer<SolrDocument> consumer) throws SolrServerException {
+        final SolrQuery query = solrQuery.getCopy();
+        final long[] numFound = {-1};
+        final StreamingResponseCallback callback = new StreamingResponseCallback() {
+            @Override
+            public void streamSolrDocument(SolrDocument document) {
+                consumer.accept(document);
+            }
+
+            @Override
+            public void streamDocListInfo(long found, long start, Float maxScore) {
+                if (numFound[0] < 0) {
+                    numFound[0] = found;
+                }
+            }
+        };
+        try {
+            String cursorMark = null;
+            String nextCursorMark = CursorMarkParams.CURSOR_MARK_START;
+            while (!nextCursorMark.equals(cursorMark)) {
+                cursorMark = nextCursorMark;
+                nextCursorMark = streamPage(query, cursorMark, callback).getNextCursorMark();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Math.max(0, numFound[0]);
+    }
+
+    /**
+     * Fetches sorted results as an iterable result set using the Solr cursor
+     * mechanism, decoding the response stream on a background task which
+     * hands over each document as soon as it has been decoded.
+     * <p>
+     * At most queueCapacity decoded documents are held waiting for the
+     * consumer, so page size can be raised without a matching rise in memory
+     * use. The result set should be closed if it is not iterated to the end.
+     * </p>
+     * @param queueCapacity maximum number of decoded documents waiting to be consumed
+     * @param executor executor running the decoding task, it is never shut down by this class
+     * @return iterable result set
+     * @throws SolrServerException On failure to fetch the first page
+     */
+    public ResultSet executeForStreamedCursorBasedIteration(int queueCapacity, Executor executor)
+            throws SolrServerException {
+        final SolrQuery query = solrQuery.getCopy();
+        final StreamingCursor cursor = new StreamingCursor(
+                (cursorMark, callback) -> streamPage(query, cursorMark, callback), queueCapacity, executor);
+        try {
+            return new ResultSet(cursor.awaitNumFound(), cursor, Collections.singletonList(cursor));
+        } catch (SolrServerException | RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+    }
+
+    private QueryResponse streamPage(SolrQuery query, String cursorMark, StreamingResponseCallback callback)
+            throws IOException, SolrServerException {
+        final SolrQuery pageQuery = query.getCopy();
+        pageQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        return solrClient.queryAndStreamResponse(collection, pageQuery, callback);
+    }
+
+    /* Creates a fetcher of cursor pages, with its own page size
+       controller if adaptive page sizing is enabled */
+    private CursorIterator.PageFetcher createPageFetcher(SolrQuery query, QueryExecutor executor) {
+        final AdaptiveRows adaptiveRows = isAdaptiveRows()
+                ? new AdaptiveRows(adaptiveMinRows, adaptiveMaxRows, targetPageLatency.toMillis(), maxPageBytes,
+                        query.getRows() == null ? adaptiveMinRows : query.getRows())
+                : null;
+        return cursorMark -> {
+            final SolrQuery pageQuery = query.getCopy();
+            pageQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            return retryPolicy.execute(() -> fetchPage(pageQuery, executor, adaptiveRows));
+        };
+    }
+
+    private QueryResponse fetchPage(SolrQuery pageQuery, QueryExecutor executor, AdaptiveRows adaptiveRows)
+            throws IOException, SolrServerException {
+        final QueryRequest request = new QueryRequest(pageQuery);
+        if (adaptiveRows == null) {
+            return new QueryResponse(executor.execute(request), solrClient);
+        }
+        pageQuery.setRows(adaptiveRows.getRows());
+        final CountingResponseParser responseParser = new CountingResponseParser(new BinaryResponseParser());
+        request.setResponseParser(responseParser);
+        final long start = System.nanoTime();
+        final QueryResponse response = new QueryResponse(executor.execute(request), solrClient);
+        final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        response.setElapsedTime(elapsedMs);
+        adaptiveRows.update(response.getResults().size(), elapsedMs, response.getQTime(),
+                responseParser.getBytesRead());
+        return response;
+    }
+
+    private NamedList<Object> request(QueryRequest request) throws IOException, SolrServerException {
+        return solrClient.request(request, collection);
+    }
+
+    /**
+     * Fetches sorted results by running a separate non-distributed cursor
+     * against each active shard of the collection concurrently, instead of
+     * having a single node collect and merge the pages from all shards.
+     * <p>
+     * Each shard cursor prefetches at least one page on the given executor
+     * (see {@link #withPrefetch(int, Executor)}).
+     * </p>
+     * @param order {@link ResultOrder#SORTED} to merge the shard results
+     *              according to the sort clauses, or {@link ResultOrder#UNORDERED}
+     *              to hand out documents from shards as soon as they arrive
+     * @param executor executor on which shard pages are fetched, it is
+     *                 never shut down by this class
+     * @return iterable result set
+     * @throws SolrServerException On failure to open the shard cursors
+     * @throws IllegalStateException if this search was not created with a CloudSolrClient
+     */
+    public ResultSet executeForShardParallelIteration(ResultOrder order, Executor executor)
+            throws SolrServerException {
+        if (!(solrClient instanceof CloudSolrClient)) {
+            throw new IllegalStateException("Shard parallel iteration requires a CloudSolrClient");
+        }
+        final CloudSolrClient cloudSolrClient = (CloudSolrClient) solrClient;
+        final List<CollectionTopology.Shard> shards =
+                CollectionTopology.get(cloudSolrClient, collection).getShards();
+        if (shards.isEmpty()) {
+            throw new SolrServerException("No active shards found for collection '" + collection + "'");
+        }
+        // the copy only holds the sort clauses as a parameter value
+        final List<SolrQuery.SortClause> sortClauses = new ArrayList<>(solrQuery.getSorts());
+        final SolrQuery query = solrQuery.getCopy();
+        query.set(CommonParams.DISTRIB, false);
+        if (order == ResultOrder.SORTED) {
+            includeSortFields(query, sortClauses);
+        }
+        final int depth = Math.max(1, prefetchDepth);
+        final List<CompletableFuture<CursorIterator>> openings = new ArrayList<>(shards.size());
+        for (CollectionTopology.Shard shard : shards) {
+            openings.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new CursorIterator(createPageFetcher(query,
+                            request -> shard.request(cloudSolrClient, request)), depth, executor);
+                } catch (SolrServerException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        final List<CursorIterator> cursors = new ArrayList<>(shards.size());
+        long size = 0;
+        for (CompletableFuture<CursorIterator> opening : openings) {
+            final CursorIterator cursor = join(opening);
+            size += cursor.getNumFound();
+            cursors.add(cursor);
+        }
+        if (order == ResultOrder.SORTED) {
+            return new ResultSet(size, new MergingIterator<>(cursors, createSortComparator(sortClauses)));
+        }
+        final List<Spliterator<SolrDocument>> partitions = cursors.stream()
+                .map(cursor -> Spliterators.spliterator(cursor, cursor.getNumFound(), Spliterator.NONNULL))
+                .collect(Collectors.toList());
+        return new ResultSet(size, new InterleavingIterator(cursors), false, partitions, Collections.emptyList());
+    }
+
+    /**
+     * Fetches sorted results by splitting the value space of the primary sort
+     * field into ranges with roughly the same number of documents and running
+     * a separate cursor with a range filter for each of them concurrently.
+     * This parallelizes iteration even on single-shard collections.
+     * <p>
+     * Numeric and date range boundaries are derived from the minimum and
+     * maximum values reported by the stats component, string boundaries from
+     * the counts of the values of the field among the documents matching the
+     * query. Documents without a value in the primary sort field are returned
+     * where Solr sorts them, taking fields declared with
+     * {@link #withSortMissingFirst(String...)} or
+     * {@link #withSortMissingLast(String...)} into account.
+     * </p>
+     * <p>
+     * Each range cursor prefetches at least one page on the given executor
+     * (see {@link #withPrefetch(int, Executor)}).
+     * </p>
+     * @param partitions wanted number of value ranges
+     * @param order {@link ResultOrder#SORTED} to return the ranges one after the other
+     *              in sort order, or {@link ResultOrder#UNORDERED} to hand out documents
+     *              from ranges as soon as they arrive
+     * @param executor executor on which pages are fetched, it is never shut down by this class
+     * @return iterable result set, which parallel streams split by range
+     * @throws SolrServerException On failure to determine the ranges or open the range cursors
+     */
+    public ResultSet executeForRangePartitionedIteration(int partitions, ResultOrder order, Executor executor)
+            throws SolrServerException {
+        final List<SolrQuery.SortClause> sortClauses = solrQuery.getSorts();
+        if (sortClauses.isEmpty()) {
+            throw new IllegalStateException("Range partitioned iteration requires sort clauses");
+        }
+        final SolrQuery query = solrQuery.getCopy();
+        final List<String> filters;
+        try {
+            filters = new SortKeyRangePartitioner(solrClient, collection)
+                    .createFilters(query, sortClauses.get(0), partitions,
+                            sortMissingFirst.get(sortClauses.get(0).getItem()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final int depth = Math.max(1, prefetchDepth);
+        final List<CompletableFuture<CursorIterator>> openings = new ArrayList<>(filters.size());
+        for (String filter : filters) {
+            final SolrQuery rangeQuery = query.getCopy();
+            rangeQuery.addFilterQuery(filter);
+            openings.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new CursorIterator(
+                            createPageFetcher(rangeQuery, this::request), depth, executor);
+                } catch (SolrServerException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        final List<CursorIterator> cursors = new ArrayList<>(filters.size());
+        long size = 0;
+        for (CompletableFuture<CursorIterator> opening : openings) {
+            final CursorIterator cursor = join(opening);
+            size += cursor.getNumFound();
+            cursors.add(cursor);
+        }
+        final boolean ordered = order == ResultOrder.SORTED;
+        final List<Spliterator<SolrDocument>> ranges = cursors.stream()
+                .map(cursor -> Spliterators.spliterator(cursor, cursor.getNumFound(),
+                        ordered ? Spliterator.ORDERED | Spliterator.NONNULL : Spliterator.NONNULL))
+                .collect(Collectors.toList());
+        final Iterator<SolrDocument> documents = ordered
+                ? Spliterators.iterator(new PartitionSpliterator<>(ranges, true))
+                : new InterleavingIterator(cursors);
+        return new ResultSet(size, documents, ordered, ranges, Collections.emptyList());
+    }
+
+    /* Client side merging needs the sort field values
+       of each document in the response */
+    private SortClauseComparator createSortComparator(List<SolrQuery.SortClause> sortClauses) {
+        final SortClauseComparator comparator = new SortClauseComparator(sortClauses);
+        sortMissingFirst.forEach((field, first) -> {
+            if (first) {
+                comparator.withSortMissingFirst(field);
+            } else {
+                comparator.withSortMissingLast(field);
+            }
+        });
+        return comparator;
+    }
+
+    private static void includeSortFields(SolrQuery query, List<SolrQuery.SortClause> sortClauses) {
+        final String fields = query.getFields();
+        if (fields == null) {
+            return;
+        }
+        final Set<String> fieldSet = Arrays.stream(fields.split(","))
+                .map(String::trim)
+                .collect(Collectors.toSet());
+        for (SolrQuery.SortClause sortClause : sortClauses) {
+            if (!fieldSet.contains("*") && fieldSet.add(sortClause.getItem())) {
+                query.addField(sortClause.getItem());
+            }
+        }
+    }
+
+    /**
+     * Fetches all results using the Solr /export request handler, which
+     * streams the complete sorted result without any paging.
+     * Documents are decoded one at a time as the iteration progresses,
+     * so client memory use does not depend on the number of results.
+     * <p>
+     * The export handler requires fields and sort clauses to be set,
+     * and all of them must have docValues. In SolrCloud each shard is
+     * exported separately and the results merged according to the sort
+     * clauses.
+     * </p>
+     * <p>
+     * The result set should be closed if it is not iterated to the end.
+     * </p>
+     * @return iterable result set
+     * @throws SolrServerException On failure to start the export
+     */
+    public ResultSet executeForExport() throws SolrServerException {
+        final List<SolrQuery.SortClause> sortClauses = new ArrayList<>(solrQuery.getSorts());
+        final SolrQuery query = solrQuery.getCopy();
+        query.setRequestHandler(EXPORT_HANDLER);
+        query.set(CommonParams.WT, "json");
+        query.remove(CommonParams.START);
+        query.remove(CommonParams.ROWS);
+        final List<ExportStream> streams = new ArrayList<>();
+        try {
+            if (solrClient instanceof CloudSolrClient) {
+                includeSortFields(query, sortClauses);
+                final CloudSolrClient cloudSolrClient = (CloudSolrClient) solrClient;
+                for (CollectionTopology.Shard shard :
+                        CollectionTopology.get(cloudSolrClient, collection).getShards()) {
+                    streams.add(openExportStream(shard.request(cloudSolrClient, createExportRequest(query))));
+                }
+            } else {
+                streams.add(openExportStream(solrClient.request(createExportRequest(query), collection)));
+            }
+        } catch (IOException e) {
+            closeAll(streams);
+            throw new UncheckedIOException(e);
+        } catch (SolrServerException | RuntimeException e) {
+            closeAll(streams);
+            throw e;
+        }
+        final long size = streams.stream().mapToLong(ExportStream::getNumFound).sum();
+        if (streams.size() == 1) {
+            return new ResultSet(size, streams.get(0), streams);
+        }
+        return new ResultSet(size, new MergingIterator<>(streams, createSortComparator(sortClauses)), streams);
+    }
+
+    private static QueryRequest createExportRequest(SolrQuery query) {
+        final QueryRequest request = new QueryRequest(query);
+        request.setResponseParser(new InputStreamResponseParser("json"));
+        return request;
+    }
+
+    private static ExportStream openExportStream(NamedList<Object> response)
+            throws IOException, SolrServerException {
+        return new ExportStream((InputStream) response.get("stream"));
+    }
+
+    private static void closeAll(List<? extends Closeable> closeables) {
+        for (Closeable closeable : closeables) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // closing on behalf of an earlier failure
+            }
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws SolrServerException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SolrServerException) {
+                throw (SolrServerException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SolrServerException(cause);
+        }
+    }
+
+    @FunctionalInterface
+    private interface QueryExecutor {
+        NamedList<Object> execute(QueryRequest request) throws IOException, SolrServerException;
+    }
+
+    public enum ResultOrder {
+        SORTED,
+        UNORDERED
+    }
+
+    /**
+     * Result of an iterating search.
+     * <p>
+     * The documents can be traversed only once, either through the iterator
+     * or through a stream. Results from {@link #executeForShardParallelIteration(ResultOrder, Executor)}
+     * with {@link ResultOrder#UNORDERED} are split per shard by parallel streams,
+     * results from {@link #executeForRangePartitionedIteration(int, ResultOrder, Executor)}
+     * are split per value range, and other results are split into batches of
+     * documents already fetched.
+     * </p>
+     */
+    public class ResultSet implements Iterable<SolrDocument>, AutoCloseable {
         private final long size;
-        private Iterator<SolrDocument> documents;
-        private String nextCursorMark;
-        private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        private final Iterator<SolrDocument> documents;
+        private final boolean ordered;
+        private final List<Spliterator<SolrDocument>> partitions;
+        private final List<? extends Closeable> resources;
+        private final SolrParams cursorParams;
+        private final CursorIterator cursor;
+
+        ResultSet(long size, Iterator<SolrDocument> documents) {
+            this(size, documents, Collections.emptyList());
+        }
 
-        ResultSet() throws SolrServerException {
-            size = fetchDocuments().getNumFound();
+        ResultSet(SolrParams cursorParams, CursorIterator cursor) {
+            this.size = cursor.getNumFound();
+            this.documents = cursor;
+            this.ordered = true;
+            this.partitions = Collections.emptyList();
+            this.resources = Collections.emptyList();
+            this.cursorParams = cursorParams;
+            this.cursor = cursor;
         }
 
+        ResultSet(long size, Iterator<SolrDocument> documents, List<? extends Closeable> resources) {
+            this(size, documents, true, Collections.emptyList(), resources);
+        }
+
+        ResultSet(long size, Iterator<SolrDocument> documents, boolean ordered,
+                  List<Spliterator<SolrDocument>> partitions, List<? extends Closeable> resources) {
+            this.size = size;
+            this.documents = documents;
+            this.ordered = ordered;
+            this.partitions = partitions;
+            this.resources = resources;
+            this.cursorParams = null;
+            this.cursor = null;
+        }
+
+        /**
+         * @return number of documents found when the search was executed
+         */
         public long getSize() {
             return size;
         }
 
         @Override
         public Iterator<SolrDocument> iterator() {
-            return new Iterator<SolrDocument>() {
-                @Override
-                public boolean hasNext() {
-                    if (!documents.hasNext()
-                            && !cursorMark.equals(nextCursorMark)) {
-                        cursorMark = nextCursorMark;
-                        try {
-                            fetchDocuments();
-                        } catch (SolrServerException e) {
-                            throw new IllegalStateException(e);
-                        }
-                    }
-                    return documents.hasNext();
-                }
+            return documents;
+        }
 
-                @Override
-                public SolrDocument next() {
-                    return documents.next();
-                }
-            };
+        /**
+         * Creates a spliterator sized by the number of documents found, or for
+         * cursor based iteration by the number of documents not yet returned
+         * @return spliterator of the documents in this result set
+         */
+        @Override
+        public Spliterator<SolrDocument> spliterator() {
+            if (partitions.size() > 1) {
+                return new PartitionSpliterator<>(partitions, ordered);
+            }
+            final long remaining = cursor == null ? size : Math.max(0, cursor.getNumFound() - cursor.getEmitted());
+            return Spliterators.spliterator(documents, remaining,
+                    ordered ? Spliterator.ORDERED | Spliterator.NONNULL : Spliterator.NONNULL);
         }
 
-        private SolrDocumentList fetchDocuments() throws SolrServerException {
-            solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
-            try {
-                final QueryResponse response = execute();
-                nextCursorMark = response.getNextCursorMark();
-                final SolrDocumentList results = response.getResults();
-                this.documents = results.iterator();
-                return results;
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+        /**
+         * Creates a stream of the documents in this result set,
+         * closing the result set when the stream is closed
+         * @return sequential stream, which may be turned parallel
+         */
+        public Stream<SolrDocument> stream() {
+            return StreamSupport.stream(spliterator(), false).onClose(this::close);
+        }
+
+        /**
+         * Records the position of the iteration, so that it can be resumed
+         * later on with {@link #resumeCursorBasedIteration(CursorCheckpoint)}.
+         * The next document returned after resumption is the one that would
+         * have been returned by the next call to next() on this result set.
+         * @return serializable checkpoint
+         * @throws IllegalStateException if this result set was not created by
+         * {@link #executeForCursorBasedIteration()} or {@link #resumeCursorBasedIteration(CursorCheckpoint)}
+         */
+        public CursorCheckpoint checkpoint() {
+            if (cursor == null) {
+                throw new IllegalStateException("Only results of cursor based iteration can be checkpointed");
+            }
+            return new CursorCheckpoint(collection, cursorParams,
+                    cursor.getCursorMark(), cursor.getConsumedInPage(), cursor.getEmitted());
+        }
+
+        /**
+         * Releases any connections still held by this result set
+         * @throws UncheckedIOException on failure to release a connection
+         */
+        @Override
+        public void close() {
+            IOException failure = null;
+            for (Closeable resource : resources) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
             }
         }
     }
@@ -0,0 +1,131 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.SolrDocument;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders documents by the values of their sort clause fields the way Solr
+ * orders them in the index, so that already sorted result streams can be
+ * merged client side.
+ * <p>
+ * Documents missing a sort field value are ordered the way Solr orders them
+ * when the field type sets neither sortMissingFirst nor sortMissingLast: a
+ * missing numeric or date value compares as zero, any other missing value
+ * as the lowest value, so first in ascending and last in descending order.
+ * Fields whose type does set one of the attributes must be declared (see
+ * {@link #withSortMissingFirst(String)} and {@link #withSortMissingLast(String)}).
+ * </p>
+ */
+class SortClauseComparator implements Comparator<SolrDocument> {
+    private final List<SolrQuery.SortClause> sortClauses;
+    private final Map<String, Boolean> sortMissingFirst = new HashMap<>();
+
+    SortClauseComparator(List<SolrQuery.SortClause> sortClauses) {
+        if (sortClauses == null || sortClauses.isEmpty()) {
+            throw new IllegalArgumentException("At least one sort clause is required");
+        }
+        this.sortClauses = new ArrayList<>(sortClauses);
+    }
+
+    /**
+     * Places documents missing a value of the given field first regardless
+     * of sort direction, like a field type setting sortMissingFirst
+     * @param field sort field name
+     * @return this SortClauseComparator
+     */
+    SortClauseComparator withSortMissingFirst(String field) {
+        sortMissingFirst.put(field, true);
+        return this;
+    }
+
+    /**
+     * Places documents missing a value of the given field last regardless
+     * of sort direction, like a field type setting sortMissingLast
+     * @param field sort field name
+     * @return this SortClauseComparator
+     */
+    SortClauseComparator withSortMissingLast(String field) {
+        sortMissingFirst.put(field, false);
+        return this;
+    }
+
+    @Override
+    public int compare(SolrDocument doc1, SolrDocument doc2) {
+        for (SolrQuery.SortClause sortClause : sortClauses) {
+            final Object value1 = doc1.getFirstValue(sortClause.getItem());
+            final Object value2 = doc2.getFirstValue(sortClause.getItem());
+            final Boolean missingFirst = sortMissingFirst.get(sortClause.getItem());
+            final int result;
+            if ((value1 == null || value2 == null) && missingFirst != null) {
+                result = value1 == value2 ? 0 : (value1 == null) == missingFirst ? -1 : 1;
+            } else if (sortClause.getOrder() == SolrQuery.ORDER.desc) {
+                result = compareValues(value2, value1, sortClause.getItem());
+            } else {
+                result = compareValues(value1, value2, sortClause.getItem());
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object value1, Object value2, String field) {
+        if (value1 == null || value2 == null) {
+            return value1 == null ? -compareToMissing(value2) : compareToMissing(value1);
+        }
+        if (value1 instanceof String && value2 instanceof String) {
+            return compareCodePoints((String) value1, (String) value2);
+        }
+        if (value1 instanceof Comparable && value1.getClass() == value2.getClass()) {
+            return ((Comparable<Object>) value1).compareTo(value2);
+        }
+        throw new IllegalStateException("Unable to compare values of sort field '" + field + "': "
+                + value1.getClass().getName() + " and " + value2.getClass().getName());
+    }
+
+    /* Compares a value to a missing value, which Solr reads as
+       zero for numeric and date fields and as lowest otherwise */
+    private static int compareToMissing(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return Double.compare(((Number) value).doubleValue(), 0);
+        }
+        if (value instanceof Date) {
+            return Long.compare(((Date) value).getTime(), 0);
+        }
+        return 1;
+    }
+
+    /* Unicode code point order, which unlike String.compareTo()
+       matches the UTF-8 byte order of terms in the index */
+    static int compareCodePoints(String s1, String s2) {
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < s1.length() && i2 < s2.length()) {
+            final int cp1 = s1.codePointAt(i1);
+            final int cp2 = s2.codePointAt(i2);
+            if (cp1 != cp2) {
+                return Integer.compare(cp1, cp2);
+            }
+            i1 += Character.charCount(cp1);
+            i2 += Character.charCount(cp2);
+        }
+        return Integer.compare(s1.length() - i1, s2.length() - i2);
+    }
+}
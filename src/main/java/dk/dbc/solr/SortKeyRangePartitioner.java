@@ -0,0 +1,244 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.FieldStatsInfo;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.StatsParams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Splits the value space of the primary sort field of a query into ranges
+ * holding roughly the same number of documents, expressed as filter queries.
+ * <p>
+ * Numeric and date boundaries are spaced evenly between the minimum and
+ * maximum values reported by the stats component for the query. String
+ * boundaries are placed at equal cumulative counts of the values of the
+ * field among the documents matching the query, read by faceting on the
+ * field in index order.
+ * </p>
+ * <p>
+ * The filters are returned in sort order. Documents without a value in the
+ * field are selected where Solr sorts them: as zero for numeric and date
+ * fields, by folding them into the range holding zero, and as the lowest
+ * value otherwise, first in ascending and last in descending order, unless
+ * the field type is declared to sort missing values first or last.
+ * </p>
+ */
+class SortKeyRangePartitioner {
+    private static final int FACET_PAGE_SIZE = 10000;
+    private static final String MATCH_ALL = "*:*";
+
+    /* where the documents without a value in the field are selected */
+    enum MissingValues {
+        FIRST, LAST, AS_ZERO
+    }
+
+    private final SolrClient solrClient;
+    private final String collection;
+
+    SortKeyRangePartitioner(SolrClient solrClient, String collection) {
+        this.solrClient = solrClient;
+        this.collection = collection;
+    }
+
+    /**
+     * @param query the query to partition
+     * @param sortClause primary sort clause of the query
+     * @param partitions wanted number of value ranges
+     * @param sortMissingFirst true if the field type sorts missing values first,
+     *                         false if last, null if it sets neither
+     * @return filter queries, at most one per value range plus one for missing values
+     * @throws IOException on failure to communicate with Solr
+     * @throws SolrServerException on failure to determine the value range boundaries
+     */
+    List<String> createFilters(SolrQuery query, SolrQuery.SortClause sortClause, int partitions,
+                               Boolean sortMissingFirst)
+            throws IOException, SolrServerException {
+        final String field = sortClause.getItem();
+        final Ranges ranges = partitions > 1 ? getRanges(query, field, partitions) : null;
+        if (ranges == null || ranges.boundaries.isEmpty()) {
+            // a single range is sorted by Solr itself
+            return Collections.singletonList(MATCH_ALL);
+        }
+        final boolean descending = sortClause.getOrder() == SolrQuery.ORDER.desc;
+        final MissingValues missingValues;
+        if (sortMissingFirst != null) {
+            missingValues = sortMissingFirst ? MissingValues.FIRST : MissingValues.LAST;
+        } else if (ranges.zeroRange >= 0) {
+            missingValues = MissingValues.AS_ZERO;
+        } else {
+            missingValues = descending ? MissingValues.LAST : MissingValues.FIRST;
+        }
+        return createFilters(field, ranges.boundaries, ranges.zeroRange, descending, missingValues);
+    }
+
+    /**
+     * @param field sort field
+     * @param boundaries range boundaries in ascending order
+     * @param zeroRange index of the range holding zero, in ascending order,
+     *                  only used with {@link MissingValues#AS_ZERO}
+     * @param descending true if the field is sorted in descending order
+     * @param missingValues where documents without a value are selected
+     * @return filter queries in sort order
+     */
+    static List<String> createFilters(String field, List<String> boundaries, int zeroRange, boolean descending,
+                                      MissingValues missingValues) {
+        final String missing = "-" + field + ":[* TO *]";
+        final List<String> filters = new ArrayList<>(boundaries.size() + 2);
+        filters.add(field + ":[* TO " + boundaries.get(0) + "}");
+        for (int i = 1; i < boundaries.size(); i++) {
+            filters.add(field + ":[" + boundaries.get(i - 1) + " TO " + boundaries.get(i) + "}");
+        }
+        filters.add(field + ":[" + boundaries.get(boundaries.size() - 1) + " TO *]");
+        if (missingValues == MissingValues.AS_ZERO) {
+            filters.set(zeroRange, filters.get(zeroRange) + " OR (" + MATCH_ALL + " " + missing + ")");
+        }
+        if (descending) {
+            Collections.reverse(filters);
+        }
+        if (missingValues == MissingValues.FIRST) {
+            filters.add(0, missing);
+        } else if (missingValues == MissingValues.LAST) {
+            filters.add(missing);
+        }
+        return filters;
+    }
+
+    private Ranges getRanges(SolrQuery query, String field, int partitions)
+            throws IOException, SolrServerException {
+        final SolrQuery statsQuery = createCountingQuery(query);
+        statsQuery.set(StatsParams.STATS, true);
+        statsQuery.set(StatsParams.STATS_FIELD, field);
+        final QueryResponse response = new QueryRequest(statsQuery).process(solrClient, collection);
+        final FieldStatsInfo stats = response.getFieldStatsInfo() == null
+                ? null : response.getFieldStatsInfo().get(field);
+        if (stats == null || stats.getMin() == null || stats.getMax() == null) {
+            return null;
+        }
+        final Object min = stats.getMin();
+        final Object max = stats.getMax();
+        if (min instanceof Number && max instanceof Number) {
+            final List<String> boundaries =
+                    getNumericBoundaries(((Number) min).doubleValue(), ((Number) max).doubleValue(), partitions);
+            return new Ranges(boundaries, getZeroRange(boundaries));
+        }
+        if (min instanceof Date && max instanceof Date) {
+            final List<String> boundaries =
+                    getNumericBoundaries(((Date) min).getTime(), ((Date) max).getTime(), partitions);
+            final int zeroRange = getZeroRange(boundaries);
+            final List<String> values = new ArrayList<>(boundaries.size());
+            for (String boundary : boundaries) {
+                values.add('"' + new Date(Long.parseLong(boundary)).toInstant().toString() + '"');
+            }
+            return new Ranges(values, zeroRange);
+        }
+        return new Ranges(getTermBoundaries(query, field, partitions), -1);
+    }
+
+    static List<String> getNumericBoundaries(double min, double max, int partitions) {
+        final boolean integral = min == Math.rint(min) && max == Math.rint(max);
+        final TreeSet<Double> boundaries = new TreeSet<>();
+        for (int i = 1; i < partitions; i++) {
+            double boundary = min + (max - min) * i / partitions;
+            if (integral) {
+                boundary = Math.ceil(boundary);
+            }
+            if (boundary > min && boundary <= max) {
+                boundaries.add(boundary);
+            }
+        }
+        final List<String> values = new ArrayList<>(boundaries.size());
+        for (Double boundary : boundaries) {
+            values.add(integral ? Long.toString(boundary.longValue()) : Double.toString(boundary));
+        }
+        return values;
+    }
+
+    /* ranges are [* TO b0}, [b0 TO b1} ... [bn TO *] */
+    private static int getZeroRange(List<String> numericBoundaries) {
+        int range = 0;
+        while (range < numericBoundaries.size() && Double.parseDouble(numericBoundaries.get(range)) <= 0) {
+            range++;
+        }
+        return range;
+    }
+
+    /* Places boundaries at equal cumulative counts of the values of the
+       documents matching the query, faceting in index order page by page */
+    private List<String> getTermBoundaries(SolrQuery query, String field, int partitions)
+            throws IOException, SolrServerException {
+        final SolrQuery facetQuery = createCountingQuery(query);
+        facetQuery.addFilterQuery(field + ":[* TO *]");
+        facetQuery.setFacet(true);
+        facetQuery.addFacetField(field);
+        facetQuery.setFacetSort(FacetParams.FACET_SORT_INDEX);
+        facetQuery.setFacetMinCount(1);
+        facetQuery.setFacetLimit(FACET_PAGE_SIZE);
+        final List<String> values = new ArrayList<>(partitions - 1);
+        long total = -1;
+        long cumulative = 0;
+        int nextBoundary = 1;
+        int offset = 0;
+        while (nextBoundary < partitions) {
+            facetQuery.set(FacetParams.FACET_OFFSET, offset);
+            final QueryResponse response = new QueryRequest(facetQuery).process(solrClient, collection);
+            if (total < 0) {
+                total = response.getResults().getNumFound();
+            }
+            final FacetField facetField = response.getFacetField(field);
+            if (facetField == null || facetField.getValues() == null || facetField.getValues().isEmpty()) {
+                break;
+            }
+            for (FacetField.Count count : facetField.getValues()) {
+                if (nextBoundary < partitions && cumulative >= total * nextBoundary / partitions) {
+                    values.add(quote(count.getName()));
+                    nextBoundary++;
+                }
+                cumulative += count.getCount();
+            }
+            offset += facetField.getValues().size();
+        }
+        return values;
+    }
+
+    private static SolrQuery createCountingQuery(SolrQuery query) {
+        final SolrQuery countingQuery = query.getCopy();
+        countingQuery.setRows(0);
+        countingQuery.remove(CommonParams.START);
+        countingQuery.remove(CommonParams.SORT);
+        countingQuery.remove(CursorMarkParams.CURSOR_MARK_PARAM);
+        return countingQuery;
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    private static class Ranges {
+        private final List<String> boundaries;
+        private final int zeroRange;
+
+        Ranges(List<String> boundaries, int zeroRange) {
+            this.boundaries = boundaries;
+            this.zeroRange = zeroRange;
+        }
+    }
+}
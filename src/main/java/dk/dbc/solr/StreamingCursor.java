@@ -0,0 +1,200 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterates the documents of a cursor based query while they are being
+ * decoded from the response stream on a background task.
+ * <p>
+ * Decoded documents are handed over through a bounded queue, so the
+ * decoder is held back whenever the consumer falls behind and no more
+ * than the queue capacity of documents are ever held in memory,
+ * regardless of page size.
+ * </p>
+ */
+class StreamingCursor implements Iterator<SolrDocument>, Closeable {
+    @FunctionalInterface
+    interface PageStreamer {
+        QueryResponse stream(String cursorMark, StreamingResponseCallback callback)
+                throws IOException, SolrServerException;
+    }
+
+    private static final Object END = new Object();
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    private final BlockingQueue<Object> queue;
+    private final CompletableFuture<Long> numFound = new CompletableFuture<>();
+    private volatile boolean closed = false;
+    private Object next;
+
+    StreamingCursor(PageStreamer streamer, int queueCapacity, Executor executor) {
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        executor.execute(() -> run(streamer));
+    }
+
+    /**
+     * Waits for the number of results to be reported by the first page
+     * @return number of results
+     * @throws SolrServerException on failure to fetch the first page
+     */
+    long awaitNumFound() throws SolrServerException {
+        try {
+            return numFound.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SolrServerException) {
+                throw (SolrServerException) cause;
+            }
+            throw asUnchecked(cause);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = take();
+        }
+        if (next instanceof Failure) {
+            final Throwable cause = ((Failure) next).cause;
+            if (cause instanceof SolrServerException) {
+                throw new IllegalStateException(cause);
+            }
+            throw asUnchecked(cause);
+        }
+        return next != END;
+    }
+
+    @Override
+    public SolrDocument next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final SolrDocument document = (SolrDocument) next;
+        next = null;
+        return document;
+    }
+
+    /**
+     * Stops the background decoding, discarding any documents not yet consumed
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+        next = END;
+    }
+
+    private Object take() {
+        if (closed) {
+            return END;
+        }
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while waiting for documents", e);
+        }
+    }
+
+    private void run(PageStreamer streamer) {
+        final StreamingResponseCallback callback = new StreamingResponseCallback() {
+            @Override
+            public void streamSolrDocument(SolrDocument document) {
+                put(document);
+            }
+
+            @Override
+            public void streamDocListInfo(long found, long start, Float maxScore) {
+                numFound.complete(found);
+            }
+        };
+        try {
+            String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+            while (!closed) {
+                final QueryResponse response = streamer.stream(cursorMark, callback);
+                final String nextCursorMark = response.getNextCursorMark();
+                if (cursorMark.equals(nextCursorMark)) {
+                    break;
+                }
+                cursorMark = nextCursorMark;
+            }
+            numFound.complete(0L);
+            put(END);
+        } catch (Cancelled e) {
+            numFound.complete(0L);
+        } catch (Exception e) {
+            numFound.completeExceptionally(e);
+            putQuietly(new Failure(e));
+        }
+    }
+
+    private void put(Object element) {
+        try {
+            while (!closed) {
+                if (queue.offer(element, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // aborts decoding of the current response
+        throw new Cancelled();
+    }
+
+    private void putQuietly(Object element) {
+        try {
+            put(element);
+        } catch (Cancelled e) {
+            // nobody is listening anymore
+        }
+    }
+
+    private static RuntimeException asUnchecked(Throwable cause) {
+        if (cause instanceof IOException) {
+            return new UncheckedIOException((IOException) cause);
+        }
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new IllegalStateException(cause);
+    }
+
+    private static class Failure {
+        private final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private static class Cancelled extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Cancelled() {
+            super(null, null, false, false);
+        }
+    }
+}
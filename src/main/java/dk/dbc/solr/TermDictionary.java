@@ -0,0 +1,361 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.TermsResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Immutable in-memory snapshot of the terms of a field along with their
+ * document frequencies, answering prefix, range and top-k queries locally.
+ * <p>
+ * Terms are kept in index order as front-coded UTF-8 in a single byte
+ * array. Terms are grouped in blocks of {@value #BLOCK_SIZE}, the first
+ * term of each block is stored in full, and every other term as the length
+ * of the prefix it shares with the preceding term followed by the remaining
+ * bytes. Lookups binary search the first terms of the blocks and decode at
+ * most one block.
+ * </p>
+ */
+public class TermDictionary {
+    static final int BLOCK_SIZE = 16;
+
+    private static final TermDictionary EMPTY =
+            new TermDictionary(new byte[0], new int[0], new long[0]);
+
+    private final byte[] data;
+    private final int[] blocks;
+    private final long[] frequencies;
+
+    private TermDictionary(byte[] data, int[] blocks, long[] frequencies) {
+        this.data = data;
+        this.blocks = blocks;
+        this.frequencies = frequencies;
+    }
+
+    /**
+     * Loads all terms of the field scanned by the given scan, respecting
+     * any restrictions set on it
+     * @param solrScan scan of a single field
+     * @param pageSize number of terms requested per page
+     * @return term dictionary
+     * @throws SolrServerException on failure to fetch the terms
+     */
+    public static TermDictionary load(SolrScan solrScan, int pageSize) throws SolrServerException {
+        return build(solrScan.iterate(pageSize));
+    }
+
+    /**
+     * @param terms terms in strictly ascending index order
+     * @return term dictionary
+     * @throws IllegalArgumentException if terms are out of order
+     */
+    public static TermDictionary build(Iterator<TermsResponse.Term> terms) {
+        if (!terms.hasNext()) {
+            return EMPTY;
+        }
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] blocks = new int[16];
+        long[] frequencies = new long[BLOCK_SIZE * blocks.length];
+        byte[] previous = null;
+        int size = 0;
+        while (terms.hasNext()) {
+            final TermsResponse.Term term = terms.next();
+            final byte[] bytes = term.getTerm().getBytes(StandardCharsets.UTF_8);
+            if (previous != null && compare(previous, 0, previous.length, bytes) >= 0) {
+                throw new IllegalArgumentException("Terms out of order at '" + term.getTerm() + "'");
+            }
+            if (size == frequencies.length) {
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            frequencies[size] = term.getFrequency();
+            if (size % BLOCK_SIZE == 0) {
+                final int block = size / BLOCK_SIZE;
+                if (block == blocks.length) {
+                    blocks = Arrays.copyOf(blocks, block * 2);
+                }
+                blocks[block] = data.size();
+                writeVInt(data, bytes.length);
+                data.write(bytes, 0, bytes.length);
+            } else {
+                final int shared = sharedPrefixLength(previous, bytes);
+                writeVInt(data, shared);
+                writeVInt(data, bytes.length - shared);
+                data.write(bytes, shared, bytes.length - shared);
+            }
+            previous = bytes;
+            size++;
+        }
+        return new TermDictionary(data.toByteArray(),
+                Arrays.copyOf(blocks, (size + BLOCK_SIZE - 1) / BLOCK_SIZE),
+                Arrays.copyOf(frequencies, size));
+    }
+
+    /**
+     * @return number of terms
+     */
+    public int size() {
+        return frequencies.length;
+    }
+
+    /**
+     * @return number of bytes held by the encoded terms and their frequencies
+     */
+    public long sizeInBytes() {
+        return data.length + 4L * blocks.length + 8L * frequencies.length;
+    }
+
+    /**
+     * @param term term
+     * @return document frequency of term, or 0 if not contained
+     */
+    public long getFrequency(String term) {
+        final byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        final int ord = ceiling(bytes);
+        if (ord < size() && new Cursor(ord).matches(bytes)) {
+            return frequencies[ord];
+        }
+        return 0;
+    }
+
+    /**
+     * @param prefix term prefix
+     * @return terms starting with the given prefix in index order
+     */
+    public Iterator<TermsResponse.Term> prefix(String prefix) {
+        final byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        return new Cursor(ceiling(bytes), prefixEnd(bytes));
+    }
+
+    /**
+     * @param lower lower bound, or null for no lower bound
+     * @param lowerInclusive whether the lower bound is included
+     * @param upper upper bound, or null for no upper bound
+     * @param upperInclusive whether the upper bound is included
+     * @return terms within the given bounds in index order
+     */
+    public Iterator<TermsResponse.Term> range(String lower, boolean lowerInclusive,
+                                              String upper, boolean upperInclusive) {
+        int from = 0;
+        if (lower != null) {
+            final byte[] bytes = lower.getBytes(StandardCharsets.UTF_8);
+            from = ceiling(bytes);
+            if (!lowerInclusive && from < size() && new Cursor(from).matches(bytes)) {
+                from++;
+            }
+        }
+        int to = size();
+        if (upper != null) {
+            final byte[] bytes = upper.getBytes(StandardCharsets.UTF_8);
+            to = ceiling(bytes);
+            if (upperInclusive && to < size() && new Cursor(to).matches(bytes)) {
+                to++;
+            }
+        }
+        return new Cursor(from, Math.max(from, to));
+    }
+
+    /**
+     * @param prefix term prefix, the empty string matching all terms
+     * @param k maximum number of terms returned
+     * @return up to k terms starting with the given prefix, by descending
+     * document frequency and in index order among equally frequent terms
+     */
+    public List<TermsResponse.Term> topK(String prefix, int k) {
+        final byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        final int from = ceiling(bytes);
+        final int to = prefixEnd(bytes);
+        if (k <= 0 || from >= to) {
+            return Collections.emptyList();
+        }
+        // min-heap on frequency holding the k best ords seen so far,
+        // on equal frequency the higher ord is the lesser
+        final PriorityQueue<Integer> best = new PriorityQueue<>(Math.min(k, to - from) + 1,
+                (ord1, ord2) -> frequencies[ord1] != frequencies[ord2]
+                        ? Long.compare(frequencies[ord1], frequencies[ord2])
+                        : Integer.compare(ord2, ord1));
+        for (int ord = from; ord < to; ord++) {
+            if (best.size() < k) {
+                best.add(ord);
+            } else if (frequencies[ord] > frequencies[best.peek()]) {
+                best.poll();
+                best.add(ord);
+            }
+        }
+        final List<TermsResponse.Term> terms = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            final int ord = best.poll();
+            terms.add(new TermsResponse.Term(new Cursor(ord).decode(), frequencies[ord]));
+        }
+        Collections.reverse(terms);
+        return terms;
+    }
+
+    /* ord of the first term greater than or equal to the given bytes */
+    private int ceiling(byte[] key) {
+        if (blocks.length == 0) {
+            return 0;
+        }
+        // last block whose first term is less than or equal to the key
+        int low = 0;
+        int high = blocks.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (compareFirstTerm(mid, key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (compareFirstTerm(low, key) > 0) {
+            return 0;
+        }
+        final Cursor cursor = new Cursor(low * BLOCK_SIZE);
+        final int blockEnd = Math.min(size(), (low + 1) * BLOCK_SIZE);
+        while (cursor.ord < blockEnd) {
+            cursor.advance();
+            if (compare(cursor.term, 0, cursor.length, key) >= 0) {
+                return cursor.ord - 1;
+            }
+        }
+        return blockEnd;
+    }
+
+    /* ord following the last term starting with the given prefix */
+    private int prefixEnd(byte[] prefix) {
+        int length = prefix.length;
+        while (length > 0 && prefix[length - 1] == (byte) 0xFF) {
+            length--;
+        }
+        if (length == 0) {
+            return size();
+        }
+        final byte[] successor = Arrays.copyOf(prefix, length);
+        successor[length - 1]++;
+        return ceiling(successor);
+    }
+
+    private int compareFirstTerm(int block, byte[] key) {
+        final int[] position = {blocks[block]};
+        final int length = readVInt(data, position);
+        return compare(data, position[0], position[0] + length, key);
+    }
+
+    private static int compare(byte[] bytes, int from, int to, byte[] key) {
+        final int length = Math.min(to - from, key.length);
+        for (int i = 0; i < length; i++) {
+            final int cmp = Integer.compare(bytes[from + i] & 0xFF, key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(to - from, key.length);
+    }
+
+    private static int sharedPrefixLength(byte[] bytes1, byte[] bytes2) {
+        final int length = Math.min(bytes1.length, bytes2.length);
+        int i = 0;
+        while (i < length && bytes1[i] == bytes2[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void writeVInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVInt(byte[] bytes, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /* Decodes terms forward from the start of the block holding the
+       first ord, reusing a single buffer for the current term */
+    private class Cursor implements Iterator<TermsResponse.Term> {
+        private final int end;
+        private final int[] position = new int[1];
+        private byte[] term = new byte[32];
+        private int length;
+        // ord of the next term to be decoded
+        private int ord;
+
+        Cursor(int ord) {
+            this(ord, size());
+        }
+
+        Cursor(int from, int end) {
+            this.end = end;
+            if (from < end) {
+                ord = from - from % BLOCK_SIZE;
+                position[0] = blocks[from / BLOCK_SIZE];
+                while (ord < from) {
+                    advance();
+                }
+            } else {
+                ord = from;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return ord < end;
+        }
+
+        @Override
+        public TermsResponse.Term next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final long frequency = frequencies[ord];
+            advance();
+            return new TermsResponse.Term(new String(term, 0, length, StandardCharsets.UTF_8), frequency);
+        }
+
+        String decode() {
+            advance();
+            return new String(term, 0, length, StandardCharsets.UTF_8);
+        }
+
+        boolean matches(byte[] key) {
+            advance();
+            return compare(term, 0, length, key) == 0;
+        }
+
+        private void advance() {
+            final int shared = ord % BLOCK_SIZE == 0 ? 0 : readVInt(data, position);
+            final int suffix = readVInt(data, position);
+            if (shared + suffix > term.length) {
+                term = Arrays.copyOf(term, Math.max(shared + suffix, term.length * 2));
+            }
+            System.arraycopy(data, position[0], term, shared, suffix);
+            position[0] += suffix;
+            length = shared + suffix;
+            ord++;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.TermsResponse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Iterates the terms of a field in index order page by page, each page
+ * starting after the last term of the preceding one.
+ * <p>
+ * When an executor is given, the page following the current one is
+ * requested on it while the current page is being consumed.
+ * </p>
+ */
+class TermIterator implements Iterator<TermsResponse.Term> {
+    @FunctionalInterface
+    interface PageFetcher {
+        /**
+         * @param after term the page should start after, or null for the first page
+         * @param pageSize maximum number of terms in the page
+         * @return terms of the page in index order
+         */
+        List<TermsResponse.Term> fetch(String after, int pageSize) throws IOException, SolrServerException;
+    }
+
+    private final PageFetcher fetcher;
+    private final int pageSize;
+    private final long limit;
+    private final boolean shortPageIsLast;
+    private final Executor executor;
+
+    private Iterator<TermsResponse.Term> terms;
+    private boolean lastPage;
+    private String lastTerm;
+    private CompletableFuture<List<TermsResponse.Term>> prefetched;
+    private long emitted = 0;
+
+    /**
+     * @param fetcher page fetcher
+     * @param pageSize number of terms per page
+     * @param limit maximum number of terms to iterate, negative for no limit
+     * @param shortPageIsLast true if a page holding fewer than pageSize terms
+     *                        marks the end, false if pages may be short because
+     *                        terms are filtered after the limit has been applied
+     * @param executor executor on which the next page is prefetched, or null to disable prefetching
+     * @throws SolrServerException on failure to fetch the first page
+     */
+    TermIterator(PageFetcher fetcher, int pageSize, long limit, boolean shortPageIsLast, Executor executor)
+            throws SolrServerException {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.fetcher = fetcher;
+        this.pageSize = pageSize;
+        this.limit = limit;
+        this.shortPageIsLast = shortPageIsLast;
+        this.executor = executor;
+        try {
+            setPage(fetcher.fetch(null, pageSize));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (limit >= 0 && emitted >= limit) {
+            return false;
+        }
+        while (!terms.hasNext()) {
+            if (lastPage) {
+                return false;
+            }
+            setPage(fetchNextPage());
+        }
+        return true;
+    }
+
+    @Override
+    public TermsResponse.Term next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        emitted++;
+        return terms.next();
+    }
+
+    private void setPage(List<TermsResponse.Term> page) {
+        terms = page.iterator();
+        lastPage = page.isEmpty() || shortPageIsLast && page.size() < pageSize
+                || limit >= 0 && emitted + page.size() >= limit;
+        if (!page.isEmpty()) {
+            lastTerm = page.get(page.size() - 1).getTerm();
+        }
+        prefetched = null;
+        if (!lastPage && executor != null) {
+            final String after = lastTerm;
+            prefetched = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return fetcher.fetch(after, pageSize);
+                } catch (IOException | SolrServerException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        }
+    }
+
+    private List<TermsResponse.Term> fetchNextPage() {
+        try {
+            if (prefetched != null) {
+                return prefetched.join();
+            }
+            return fetcher.fetch(lastTerm, pageSize);
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (SolrServerException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class AdaptiveRowsTest {
+    @Test
+    public void growsTowardsTargetLatency() {
+        // 50 ms overhead per request plus 1 ms per document
+        final AdaptiveRows adaptiveRows = new AdaptiveRows(10, 10000, 500, 0, 10);
+        for (int i = 0; i < 20; i++) {
+            final int rows = adaptiveRows.getRows();
+            adaptiveRows.update(rows, 50 + rows, 0, 0);
+        }
+        final int rows = adaptiveRows.getRows();
+        assertThat("converged", rows >= 400 && rows <= 450, is(true));
+    }
+
+    @Test
+    public void growthIsGradual() {
+        final AdaptiveRows adaptiveRows = new AdaptiveRows(10, 10000, 1000, 0, 10);
+        adaptiveRows.update(10, 1, 0, 0);
+        assertThat(adaptiveRows.getRows(), is(20));
+    }
+
+    @Test
+    public void shrinksToResponseSizeBudget() {
+        final AdaptiveRows adaptiveRows = new AdaptiveRows(1, 1000, 0, 100_000, 1000);
+        adaptiveRows.update(1000, 10, 5, 1_000_000);
+        assertThat(adaptiveRows.getRows(), is(100));
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        final AdaptiveRows adaptiveRows = new AdaptiveRows(5, 50, 10, 0, 500);
+        assertThat("initial", adaptiveRows.getRows(), is(50));
+        adaptiveRows.update(50, 10_000, 9_000, 0);
+        assertThat("lower bound", adaptiveRows.getRows(), is(5));
+    }
+
+    @Test
+    public void emptyPagesAreIgnored() {
+        final AdaptiveRows adaptiveRows = new AdaptiveRows(5, 50, 10, 0, 20);
+        adaptiveRows.update(0, 10_000, 9_000, 0);
+        assertThat(adaptiveRows.getRows(), is(20));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BulkJsonIndexerIT extends SolrCloud {
+    private static final String COLLECTION = "bulktest";
+    private static CloudSolrClient cloudSolrClient;
+
+    @BeforeClass
+    public static void createBulkTestCollection() {
+        final File confDir = new File("src/test/resources/conf");
+        final ZkParams zkParams = ZkParams.create(getZkAddress());
+        cloudSolrClient = new CloudSolrClient.Builder(zkParams.getZkHosts(), zkParams.getZkChroot()).build();
+        cloudSolrClient.connect();
+        createCollection(cloudSolrClient, COLLECTION, 2, 1, confDir);
+    }
+
+    @AfterClass
+    public static void closeClient() throws IOException {
+        if (cloudSolrClient != null) {
+            cloudSolrClient.close();
+        }
+    }
+
+    @Test
+    public void index() throws IOException, SolrServerException {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try (InputStream inputStream = new FileInputStream("src/test/resources/books.json")) {
+            final BulkJsonIndexer.Result result = new BulkJsonIndexer(cloudSolrClient, COLLECTION)
+                    .withBatchSize(3, 10000)
+                    .withConcurrency(3, executor)
+                    .withRetries(2, Duration.ofMillis(10))
+                    .index(inputStream);
+            assertThat("successful", result.isSuccessful(), is(true));
+            assertThat("batches", result.getBatches(), is(4L));
+            assertThat("documents", result.getDocuments(), is(10L));
+        } finally {
+            executor.shutdownNow();
+        }
+        cloudSolrClient.commit(COLLECTION);
+        assertThat("indexed", count("cat:book"), is(10L));
+    }
+
+    @Test
+    public void onlyFailedBatchesAreReported() throws IOException, SolrServerException {
+        // the first document has an invalid version
+        final String input = "{\"id\":\"failing-1\",\"cat\":\"failing\",\"_version_\":\"invalid\"}\n"
+                + "{\"id\":\"failing-2\",\"cat\":\"failing\"}\n"
+                + "{\"id\":\"failing-3\",\"cat\":\"failing\"}\n"
+                + "{\"id\":\"failing-4\",\"cat\":\"failing\"}\n";
+        final BulkJsonIndexer indexer = new BulkJsonIndexer(cloudSolrClient, COLLECTION)
+                .withBatchSize(2, 10000);
+        final BulkJsonIndexer.Result result = indexer.index(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+        assertThat("successful", result.isSuccessful(), is(false));
+        assertThat("documents", result.getDocuments(), is(2L));
+        final List<BulkJsonIndexer.BatchFailure> failures = result.getFailures();
+        assertThat("failures", failures.size(), is(1));
+        assertThat("first document", failures.get(0).getFirstDocument(), is(0L));
+        assertThat("document count", failures.get(0).getDocumentCount(), is(2));
+
+        final BulkJsonIndexer.Result retried = indexer.retry(failures);
+        assertThat("retried", retried.getFailures().size(), is(1));
+        cloudSolrClient.commit(COLLECTION);
+        assertThat("indexed", count("cat:failing"), is(2L));
+    }
+
+    @Test
+    public void indexUsingLeaderRouting() throws IOException, SolrServerException {
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            input.append("{\"id\":\"routed-").append(i).append("\",\"cat\":\"routed\"}\n");
+        }
+        final BulkJsonIndexer.Result result = new BulkJsonIndexer(cloudSolrClient, COLLECTION)
+                .withBatchSize(100, 10000)
+                .withLeaderRouting()
+                .index(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8)));
+        assertThat("successful", result.isSuccessful(), is(true));
+        assertThat("one batch per shard", result.getBatches(), is(2L));
+        assertThat("documents", result.getDocuments(), is(20L));
+        cloudSolrClient.commit(COLLECTION);
+        assertThat("indexed", count("cat:routed"), is(20L));
+    }
+
+    private static long count(String query) throws IOException, SolrServerException {
+        return cloudSolrClient.query(COLLECTION, new SolrQuery(query)).getResults().getNumFound();
+    }
+}
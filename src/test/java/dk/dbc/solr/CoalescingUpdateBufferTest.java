@@ -0,0 +1,217 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CoalescingUpdateBufferTest {
+    private final SolrClient solrClient = mock(SolrClient.class);
+    private final List<UpdateRequest> requests = new ArrayList<>();
+    private IOException failure;
+
+    @Before
+    public void recordRequests() throws IOException, SolrServerException {
+        when(solrClient.request(any(), eq("test"))).thenAnswer(invocation -> {
+            if (failure != null) {
+                throw failure;
+            }
+            requests.add(invocation.getArgument(0));
+            return new NamedList<>();
+        });
+    }
+
+    @Test
+    public void lastWriteWins() throws IOException, SolrServerException {
+        final CoalescingUpdateBuffer buffer = new CoalescingUpdateBuffer(solrClient, "test");
+        buffer.add(document("1", "title", "first"));
+        buffer.add(document("2", "title", "other"));
+        buffer.add(document("1", "title", "second"));
+        buffer.deleteById("3");
+        buffer.add(document("3", "title", "recreated"));
+        buffer.add(document("4", "title", "deleted"));
+        buffer.deleteById("4");
+        assertThat("size", buffer.size(), is(4));
+        assertThat("flushed", buffer.flush(), is(4));
+
+        assertThat("batches", requests.size(), is(1));
+        final UpdateRequest request = requests.get(0);
+        assertThat("documents", titlesOf(request), is(Arrays.asList("second", "other", "recreated")));
+        assertThat("deletes", request.getDeleteById(), is(Collections.singletonList("4")));
+        assertThat("received", buffer.getUpdatesReceived(), is(7L));
+        assertThat("sent", buffer.getUpdatesSent(), is(4L));
+        assertThat("empty", buffer.size(), is(0));
+        assertThat("nothing to flush", buffer.flush(), is(0));
+    }
+
+    @Test
+    public void flushesWhenFull() throws IOException, SolrServerException {
+        final CoalescingUpdateBuffer buffer = new CoalescingUpdateBuffer(solrClient, "test")
+                .withMaxDocuments(2);
+        buffer.add(document("1", "title", "a"));
+        buffer.add(document("1", "title", "b"));
+        assertThat("coalesced", requests.size(), is(0));
+        buffer.add(document("2", "title", "c"));
+        assertThat("flushed", requests.size(), is(1));
+        assertThat("documents", titlesOf(requests.get(0)), is(Arrays.asList("b", "c")));
+    }
+
+    @Test
+    public void partialUpdateFlushesBuffer() throws IOException, SolrServerException {
+        final CoalescingUpdateBuffer buffer = new CoalescingUpdateBuffer(solrClient, "test");
+        buffer.add(document("1", "count", operation("inc", 1)));
+        buffer.add(document("1", "count", operation("inc", 2)));
+        buffer.close();
+        assertThat("batches", requests.size(), is(2));
+    }
+
+    @Test
+    public void mergesPartialUpdates() throws IOException, SolrServerException {
+        final CoalescingUpdateBuffer buffer = new CoalescingUpdateBuffer(solrClient, "test")
+                .withPartialUpdateMerging();
+        buffer.add(document("1", "count", operation("inc", 1)));
+        buffer.add(document("1", "count", operation("inc", 2)));
+        buffer.add(document("1", "tag", operation("add", "a")));
+        buffer.close();
+        assertThat("batches", requests.size(), is(1));
+        final SolrInputDocument merged = requests.get(0).getDocuments().get(0);
+        assertThat("inc", merged.getFieldValue("count"), is(operation("inc", 3L)));
+        assertThat("add", merged.getFieldValue("tag"), is(operation("add", "a")));
+    }
+
+    @Test
+    public void mergeIntoFullDocument() {
+        final SolrInputDocument full = document("1", "count", 1);
+        full.setField("tag", Arrays.asList("a", "b"));
+        final SolrInputDocument partial = document("1", "count", operation("inc", 2));
+        partial.setField("tag", operation("remove", "a"));
+        partial.setField("title", operation("set", "t"));
+        final SolrInputDocument merged = CoalescingUpdateBuffer.merge(full, partial);
+        assertThat("inc", merged.getFieldValue("count"), is(3L));
+        assertThat("remove", new ArrayList<>(merged.getFieldValues("tag")), is(Collections.singletonList("b")));
+        assertThat("set", merged.getFieldValue("title"), is("t"));
+        assertThat("earlier not modified", full.getFieldValue("count"), is(1));
+    }
+
+    @Test
+    public void mergeSetAndAdd() {
+        final SolrInputDocument merged = CoalescingUpdateBuffer.merge(
+                document("1", "tag", operation("set", "a")), document("1", "tag", operation("add", "b")));
+        assertThat(merged.getFieldValue("tag"), is(operation("set", Arrays.asList("a", "b"))));
+    }
+
+    @Test
+    public void unmergeableUpdates() {
+        assertThat("add then inc", CoalescingUpdateBuffer.merge(
+                document("1", "count", operation("add", 1)), document("1", "count", operation("inc", 1))),
+                is(nullValue()));
+        assertThat("unknown operation", CoalescingUpdateBuffer.merge(
+                document("1", "tag", operation("set", "a")), document("1", "tag", operation("removeregex", "a.*"))),
+                is(nullValue()));
+        final SolrInputDocument versioned = document("1", "count", operation("inc", 1));
+        versioned.setField("_version_", 1L);
+        assertThat("optimistic concurrency", CoalescingUpdateBuffer.merge(
+                document("1", "count", operation("inc", 1)), versioned), is(nullValue()));
+    }
+
+    @Test
+    public void scheduledFlush() throws IOException, SolrServerException, InterruptedException {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final CoalescingUpdateBuffer buffer = new CoalescingUpdateBuffer(solrClient, "test")
+                    .withScheduledFlush(scheduler, Duration.ofMillis(50));
+            buffer.add(document("1", "title", "a"));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (buffer.getBatchesSent() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat("flushed", buffer.getBatchesSent(), is(1L));
+            assertThat("empty", buffer.size(), is(0));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedFlushKeepsUpdates() throws IOException, SolrServerException {
+        final CoalescingUpdateBuffer buffer = new CoalescingUpdateBuffer(solrClient, "test");
+        buffer.add(document("1", "title", "a"));
+        failure = new IOException("unavailable");
+        try {
+            buffer.flush();
+            fail("flush did not fail");
+        } catch (IOException e) {
+            assertThat("kept", buffer.size(), is(1));
+        }
+        failure = null;
+        assertThat("flushed", buffer.flush(), is(1));
+    }
+
+    @Test
+    public void failedFlushAfterBufferingIsNotThrown() throws IOException, SolrServerException {
+        final CoalescingUpdateBuffer buffer = new CoalescingUpdateBuffer(solrClient, "test")
+                .withMaxDocuments(2);
+        buffer.add(document("1", "count", operation("inc", 1)));
+        failure = new IOException("unavailable");
+        buffer.add(document("2", "count", operation("inc", 1)));
+        assertThat("buffered", buffer.size(), is(2));
+        try {
+            buffer.add(document("3", "count", operation("inc", 1)));
+            fail("add did not fail");
+        } catch (IOException e) {
+            assertThat("not buffered", buffer.size(), is(2));
+        }
+        failure = null;
+        buffer.add(document("3", "count", operation("inc", 1)));
+        buffer.close();
+        assertThat("received", buffer.getUpdatesReceived(), is(3L));
+        assertThat("sent", buffer.getUpdatesSent(), is(3L));
+    }
+
+    private static SolrInputDocument document(String id, String field, Object value) {
+        final SolrInputDocument document = new SolrInputDocument();
+        document.setField("id", id);
+        document.setField(field, value);
+        return document;
+    }
+
+    private static Map<String, Object> operation(String operation, Object value) {
+        return Collections.singletonMap(operation, value);
+    }
+
+    private static List<Object> titlesOf(UpdateRequest request) {
+        final List<Object> titles = new ArrayList<>();
+        for (SolrInputDocument document : request.getDocuments()) {
+            titles.add(document.getFieldValue("title"));
+        }
+        return titles;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class CompactTermsResponseParserTest {
+    private final CompactTermsResponseParser parser = new CompactTermsResponseParser();
+
+    @Test
+    public void flatTerms() {
+        final NamedList<Object> response = parser.processResponse(new ByteArrayInputStream((
+                "{\"responseHeader\":{\"status\":0,\"QTime\":1}," +
+                "\"terms\":{\"author\":[\"Glen Cook\",1,\"J\\u00F8rgen \\\"J\\\"\",2,\"\\uD83D\\uDE00\",3]," +
+                "\"genre\":[]}}").getBytes(StandardCharsets.UTF_8)), "UTF-8");
+        assertThat("header", ((NamedList) response.get("responseHeader")).get("status"), is(0L));
+
+        final CompactTermsResponse termsResponse = (CompactTermsResponse) response.get("terms");
+        assertThat("fields", new ArrayList<>(termsResponse.getFields()), is(Arrays.asList("author", "genre")));
+        final CompactTermsResponse.Terms terms = termsResponse.getTerms("author");
+        assertThat("size", terms.size(), is(3));
+        assertThat("frequencies", frequenciesOf(terms),
+                is(Arrays.asList("Glen Cook=1", "J\u00F8rgen \"J\"=2", "\uD83D\uDE00=3")));
+        assertThat("utf-8 length", terms.entry().moveTo(1).getUtf8Length(), is(11));
+        assertThat("total term frequency", terms.getTotalTermFreq(0), is(-1L));
+        assertThat("starts with", terms.entry().moveTo(1).startsWith("J\u00F8".getBytes(StandardCharsets.UTF_8)),
+                is(true));
+        assertThat("empty field", termsResponse.getTerms("genre").size(), is(0));
+        assertThat("unknown field", termsResponse.getTerms("title"), is(nullValue()));
+    }
+
+    @Test
+    public void termsWithTotalTermFrequencies() {
+        final NamedList<Object> response = parser.processResponse(new StringReader(
+                "{\"terms\":{\"author\":{\"a\":{\"df\":2,\"ttf\":5},\"b\":{\"df\":1,\"ttf\":1}}}}"));
+        final CompactTermsResponse.Terms terms = ((CompactTermsResponse) response.get("terms")).getTerms("author");
+        assertThat("frequencies", frequenciesOf(terms), is(Arrays.asList("a=2", "b=1")));
+        assertThat("total term frequency", terms.getTotalTermFreq(0), is(5L));
+        assertThat("converted", terms.toTermList().get(1).getTotalTermFreq(), is(1L));
+    }
+
+    @Test
+    public void manyTerms() {
+        final StringBuilder json = new StringBuilder("{\"terms\":{\"id\":[");
+        for (int i = 0; i < 1000; i++) {
+            json.append(i > 0 ? "," : "").append("\"term").append(i).append("\",").append(i);
+        }
+        json.append("]}}");
+        final CompactTermsResponse.Terms terms = ((CompactTermsResponse) parser.processResponse(
+                new StringReader(json.toString())).get("terms")).getTerms("id");
+        assertThat("size", terms.size(), is(1000));
+        assertThat("last", terms.getTerm(999), is("term999"));
+        assertThat("last frequency", terms.getFrequency(999), is(999L));
+    }
+
+    @Test
+    public void error() {
+        final NamedList<Object> response = parser.processResponse(new StringReader(
+                "{\"error\":{\"msg\":\"undefined field\",\"code\":400}}"));
+        assertThat(((NamedList) response.get("error")).get("msg"), is("undefined field"));
+    }
+
+    @Test(expected = SolrException.class)
+    public void malformed() {
+        parser.processResponse(new StringReader("{\"terms\":{\"author\":[\"a\",\"b\"]}}"));
+    }
+
+    private static List<String> frequenciesOf(CompactTermsResponse.Terms terms) {
+        final List<String> frequencies = new ArrayList<>();
+        for (CompactTermsResponse.Entry entry : terms) {
+            frequencies.add(entry.getTerm() + "=" + entry.getFrequency());
+        }
+        return frequencies;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class CursorMarkCacheTest {
+    @Test
+    public void keyIgnoresPagingAndFieldList() {
+        final SolrQuery query = new SolrQuery("title:game");
+        query.addSort("id", SolrQuery.ORDER.asc);
+        final String key = CursorMarkCache.keyOf("books", query);
+
+        final SolrQuery page = query.getCopy();
+        page.setStart(100);
+        page.setRows(20);
+        page.setFields("id", "title");
+        assertThat("same order", CursorMarkCache.keyOf("books", page), is(key));
+
+        final SolrQuery filtered = query.getCopy();
+        filtered.addFilterQuery("author:*");
+        assertThat("filter", CursorMarkCache.keyOf("books", filtered), is(not(key)));
+        assertThat("collection", CursorMarkCache.keyOf("films", query), is(not(key)));
+    }
+
+    @Test
+    public void floor() {
+        final CursorMarkCache cache = new CursorMarkCache(10, 10);
+        cache.put("q", 100, "mark100");
+        cache.put("q", 200, "mark200");
+
+        assertThat("before first", cache.floor("q", 99), is(nullValue()));
+        final Map.Entry<Long, String> entry = cache.floor("q", 150);
+        assertThat("offset", entry.getKey(), is(100L));
+        assertThat("mark", entry.getValue(), is("mark100"));
+        assertThat("unknown query", cache.floor("other", 150), is(nullValue()));
+    }
+
+    @Test
+    public void lowestOffsetsAreEvictedFirst() {
+        final CursorMarkCache cache = new CursorMarkCache(10, 2);
+        cache.put("q", 100, "mark100");
+        cache.put("q", 300, "mark300");
+        cache.put("q", 200, "mark200");
+
+        assertThat(cache.floor("q", 199), is(nullValue()));
+        assertThat(cache.floor("q", 200).getValue(), is("mark200"));
+    }
+
+    @Test
+    public void leastRecentlyUsedQueriesAreEvicted() {
+        final CursorMarkCache cache = new CursorMarkCache(2, 10);
+        cache.put("q1", 100, "mark");
+        cache.put("q2", 100, "mark");
+        cache.floor("q1", 100);
+        cache.put("q3", 100, "mark");
+
+        assertThat("size", cache.size(), is(2));
+        assertThat("q1", cache.floor("q1", 100), is(not(nullValue())));
+        assertThat("q2", cache.floor("q2", 100), is(nullValue()));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class FieldAnalysisCacheTest {
+    @Test
+    public void hitsAndMisses() {
+        final FieldAnalysisCache cache = new FieldAnalysisCache(10, 1000);
+        assertThat("miss", cache.get("books", "text", "Value"), is(nullValue()));
+        cache.put("books", "text", "Value", "value");
+        assertThat("hit", cache.get("books", "text", "Value"), is("value"));
+        assertThat("other collection", cache.get("films", "text", "Value"), is(nullValue()));
+        assertThat("other type", cache.get("books", "string", "Value"), is(nullValue()));
+
+        final FieldAnalysisCache.Stats stats = cache.getStats();
+        assertThat("hits", stats.getHits(), is(1L));
+        assertThat("misses", stats.getMisses(), is(3L));
+        assertThat("size", stats.getSize(), is(1));
+        assertThat("weight", stats.getWeight(), is(14L));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondMaxEntries() {
+        final FieldAnalysisCache cache = new FieldAnalysisCache(2, 1000);
+        cache.put("books", "text", "a", "a");
+        cache.put("books", "text", "b", "b");
+        cache.get("books", "text", "a");
+        cache.put("books", "text", "c", "c");
+
+        assertThat("a", cache.get("books", "text", "a"), is("a"));
+        assertThat("b", cache.get("books", "text", "b"), is(nullValue()));
+        assertThat("evictions", cache.getStats().getEvictions(), is(1L));
+    }
+
+    @Test
+    public void evictsBeyondMaxWeight() {
+        final FieldAnalysisCache cache = new FieldAnalysisCache(100, 20);
+        cache.put("books", "text", "aaaa", "aaaa");
+        cache.put("books", "text", "bbbb", "bbbb");
+        cache.put("books", "text", "cccc", "cccc");
+
+        assertThat("size", cache.getStats().getSize(), is(1));
+        assertThat("weight", cache.getStats().getWeight(), is(12L));
+        assertThat("c", cache.get("books", "text", "cccc"), is("cccc"));
+    }
+
+    @Test
+    public void invalidateCollection() {
+        final FieldAnalysisCache cache = new FieldAnalysisCache(10, 1000);
+        cache.put("books", "text", "a", "a");
+        cache.put("films", "text", "a", "a");
+        cache.invalidate("books");
+
+        assertThat("books", cache.get("books", "text", "a"), is(nullValue()));
+        assertThat("films", cache.get("films", "text", "a"), is("a"));
+        assertThat("weight", cache.getStats().getWeight(), is(6L));
+        assertThat("books schema version", cache.getSchemaVersion("books"), is(1L));
+        assertThat("films schema version", cache.getSchemaVersion("films"), is(0L));
+    }
+
+    @Test
+    public void resultsAnalyzedBeforeInvalidationAreNotCached() {
+        final FieldAnalysisCache cache = new FieldAnalysisCache(10, 1000);
+        final long version = cache.getSchemaVersion("books");
+        cache.invalidate("books");
+        cache.put("books", version, "text", "a", "a");
+        assertThat("outdated", cache.get("books", "text", "a"), is(nullValue()));
+
+        cache.put("books", cache.getSchemaVersion("books"), "text", "a", "a");
+        assertThat("current", cache.get("books", "text", "a"), is("a"));
+    }
+}
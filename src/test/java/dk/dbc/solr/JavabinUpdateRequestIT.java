@@ -0,0 +1,82 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class JavabinUpdateRequestIT extends SolrCloud {
+    private static final String COLLECTION = "javabintest";
+    private static CloudSolrClient cloudSolrClient;
+
+    @BeforeClass
+    public static void createJavabinTestCollection() {
+        final File confDir = new File("src/test/resources/conf");
+        final ZkParams zkParams = ZkParams.create(getZkAddress());
+        cloudSolrClient = new CloudSolrClient.Builder(zkParams.getZkHosts(), zkParams.getZkChroot()).build();
+        cloudSolrClient.connect();
+        createCollection(cloudSolrClient, COLLECTION, 2, 1, confDir);
+    }
+
+    @AfterClass
+    public static void closeClient() throws IOException {
+        if (cloudSolrClient != null) {
+            cloudSolrClient.close();
+        }
+    }
+
+    @Test
+    public void indexFromJson() throws IOException, SolrServerException {
+        try (InputStream inputStream = new FileInputStream("src/test/resources/books.json")) {
+            JavabinUpdateRequest.fromJson(inputStream).process(cloudSolrClient, COLLECTION);
+        }
+        cloudSolrClient.commit(COLLECTION);
+        assertThat("indexed", count("cat:book"), is(10L));
+
+        // same values as when indexed as JSON
+        final SolrDocument document = cloudSolrClient.query(COLLECTION, new SolrQuery("id:553573403"))
+                .getResults().get(0);
+        assertThat("title", document.getFirstValue("title"), is("A Game of Thrones"));
+        assertThat("author", document.getFirstValue("author"), is("George R.R. Martin"));
+    }
+
+    @Test
+    public void indexFromIterator() throws IOException, SolrServerException {
+        final Iterator<SolrInputDocument> documents = IntStream.range(0, 1000)
+                .mapToObj(i -> {
+                    final SolrInputDocument document = new SolrInputDocument();
+                    document.addField("id", "generated-" + i);
+                    document.addField("cat", "generated");
+                    return document;
+                })
+                .iterator();
+        new JavabinUpdateRequest(documents).process(cloudSolrClient, COLLECTION);
+        cloudSolrClient.commit(COLLECTION);
+        assertThat("indexed", count("cat:generated"), is(1000L));
+        assertThat("ids", cloudSolrClient.query(COLLECTION, new SolrQuery("id:(generated-0 OR generated-999)"))
+                .getResults().getNumFound(), is(2L));
+    }
+
+    private static long count(String query) throws IOException, SolrServerException {
+        return cloudSolrClient.query(COLLECTION, new SolrQuery(query)).getResults().getNumFound();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class JsonBatchSplitterTest {
+    @Test
+    public void splitsJsonLinesByNumberOfDocuments() throws IOException {
+        final JsonBatchSplitter splitter = splitter(
+                "{\"id\":1}\n{\"id\":2}\r\n\n{\"id\":3, \"v\":[1,{\"a\":2}]}\n", 2, 1000);
+        final JsonBatchSplitter.JsonBatch first = splitter.next();
+        assertThat("first", asString(first), is("[{\"id\":1},{\"id\":2}]"));
+        assertThat("first number", first.getNumber(), is(0L));
+        assertThat("first documents", first.getDocuments(), is(2));
+        final JsonBatchSplitter.JsonBatch second = splitter.next();
+        assertThat("second", asString(second), is("[{\"id\":3, \"v\":[1,{\"a\":2}]}]"));
+        assertThat("second number", second.getNumber(), is(1L));
+        assertThat("second first document", second.getFirstDocument(), is(2L));
+        assertThat("end", splitter.next(), is(nullValue()));
+    }
+
+    @Test
+    public void splitsJsonArray() throws IOException {
+        assertThat(batchesOf(splitter(" [ {\"id\":1} ,\n{\"id\":2},{\"id\":3} ]\n", 2, 1000)),
+                is(Arrays.asList("[{\"id\":1},{\"id\":2}]", "[{\"id\":3}]")));
+        assertThat("empty", batchesOf(splitter("[ ]", 2, 1000)), is(new ArrayList<String>()));
+    }
+
+    @Test
+    public void splitsByNumberOfBytes() throws IOException {
+        // each document is 10 bytes, brackets and commas add up to 2 + n - 1 bytes
+        assertThat(batchesOf(splitter("{\"id\":\"1\"}{\"id\":\"2\"}{\"id\":\"3\"}", 100, 23)),
+                is(Arrays.asList("[{\"id\":\"1\"},{\"id\":\"2\"}]", "[{\"id\":\"3\"}]")));
+        assertThat("oversized document", batchesOf(splitter("{\"id\":\"1\"}{\"id\":\"2\"}", 100, 5)),
+                is(Arrays.asList("[{\"id\":\"1\"}]", "[{\"id\":\"2\"}]")));
+    }
+
+    @Test
+    public void ignoresDelimitersInStrings() throws IOException {
+        final String document = "{\"id\":\"}{][\\\"\\\\\",\"v\":\"\u00E6\u00F8\u00E5 ,\"}";
+        assertThat(batchesOf(splitter("[" + document + "," + document + "]", 1, 1000)),
+                is(Arrays.asList("[" + document + "]", "[" + document + "]")));
+    }
+
+    @Test
+    public void readsAcrossBufferBoundaries() throws IOException {
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            value.append("0123456789");
+        }
+        for (int i = 0; i < 5; i++) {
+            input.append("{\"id\":").append(i).append(",\"v\":\"").append(value).append("\"}\n");
+        }
+        final List<String> batches = batchesOf(splitter(input.toString(), 2, Long.MAX_VALUE));
+        assertThat("batches", batches.size(), is(3));
+        assertThat("last", batches.get(2), is("[{\"id\":4,\"v\":\"" + value + "\"}]"));
+    }
+
+    @Test
+    public void groupsDocumentsByRoute() throws IOException {
+        final String input = "{\"id\":\"a1\"}{\"id\":\"b1\"}{\"id\":\"a2\"}{\"id\":\"c1\"}{\"id\":\"a3\"}";
+        final JsonBatchSplitter splitter = new JsonBatchSplitter(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), 2, 1000,
+                (document, length) -> {
+                    final String id = JsonBatchSplitter.getFieldValue(
+                            document, length, "id".getBytes(StandardCharsets.UTF_8));
+                    return id.startsWith("c") ? null : id.substring(0, 1);
+                });
+        final List<JsonBatchSplitter.JsonBatch> batches = new ArrayList<>();
+        JsonBatchSplitter.JsonBatch batch;
+        while ((batch = splitter.next()) != null) {
+            batches.add(batch);
+        }
+        assertThat("batches", batches.size(), is(4));
+        assertThat("full batch first", asString(batches.get(0)), is("[{\"id\":\"a1\"},{\"id\":\"a2\"}]"));
+        assertThat("full batch route", batches.get(0).getRoute(), is("a"));
+        assertThat("full batch first document", batches.get(0).getFirstDocument(), is(0L));
+        assertThat("remaining b", asString(batches.get(1)), is("[{\"id\":\"b1\"}]"));
+        assertThat("remaining b first document", batches.get(1).getFirstDocument(), is(1L));
+        assertThat("unrouted", asString(batches.get(2)), is("[{\"id\":\"c1\"}]"));
+        assertThat("unrouted route", batches.get(2).getRoute(), is(nullValue()));
+        assertThat("remaining a", asString(batches.get(3)), is("[{\"id\":\"a3\"}]"));
+        for (int i = 0; i < batches.size(); i++) {
+            assertThat("number " + i, batches.get(i).getNumber(), is((long) i));
+        }
+    }
+
+    @Test
+    public void getFieldValue() {
+        assertThat("string", fieldValue("{\"title\":\"t\", \"id\" : \"a\\\"b\\u00E6\"}", "id"), is("a\"b\u00E6"));
+        assertThat("number", fieldValue("{\"id\":42}", "id"), is("42"));
+        assertThat("nested ignored", fieldValue("{\"sub\":{\"id\":\"x\"},\"id\":\"y\"}", "id"), is("y"));
+        assertThat("value not key", fieldValue("{\"title\":\"id\"}", "id"), is(nullValue()));
+        assertThat("array", fieldValue("{\"id\":[\"x\"]}", "id"), is(nullValue()));
+        assertThat("missing", fieldValue("{\"title\":\"t\"}", "id"), is(nullValue()));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedDocument() throws IOException {
+        batchesOf(splitter("{\"id\":1}\n{\"id\":", 10, 1000));
+    }
+
+    @Test(expected = IOException.class)
+    public void unterminatedArray() throws IOException {
+        batchesOf(splitter("[{\"id\":1}", 10, 1000));
+    }
+
+    @Test(expected = IOException.class)
+    public void notAnObject() throws IOException {
+        batchesOf(splitter("{\"id\":1}\n42", 10, 1000));
+    }
+
+    private static String fieldValue(String document, String field) {
+        final byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+        return JsonBatchSplitter.getFieldValue(bytes, bytes.length, field.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static JsonBatchSplitter splitter(String input, int maxDocuments, long maxBytes) {
+        return new JsonBatchSplitter(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                maxDocuments, maxBytes);
+    }
+
+    private static List<String> batchesOf(JsonBatchSplitter splitter) throws IOException {
+        final List<String> batches = new ArrayList<>();
+        JsonBatchSplitter.JsonBatch batch;
+        while ((batch = splitter.next()) != null) {
+            batches.add(asString(batch));
+        }
+        return batches;
+    }
+
+    private static String asString(JsonBatchSplitter.JsonBatch batch) {
+        return new String(batch.getBytes(), StandardCharsets.UTF_8);
+    }
+}
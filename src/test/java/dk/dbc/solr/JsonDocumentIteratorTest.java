@@ -0,0 +1,78 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.noggit.JSONParser;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class JsonDocumentIteratorTest {
+    @Test
+    public void convertsValues() {
+        final List<SolrInputDocument> documents = documentsOf(
+                "{\"id\":\"1\",\"title\":\"J\\u00F8rgen\",\"count\":42,\"price\":1.5,\"available\":true," +
+                "\"tags\":[\"a\",\"b\",null],\"empty\":[],\"missing\":null}");
+        assertThat("documents", documents.size(), is(1));
+        final SolrInputDocument document = documents.get(0);
+        assertThat("id", document.getFieldValue("id"), is("1"));
+        assertThat("string", document.getFieldValue("title"), is("J\u00F8rgen"));
+        assertThat("long", document.getFieldValue("count"), is(42L));
+        assertThat("double", document.getFieldValue("price"), is(1.5));
+        assertThat("boolean", document.getFieldValue("available"), is(true));
+        assertThat("multi valued", new ArrayList<>(document.getFieldValues("tags")), is(Arrays.asList("a", "b")));
+        assertThat("empty array", document.getField("empty"), is(nullValue()));
+        assertThat("null", document.getField("missing"), is(nullValue()));
+    }
+
+    @Test
+    public void nestedObjectsAreChildDocuments() {
+        final SolrInputDocument document = documentsOf(
+                "{\"id\":\"1\",\"chapter\":{\"id\":\"1-1\"},\"chapters\":[{\"id\":\"1-2\"},{\"id\":\"1-3\"}]}").get(0);
+        final SolrInputDocument child = (SolrInputDocument) document.getFieldValue("chapter");
+        assertThat("child", child.getFieldValue("id"), is("1-1"));
+        assertThat("children", document.getFieldValues("chapters").size(), is(2));
+    }
+
+    @Test
+    public void arrayAndJsonLines() {
+        assertThat("array", idsOf("[{\"id\":\"1\"}, {\"id\":\"2\"}]"), is(Arrays.asList("1", "2")));
+        assertThat("lines", idsOf("{\"id\":\"1\"}\n{\"id\":\"2\"}\n"), is(Arrays.asList("1", "2")));
+        assertThat("empty array", idsOf("[]"), is(Collections.emptyList()));
+        assertThat("empty input", idsOf(""), is(Collections.emptyList()));
+    }
+
+    @Test(expected = JSONParser.ParseException.class)
+    public void notAnObject() {
+        documentsOf("{\"id\":\"1\"}\n42");
+    }
+
+    private static List<String> idsOf(String input) {
+        final List<String> ids = new ArrayList<>();
+        for (SolrInputDocument document : documentsOf(input)) {
+            ids.add((String) document.getFieldValue("id"));
+        }
+        return ids;
+    }
+
+    private static List<SolrInputDocument> documentsOf(String input) {
+        final JsonDocumentIterator iterator = new JsonDocumentIterator(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+        final List<SolrInputDocument> documents = new ArrayList<>();
+        iterator.forEachRemaining(documents::add);
+        return documents;
+    }
+}
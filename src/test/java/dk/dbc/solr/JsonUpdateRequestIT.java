@@ -0,0 +1,60 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class JsonUpdateRequestIT extends SolrCloud {
+    private static final String COLLECTION = "jsonupdatetest";
+    private static CloudSolrClient cloudSolrClient;
+
+    @BeforeClass
+    public static void createJsonUpdateTestCollection() {
+        final File confDir = new File("src/test/resources/conf");
+        final ZkParams zkParams = ZkParams.create(getZkAddress());
+        cloudSolrClient = new CloudSolrClient.Builder(zkParams.getZkHosts(), zkParams.getZkChroot()).build();
+        cloudSolrClient.connect();
+        createCollection(cloudSolrClient, COLLECTION, 2, 1, confDir);
+    }
+
+    @AfterClass
+    public static void closeClient() throws IOException {
+        if (cloudSolrClient != null) {
+            cloudSolrClient.close();
+        }
+    }
+
+    @Test
+    public void indexFromFile() throws IOException, SolrServerException {
+        final JsonUpdateRequest request = JsonUpdateRequest.fromFile(Paths.get("src/test/resources/books.json"));
+        request.process(cloudSolrClient, COLLECTION);
+        cloudSolrClient.commit(COLLECTION);
+        assertThat("indexed", count("cat:book"), is(10L));
+
+        // the file is read anew, replacing the documents
+        request.process(cloudSolrClient, COLLECTION);
+        cloudSolrClient.commit(COLLECTION);
+        assertThat("sent again", count("cat:book"), is(10L));
+        assertThat("title", cloudSolrClient.query(COLLECTION, new SolrQuery("id:553573403"))
+                .getResults().get(0).getFirstValue("title"), is("A Game of Thrones"));
+    }
+
+    private static long count(String query) throws IOException, SolrServerException {
+        return cloudSolrClient.query(COLLECTION, new SolrQuery(query)).getResults().getNumFound();
+    }
+}
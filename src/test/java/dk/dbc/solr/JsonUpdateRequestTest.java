@@ -0,0 +1,109 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.common.util.ContentStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class JsonUpdateRequestTest {
+    private static final String JSON = "[{\"id\":\"1\",\"title\":\"J\u00F8rgen\"},{\"id\":\"2\"}]";
+    private static final byte[] BYTES = JSON.getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void fromFile() throws IOException {
+        final Path path = temporaryFolder.newFile().toPath();
+        Files.write(path, BYTES);
+        final ContentStream contentStream = contentStreamOf(JsonUpdateRequest.fromFile(path));
+        assertThat("size", contentStream.getSize(), is((long) BYTES.length));
+        assertThat("content", read(contentStream.getStream()), is(JSON));
+        assertThat("content read again", read(contentStream.getStream()), is(JSON));
+    }
+
+    @Test
+    public void fromChannel() throws IOException {
+        final Path path = temporaryFolder.newFile().toPath();
+        Files.write(path, ("ignored" + JSON + "ignored").getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ContentStream contentStream = contentStreamOf(
+                    JsonUpdateRequest.fromChannel(channel, "ignored".length(), BYTES.length));
+            assertThat("size", contentStream.getSize(), is((long) BYTES.length));
+            assertThat("content", read(contentStream.getStream()), is(JSON));
+            assertThat("channel open", channel.isOpen(), is(true));
+            assertThat("channel position", channel.position(), is(0L));
+        }
+    }
+
+    @Test
+    public void fromBuffer() throws IOException {
+        final ByteBuffer heapBuffer = ByteBuffer.allocate(BYTES.length + 2);
+        heapBuffer.put((byte) 'x').put(BYTES).flip().position(1);
+        final ContentStream heapContentStream = contentStreamOf(JsonUpdateRequest.fromBuffer(heapBuffer));
+        assertThat("heap size", heapContentStream.getSize(), is((long) BYTES.length));
+        assertThat("heap content", read(heapContentStream.getStream()), is(JSON));
+        assertThat("heap position", heapBuffer.position(), is(1));
+
+        final ByteBuffer directBuffer = ByteBuffer.allocateDirect(BYTES.length);
+        directBuffer.put(BYTES).flip();
+        final ContentStream directContentStream = contentStreamOf(JsonUpdateRequest.fromBuffer(directBuffer));
+        assertThat("direct size", directContentStream.getSize(), is((long) BYTES.length));
+        assertThat("direct content", read(directContentStream.getStream()), is(JSON));
+        assertThat("direct content read again", read(directContentStream.getStream()), is(JSON));
+    }
+
+    @Test
+    public void withGzip() throws IOException {
+        final JsonUpdateRequest request = JsonUpdateRequest.fromBuffer(ByteBuffer.wrap(BYTES)).withGzip();
+        assertThat("header", request.getHeaders().get("Content-Encoding"), is("gzip"));
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        request.getContentWriter("application/json").write(compressed);
+        assertThat("content", read(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))),
+                is(JSON));
+    }
+
+    @Test
+    public void uncompressedByDefault() {
+        final JsonUpdateRequest request = new JsonUpdateRequest(new ByteArrayInputStream(BYTES));
+        assertThat("header", request.getHeaders(), is(nullValue()));
+        assertThat("content writer", request.getContentWriter("application/json"), is(nullValue()));
+    }
+
+    private static ContentStream contentStreamOf(JsonUpdateRequest request) {
+        return request.getContentStreams().iterator().next();
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        try (InputStream in = inputStream) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[7];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
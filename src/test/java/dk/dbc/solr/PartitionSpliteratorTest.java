@@ -0,0 +1,58 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PartitionSpliteratorTest {
+    @Test
+    public void splitsByPartition() {
+        final PartitionSpliterator<Integer> spliterator = new PartitionSpliterator<>(Arrays.asList(
+                Arrays.asList(1, 2).spliterator(),
+                Arrays.asList(3, 4, 5).spliterator(),
+                Arrays.asList(6).spliterator()), true);
+
+        assertThat("size", spliterator.estimateSize(), is(6L));
+        assertThat("sized", spliterator.hasCharacteristics(Spliterator.SIZED), is(true));
+
+        final Spliterator<Integer> prefix = spliterator.trySplit();
+        assertThat("prefix", prefix, is(notNullValue()));
+        assertThat("prefix size", prefix.estimateSize(), is(2L));
+        assertThat("suffix size", spliterator.estimateSize(), is(4L));
+    }
+
+    @Test
+    public void parallelStreamKeepsEncounterOrderOfOrderedPartitions() {
+        final PartitionSpliterator<Integer> spliterator = new PartitionSpliterator<>(Arrays.asList(
+                Arrays.asList(1, 2).spliterator(),
+                Arrays.asList(3, 4, 5).spliterator(),
+                Arrays.asList(6, 7).spliterator()), true);
+
+        final List<Integer> elements = StreamSupport.stream(spliterator, true)
+                .collect(Collectors.toList());
+        assertThat(elements, is(Arrays.asList(1, 2, 3, 4, 5, 6, 7)));
+    }
+
+    @Test
+    public void unorderedPartitions() {
+        final PartitionSpliterator<Integer> spliterator = new PartitionSpliterator<>(Arrays.asList(
+                Arrays.asList(1, 2).spliterator(),
+                Arrays.asList(3).spliterator()), false);
+
+        assertThat("ordered", spliterator.hasCharacteristics(Spliterator.ORDERED), is(false));
+        assertThat("sum", StreamSupport.stream(spliterator, true).mapToInt(Integer::intValue).sum(), is(6));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.LBHttpSolrClient;
+import org.apache.solr.client.solrj.impl.LBSolrClient;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ReplicaSelectorTest {
+    private final List<Replica> replicas = Arrays.asList(
+            replica("r1", "host1:8983_solr"),
+            replica("r2", "host2:8983_solr"),
+            replica("r3", "host3:8983_solr"));
+
+    @Test
+    public void roundRobin() {
+        final ReplicaSelector selector = ReplicaSelector.roundRobin();
+        assertThat("1st", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r1", "r2", "r3")));
+        assertThat("2nd", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r2", "r3", "r1")));
+        assertThat("other shard", namesOf(selector.order("shard2", replicas)), is(Arrays.asList("r1", "r2", "r3")));
+        assertThat("3rd", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r3", "r1", "r2")));
+        assertThat("4th", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r1", "r2", "r3")));
+    }
+
+    @Test
+    public void roundRobinPerCollection() {
+        final ReplicaSelector selector = ReplicaSelector.roundRobin();
+        final List<Replica> otherReplicas = Arrays.asList(
+                replica("o1", "host1:8983_solr", "other"),
+                replica("o2", "host2:8983_solr", "other"));
+        assertThat("1st", namesOf(selector.order("shard1", replicas)).get(0), is("r1"));
+        assertThat("other collection", namesOf(selector.order("shard1", otherReplicas)).get(0), is("o1"));
+        assertThat("2nd", namesOf(selector.order("shard1", replicas)).get(0), is("r2"));
+    }
+
+    @Test
+    public void preferringCyclesThroughPreferredReplicas() {
+        final ReplicaSelector selector = ReplicaSelector.preferring(replica -> !"r3".equals(replica.getName()));
+        assertThat("1st", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r1", "r2", "r3")));
+        assertThat("2nd", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r2", "r1", "r3")));
+        assertThat("3rd", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r1", "r2", "r3")));
+    }
+
+    @Test
+    public void lowestLatency() {
+        final ReplicaSelector selector = ReplicaSelector.lowestLatency(0.5);
+        selector.onResponse(replicas.get(0).getCoreUrl(), 100);
+        selector.onResponse(replicas.get(1).getCoreUrl(), 10);
+        assertThat("unmeasured first", namesOf(selector.order("shard1", replicas)),
+                is(Arrays.asList("r3", "r2", "r1")));
+
+        selector.onResponse(replicas.get(2).getCoreUrl(), 50);
+        assertThat("measured", namesOf(selector.order("shard1", replicas)),
+                is(Arrays.asList("r2", "r3", "r1")));
+
+        // 10 -> 105 -> 152.5
+        selector.onResponse(replicas.get(1).getCoreUrl(), 200);
+        selector.onResponse(replicas.get(1).getCoreUrl(), 200);
+        assertThat("smoothed", namesOf(selector.order("shard1", replicas)),
+                is(Arrays.asList("r3", "r1", "r2")));
+    }
+
+    @Test
+    public void lowestLatencyProbesSlowReplicas() {
+        final ReplicaSelector selector = ReplicaSelector.lowestLatency(1, 3);
+        selector.onResponse(replicas.get(0).getCoreUrl(), 500);
+        selector.onResponse(replicas.get(1).getCoreUrl(), 300);
+        selector.onResponse(replicas.get(2).getCoreUrl(), 10);
+        assertThat("1st", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r3", "r2", "r1")));
+        assertThat("2nd", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r3", "r2", "r1")));
+        assertThat("probe least recently measured", namesOf(selector.order("shard1", replicas)),
+                is(Arrays.asList("r1", "r3", "r2")));
+
+        // r1 has recovered
+        selector.onResponse(replicas.get(0).getCoreUrl(), 5);
+        assertThat("recovered", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r1", "r3", "r2")));
+        selector.order("shard1", replicas);
+        assertThat("next probe", namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r2", "r1", "r3")));
+    }
+
+    @Test
+    public void lowestLatencyDemotesSlowReplicaOnFanOut() throws IOException, SolrServerException {
+        final LBHttpSolrClient lbClient = mock(LBHttpSolrClient.class);
+        final List<String> answeredBy = new ArrayList<>();
+        when(lbClient.request(any(LBSolrClient.Req.class))).thenAnswer(invocation -> {
+            final String coreUrl = invocation.<LBSolrClient.Req>getArgument(0).getServers().get(0);
+            answeredBy.add(coreUrl);
+            if (coreUrl.equals(replicas.get(0).getCoreUrl())) {
+                Thread.sleep(50);
+            }
+            // the load balancer reports the server without trailing slash
+            return new Response(coreUrl.substring(0, coreUrl.length() - 1));
+        });
+        final CloudSolrClient cloudSolrClient = mock(CloudSolrClient.class);
+        when(cloudSolrClient.getLbClient()).thenReturn(lbClient);
+        final CollectionTopology.Shard shard = new CollectionTopology.Shard("shard1", replicas.subList(0, 2));
+        final ReplicaSelector selector = ReplicaSelector.lowestLatency(1);
+
+        for (int i = 0; i < 4; i++) {
+            shard.request(cloudSolrClient, new QueryRequest(), selector);
+        }
+        assertThat(answeredBy, is(Arrays.asList(replicas.get(0).getCoreUrl(), replicas.get(1).getCoreUrl(),
+                replicas.get(1).getCoreUrl(), replicas.get(1).getCoreUrl())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lowestLatencyRejectsInvalidSmoothing() {
+        ReplicaSelector.lowestLatency(0);
+    }
+
+    @Test
+    public void preferNode() {
+        final ReplicaSelector selector = ReplicaSelector.preferNode("host2:8983_solr");
+        assertThat("1st", namesOf(selector.order("shard1", replicas)).get(0), is("r2"));
+        assertThat("2nd", namesOf(selector.order("shard1", replicas)).get(0), is("r2"));
+        assertThat("unknown node", namesOf(ReplicaSelector.preferNode("host4:8983_solr")
+                .order("shard1", replicas)), is(Arrays.asList("r1", "r2", "r3")));
+    }
+
+    @Test
+    public void preferringWithFallback() {
+        final ReplicaSelector selector = ReplicaSelector.preferring(
+                replica -> !"r1".equals(replica.getName()), ReplicaSelector.lowestLatency(1));
+        selector.onResponse(replicas.get(0).getCoreUrl(), 1);
+        selector.onResponse(replicas.get(1).getCoreUrl(), 20);
+        selector.onResponse(replicas.get(2).getCoreUrl(), 10);
+        assertThat(namesOf(selector.order("shard1", replicas)), is(Arrays.asList("r3", "r2", "r1")));
+    }
+
+    private static Replica replica(String name, String nodeName) {
+        return replica(name, nodeName, "collection");
+    }
+
+    private static Replica replica(String name, String nodeName, String collection) {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(ZkStateReader.CORE_NAME_PROP, "core_" + name);
+        properties.put(ZkStateReader.BASE_URL_PROP, "http://" + nodeName.replace('_', '/'));
+        properties.put(ZkStateReader.NODE_NAME_PROP, nodeName);
+        properties.put(ZkStateReader.STATE_PROP, Replica.State.ACTIVE.toString());
+        return new Replica(name, properties, collection, "shard1");
+    }
+
+    private static class Response extends LBSolrClient.Rsp {
+        Response(String server) {
+            this.server = server;
+            this.rsp = new NamedList<>();
+        }
+    }
+
+    private static List<String> namesOf(List<Replica> replicas) {
+        return replicas.stream()
+                .map(Replica::getName)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class RetryPolicyTest {
+    private final RetryPolicy retryPolicy = new RetryPolicy(2, Duration.ofMillis(1));
+
+    @Test
+    public void retriesUntilSuccess() throws IOException, SolrServerException {
+        final AtomicInteger attempts = new AtomicInteger();
+        final String result = retryPolicy.execute(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IOException("attempt " + attempts.get());
+            }
+            return "ok";
+        });
+        assertThat("result", result, is("ok"));
+        assertThat("attempts", attempts.get(), is(3));
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() throws SolrServerException {
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            retryPolicy.execute(() -> {
+                attempts.incrementAndGet();
+                throw new IOException("down");
+            });
+            fail("No IOException thrown");
+        } catch (IOException e) {
+            assertThat("attempts", attempts.get(), is(3));
+        }
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() throws IOException, SolrServerException {
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            retryPolicy.execute(() -> {
+                attempts.incrementAndGet();
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "bad");
+            });
+            fail("No SolrException thrown");
+        } catch (SolrException e) {
+            assertThat("attempts", attempts.get(), is(1));
+        }
+    }
+}
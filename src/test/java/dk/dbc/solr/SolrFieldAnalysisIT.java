@@ -7,6 +7,8 @@ package dk.dbc.solr;
 
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.common.cloud.ZkStateReader;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -15,6 +17,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
@@ -50,4 +54,62 @@ public class SolrFieldAnalysisIT extends SolrCloud {
         assertThat(solrFieldAnalysis.byFieldType("text_general", "MyTeRm"),
                 is("myterm"));
     }
+
+    @Test
+    public void byFieldTypeBatched() throws SolrServerException {
+        final SolrFieldAnalysis solrFieldAnalysis = new SolrFieldAnalysis(cloudSolrClient, COLLECTION)
+                .withBatchSize(2);
+        assertThat(solrFieldAnalysis.byFieldType("text_general",
+                Arrays.asList("MyTeRm", "OtherTerm", "MyTeRm", "<&>Third")),
+                is(Arrays.asList("myterm", "otherterm", "myterm", "third")));
+    }
+
+    @Test
+    public void byFieldTypeBatchedUsingDynamicField() throws SolrServerException {
+        final SolrFieldAnalysis solrFieldAnalysis = new SolrFieldAnalysis(cloudSolrClient, COLLECTION);
+        assertThat(solrFieldAnalysis.byFieldType("text_general_rev", Arrays.asList("Abc", "Def")),
+                is(Arrays.asList(
+                        solrFieldAnalysis.byFieldType("text_general_rev", "Abc"),
+                        solrFieldAnalysis.byFieldType("text_general_rev", "Def"))));
+    }
+
+    @Test
+    public void byFieldTypeCachedUntilSchemaChanges() throws Exception {
+        try (FieldAnalysisCache cache = new FieldAnalysisCache(100, 10000)) {
+            final SolrFieldAnalysis solrFieldAnalysis = new SolrFieldAnalysis(cloudSolrClient, COLLECTION)
+                    .withCache(cache);
+            assertThat("miss", solrFieldAnalysis.byFieldType("text_general", "MyTeRm"), is("myterm"));
+            assertThat("batch", solrFieldAnalysis.byFieldType("text_general", Arrays.asList("MyTeRm", "Other")),
+                    is(Arrays.asList("myterm", "other")));
+            assertThat("hits", cache.getStats().getHits(), is(1L));
+            assertThat("size", cache.getStats().getSize(), is(2));
+
+            final ZkStateReader zkStateReader = cloudSolrClient.getZkStateReader();
+            final String path = ZkStateReader.CONFIGS_ZKNODE + "/" + zkStateReader.readConfigName(COLLECTION)
+                    + "/" + FieldAnalysisCache.DEFAULT_SCHEMA_RESOURCE;
+            final SolrZkClient zkClient = zkStateReader.getZkClient();
+            zkClient.setData(path, zkClient.getData(path, null, null, true), true);
+            for (int i = 0; i < 100 && cache.getStats().getInvalidations() == 0; i++) {
+                Thread.sleep(50);
+            }
+            assertThat("invalidated", cache.getStats().getSize(), is(0));
+        }
+    }
+
+    @Test
+    public void byFieldTypeLocally() throws SolrServerException {
+        final SolrFieldAnalysis remote = new SolrFieldAnalysis(cloudSolrClient, COLLECTION);
+        final SolrFieldAnalysis local = new SolrFieldAnalysis(cloudSolrClient, COLLECTION)
+                .withLocalAnalysis();
+        final List<String> values = Arrays.asList("MyTeRm", "Running Dogs", "The Hitchhiker's Guide", "\u00C6r\u00F8");
+        // text_general_rev uses a filter only found in Solr and is analyzed remotely
+        for (String fieldType : Arrays.asList("text_general", "text_en", "text_general_rev", "lowercase")) {
+            for (String value : values) {
+                assertThat(fieldType + " " + value, local.byFieldType(fieldType, value),
+                        is(remote.byFieldType(fieldType, value)));
+            }
+            assertThat(fieldType + " batch", local.byFieldType(fieldType, values),
+                    is(remote.byFieldType(fieldType, values)));
+        }
+    }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.TermsResponse;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SolrScanCacheTest {
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void cachesUntilExpired() throws IOException, SolrServerException, InterruptedException {
+        final SolrScanCache cache = new SolrScanCache(10, Duration.ofMillis(100));
+        final TermsResponse first = cache.get(null, "collection", query("a"), this::load);
+        assertThat("hit", cache.get(null, "collection", query("a"), this::load), is(sameInstance(first)));
+        assertThat("other collection", cache.get(null, "other", query("a"), this::load),
+                is(not(sameInstance(first))));
+        assertThat("other params", cache.get(null, "collection", query("b"), this::load),
+                is(not(sameInstance(first))));
+        assertThat("loads", loads.get(), is(3));
+        assertThat("hits", cache.getHits(), is(1L));
+        assertThat("misses", cache.getMisses(), is(3L));
+
+        Thread.sleep(150);
+        assertThat("expired", cache.get(null, "collection", query("a"), this::load), is(not(sameInstance(first))));
+        assertThat("loads after expiry", loads.get(), is(4));
+    }
+
+    @Test
+    public void boundedBySize() throws IOException, SolrServerException {
+        final SolrScanCache cache = new SolrScanCache(2, Duration.ofMinutes(1));
+        cache.get(null, "collection", query("a"), this::load);
+        cache.get(null, "collection", query("b"), this::load);
+        cache.get(null, "collection", query("a"), this::load);
+        cache.get(null, "collection", query("c"), this::load);
+        assertThat("size", cache.size(), is(2));
+        cache.get(null, "collection", query("a"), this::load);
+        assertThat("least recently used evicted", loads.get(), is(3));
+        cache.get(null, "collection", query("b"), this::load);
+        assertThat("evicted reloaded", loads.get(), is(4));
+    }
+
+    @Test
+    public void invalidate() throws IOException, SolrServerException {
+        final SolrScanCache cache = new SolrScanCache(10, Duration.ofMinutes(1));
+        cache.get(null, "collection", query("a"), this::load);
+        cache.get(null, "other", query("a"), this::load);
+        cache.invalidate("collection");
+        assertThat("size", cache.size(), is(1));
+        cache.get(null, "other", query("a"), this::load);
+        assertThat("loads", loads.get(), is(2));
+    }
+
+    @Test
+    public void coalescesConcurrentScans() throws Exception {
+        final SolrScanCache cache = new SolrScanCache(10, Duration.ofMinutes(1));
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<TermsResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> cache.get(null, "collection", query("a"), () -> {
+                    await(release);
+                    return load();
+                })));
+            }
+            while (cache.getHits() + cache.getMisses() < 4) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            final TermsResponse first = futures.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<TermsResponse> future : futures) {
+                assertThat(future.get(10, TimeUnit.SECONDS), is(sameInstance(first)));
+            }
+            assertThat("loads", loads.get(), is(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failuresAreNotCached() throws IOException, SolrServerException {
+        final SolrScanCache cache = new SolrScanCache(10, Duration.ofMinutes(1));
+        try {
+            cache.get(null, "collection", query("a"), () -> {
+                throw new SolrServerException("failed");
+            });
+            fail("no exception thrown");
+        } catch (SolrServerException e) {
+            assertThat(e.getMessage(), is("failed"));
+        }
+        assertThat("size", cache.size(), is(0));
+        cache.get(null, "collection", query("a"), this::load);
+        assertThat("loads", loads.get(), is(1));
+    }
+
+    @Test
+    public void errorsReleaseWaitingScans() throws Exception {
+        final SolrScanCache cache = new SolrScanCache(10, Duration.ofMinutes(1));
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<Future<TermsResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                futures.add(executor.submit(() -> cache.get(null, "collection", query("a"), () -> {
+                    await(release);
+                    throw new AssertionError("failed");
+                })));
+            }
+            while (cache.getHits() + cache.getMisses() < 2) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<TermsResponse> future : futures) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    fail("no error thrown");
+                } catch (ExecutionException e) {
+                    assertThat(e.getCause().getMessage(), is("failed"));
+                }
+            }
+            assertThat("size", cache.size(), is(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keyOfIgnoresParameterOrder() {
+        final ModifiableSolrParams params1 = new ModifiableSolrParams();
+        params1.set("terms.fl", "author");
+        params1.set("terms.limit", 10);
+        final ModifiableSolrParams params2 = new ModifiableSolrParams();
+        params2.set("terms.limit", 10);
+        params2.set("terms.fl", "author");
+        assertThat(SolrScanCache.keyOf("collection", params1), is(SolrScanCache.keyOf("collection", params2)));
+    }
+
+    private static SolrQuery query(String prefix) {
+        final SolrQuery query = new SolrQuery();
+        query.addTermsField("author");
+        query.setTermsPrefix(prefix);
+        return query;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private TermsResponse load() {
+        loads.incrementAndGet();
+        return new TermsResponse(new NamedList<>());
+    }
+}
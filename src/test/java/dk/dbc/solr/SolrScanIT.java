@@ -16,8 +16,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
@@ -73,4 +80,209 @@ public class SolrScanIT extends SolrCloud {
             i++;
         }
     }
+
+    @Test
+    public void iterate() throws IOException, SolrServerException {
+        final List<String> expectedTerms = termsOf(new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .withLimit(-1)
+                .withSort(SolrScan.SortType.INDEX)
+                .execute().getTerms("author"));
+
+        final List<String> terms = new ArrayList<>();
+        final Iterator<TermsResponse.Term> iterator = new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .iterate(2);
+        iterator.forEachRemaining(term -> terms.add(term.getTerm()));
+        assertThat("all terms", terms, is(expectedTerms));
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final List<String> prefetchedTerms = new ArrayList<>();
+            new SolrScan(cloudSolrClient, COLLECTION)
+                    .withField("author")
+                    .iterate(3, executor)
+                    .forEachRemaining(term -> prefetchedTerms.add(term.getTerm()));
+            assertThat("prefetched terms", prefetchedTerms, is(expectedTerms));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void iterateWithinBounds() throws SolrServerException {
+        assertThat("upper", new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .withUpper("Ow")
+                .withUpperInclusive(true)
+                .stream(2)
+                .map(TermsResponse.Term::getTerm)
+                .collect(Collectors.toList()),
+                is(Arrays.asList("George R.R. Martin", "Glen Cook", "Isaac Asimov", "Lloyd Alexander",
+                        "Orson Scott Card")));
+        assertThat("prefix", new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .withPrefix("G")
+                .stream(1)
+                .map(TermsResponse.Term::getTerm)
+                .collect(Collectors.toList()),
+                is(Arrays.asList("George R.R. Martin", "Glen Cook")));
+        assertThat("limit", new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .withLimit(3)
+                .stream(2)
+                .count(),
+                is(3L));
+    }
+
+    @Test
+    public void scanUsingShardFanOut() throws IOException, SolrServerException {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (SolrScan.SortType sortType : SolrScan.SortType.values()) {
+                for (int limit : new int[] {2, 30}) {
+                    final TermsResponse expected = new SolrScan(cloudSolrClient, COLLECTION)
+                            .withField("author")
+                            .withSort(sortType)
+                            .withLimit(limit)
+                            .execute();
+                    final TermsResponse fannedOut = new SolrScan(cloudSolrClient, COLLECTION)
+                            .withField("author")
+                            .withSort(sortType)
+                            .withLimit(limit)
+                            .withShardFanOut(executor)
+                            .execute();
+                    assertThat(sortType + " " + limit, frequenciesOf(fannedOut.getTerms("author")),
+                            is(frequenciesOf(expected.getTerms("author"))));
+                }
+            }
+
+            final TermsResponse minCount = new SolrScan(cloudSolrClient, COLLECTION)
+                    .withField("author")
+                    .withSort(SolrScan.SortType.INDEX)
+                    .withMinCount(2)
+                    .withShardFanOut(executor)
+                    .execute();
+            assertThat("min count", frequenciesOf(minCount.getTerms("author")),
+                    is(Arrays.asList("George R.R. Martin=3", "Lloyd Alexander=2")));
+
+            final TermsResponse countSorted = new SolrScan(cloudSolrClient, COLLECTION)
+                    .withField("author")
+                    .withSort(SolrScan.SortType.COUNT)
+                    .withMinCount(2)
+                    .withLimit(1)
+                    .withShardFanOut(executor)
+                    .execute();
+            assertThat("count sorted min count", frequenciesOf(countSorted.getTerms("author")),
+                    is(Collections.singletonList("George R.R. Martin=3")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void scanUsingReplicaSelector() throws IOException, SolrServerException {
+        final TermsResponse expected = new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .withLimit(30)
+                .execute();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (ReplicaSelector replicaSelector : Arrays.asList(ReplicaSelector.roundRobin(),
+                    ReplicaSelector.lowestLatency(0.2), ReplicaSelector.preferNode("no-such-node"))) {
+                final TermsResponse distributed = new SolrScan(cloudSolrClient, COLLECTION)
+                        .withField("author")
+                        .withLimit(30)
+                        .withReplicaSelector(replicaSelector)
+                        .execute();
+                assertThat("distributed", frequenciesOf(distributed.getTerms("author")),
+                        is(frequenciesOf(expected.getTerms("author"))));
+                final TermsResponse fannedOut = new SolrScan(cloudSolrClient, COLLECTION)
+                        .withField("author")
+                        .withLimit(30)
+                        .withReplicaSelector(replicaSelector)
+                        .withShardFanOut(executor)
+                        .execute();
+                assertThat("fanned out", frequenciesOf(fannedOut.getTerms("author")),
+                        is(frequenciesOf(expected.getTerms("author"))));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void termDictionary() throws IOException, SolrServerException {
+        final TermsResponse expected = new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .withLimit(-1)
+                .withSort(SolrScan.SortType.INDEX)
+                .execute();
+        try (RefreshingTermDictionary termDictionary =
+                     new RefreshingTermDictionary(cloudSolrClient, COLLECTION, "author", 2)) {
+            final List<TermsResponse.Term> terms = new ArrayList<>();
+            termDictionary.get().range(null, true, null, true).forEachRemaining(terms::add);
+            assertThat("terms", frequenciesOf(terms), is(frequenciesOf(expected.getTerms("author"))));
+            assertThat("top", frequenciesOf(termDictionary.get().topK("", 2)),
+                    is(Arrays.asList("George R.R. Martin=3", "Lloyd Alexander=2")));
+            assertThat("unchanged", termDictionary.refreshIfChanged(), is(false));
+        }
+    }
+
+    @Test
+    public void executeCompact() throws IOException, SolrServerException {
+        final TermsResponse expected = new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .withLimit(-1)
+                .withSort(SolrScan.SortType.INDEX)
+                .execute();
+        final CompactTermsResponse response = new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .withLimit(-1)
+                .withSort(SolrScan.SortType.INDEX)
+                .executeCompact();
+        assertThat(frequenciesOf(response.getTerms("author").toTermList()),
+                is(frequenciesOf(expected.getTerms("author"))));
+    }
+
+    @Test
+    public void scanUsingCache() throws IOException, SolrServerException {
+        final SolrScanCache cache = new SolrScanCache(10, Duration.ofMinutes(1))
+                .withIndexVersionCheck(Duration.ZERO);
+        final TermsResponse response = new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .withLimit(30)
+                .withCache(cache)
+                .execute();
+        final TermsResponse cached = new SolrScan(cloudSolrClient, COLLECTION)
+                .withField("author")
+                .withLimit(30)
+                .withCache(cache)
+                .execute();
+        assertThat("cached", cached == response, is(true));
+        assertThat("misses", cache.getMisses(), is(1L));
+        assertThat("hits", cache.getHits(), is(1L));
+        assertThat("terms", frequenciesOf(cached.getTerms("author")), is(frequenciesOf(new SolrScan(
+                cloudSolrClient, COLLECTION).withField("author").withLimit(30).execute().getTerms("author"))));
+    }
+
+    @Test
+    public void topologyIsSharedBetweenScans() {
+        final CollectionTopology topology = CollectionTopology.get(cloudSolrClient, COLLECTION);
+        assertThat("number of shards", topology.getShards().size(), is(2));
+        assertThat("cached", CollectionTopology.get(cloudSolrClient, COLLECTION) == topology, is(true));
+        assertThat("shards param", topology.getShardsParam().split(",").length, is(2));
+    }
+
+    private static List<String> frequenciesOf(List<TermsResponse.Term> terms) {
+        return terms.stream()
+                .map(term -> term.getTerm() + "=" + term.getFrequency())
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> termsOf(List<TermsResponse.Term> terms) {
+        return terms.stream()
+                .map(TermsResponse.Term::getTerm)
+                .collect(Collectors.toList());
+    }
 }
@@ -15,16 +15,33 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 public class SolrSearchIT extends SolrCloud {
     private static final String COLLECTION = "searchtest";
+    private static final String[] EXPECTED_IDS = {
+            "055357342X", "080508049X", "380014300", "441385532", "553293354",
+            "553573403", "553579908", "805080481", "812521390", "812550706"};
     private static CloudSolrClient cloudSolrClient;
 
     @BeforeClass
@@ -71,13 +88,351 @@ public class SolrSearchIT extends SolrCloud {
 
         assertThat("number of hits", resultSet.getSize(), is(10L));
 
-        final String[] expectedIds = {
-                "055357342X", "080508049X", "380014300", "441385532", "553293354",
-                "553573403", "553579908", "805080481", "812521390", "812550706"};
         int docNo = 0;
         for (SolrDocument doc : resultSet) {
-            final String expectedId = expectedIds[docNo++];
+            final String expectedId = EXPECTED_IDS[docNo++];
             assertThat("document: " + docNo, doc.getFirstValue("id"), is(expectedId));
         }
     }
+
+    @Test
+    public void searchUsingCursorBasedIterationWithPrefetch() throws SolrServerException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final SolrSearch.ResultSet resultSet = new SolrSearch(cloudSolrClient, COLLECTION)
+                    .withQuery("*:*")
+                    .withRows(3)
+                    .withFields("id")
+                    .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                    .withPrefetch(2, executor)
+                    .executeForCursorBasedIteration();
+
+            assertThat("number of hits", resultSet.getSize(), is(10L));
+
+            final List<Object> ids = new ArrayList<>();
+            for (SolrDocument doc : resultSet) {
+                ids.add(doc.getFirstValue("id"));
+            }
+            assertThat("ids", ids, is(Arrays.asList(EXPECTED_IDS)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void searchUsingShardParallelIterationSorted() throws SolrServerException {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final SolrSearch.ResultSet resultSet = new SolrSearch(cloudSolrClient, COLLECTION)
+                    .withQuery("*:*")
+                    .withRows(2)
+                    .withFields("title")
+                    .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                    .executeForShardParallelIteration(SolrSearch.ResultOrder.SORTED, executor);
+
+            assertThat("number of hits", resultSet.getSize(), is(10L));
+
+            final List<Object> ids = new ArrayList<>();
+            for (SolrDocument doc : resultSet) {
+                ids.add(doc.getFirstValue("id"));
+            }
+            assertThat("ids", ids, is(Arrays.asList(EXPECTED_IDS)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void searchUsingShardParallelIterationUnordered() throws SolrServerException {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final SolrSearch.ResultSet resultSet = new SolrSearch(cloudSolrClient, COLLECTION)
+                    .withQuery("*:*")
+                    .withRows(2)
+                    .withFields("id")
+                    .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                    .executeForShardParallelIteration(SolrSearch.ResultOrder.UNORDERED, executor);
+
+            assertThat("number of hits", resultSet.getSize(), is(10L));
+
+            final Set<Object> ids = new HashSet<>();
+            for (SolrDocument doc : resultSet) {
+                ids.add(doc.getFirstValue("id"));
+            }
+            assertThat("ids", ids, is(new HashSet<>(Arrays.asList(EXPECTED_IDS))));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void searchUsingExport() throws SolrServerException {
+        try (SolrSearch.ResultSet resultSet = new SolrSearch(cloudSolrClient, COLLECTION)
+                .withQuery("*:*")
+                .withFields("id")
+                .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                .executeForExport()) {
+
+            assertThat("number of hits", resultSet.getSize(), is(10L));
+
+            final List<Object> ids = new ArrayList<>();
+            for (SolrDocument doc : resultSet) {
+                ids.add(doc.getFirstValue("id"));
+            }
+            assertThat("ids", ids, is(Arrays.asList(EXPECTED_IDS)));
+        }
+    }
+
+    @Test
+    public void searchUsingCursorBasedStreaming() throws SolrServerException {
+        final List<Object> ids = new ArrayList<>();
+        final long numFound = new SolrSearch(cloudSolrClient, COLLECTION)
+                .withQuery("*:*")
+                .withRows(4)
+                .withFields("id")
+                .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                .executeForCursorBasedStreaming(doc -> ids.add(doc.getFirstValue("id")));
+
+        assertThat("number of hits", numFound, is(10L));
+        assertThat("ids", ids, is(Arrays.asList(EXPECTED_IDS)));
+    }
+
+    @Test
+    public void searchUsingStreamedCursorBasedIteration() throws SolrServerException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (SolrSearch.ResultSet resultSet = new SolrSearch(cloudSolrClient, COLLECTION)
+                .withQuery("*:*")
+                .withRows(4)
+                .withFields("id")
+                .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                .executeForStreamedCursorBasedIteration(2, executor)) {
+
+            assertThat("number of hits", resultSet.getSize(), is(10L));
+
+            final List<Object> ids = new ArrayList<>();
+            for (SolrDocument doc : resultSet) {
+                ids.add(doc.getFirstValue("id"));
+            }
+            assertThat("ids", ids, is(Arrays.asList(EXPECTED_IDS)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void streamShardParallelIteration() throws SolrServerException {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final SolrSearch.ResultSet resultSet = new SolrSearch(cloudSolrClient, COLLECTION)
+                    .withQuery("*:*")
+                    .withRows(2)
+                    .withFields("id")
+                    .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                    .executeForShardParallelIteration(SolrSearch.ResultOrder.UNORDERED, executor);
+
+            assertThat("estimated size", resultSet.spliterator().estimateSize(), is(10L));
+
+            final Set<Object> ids = resultSet.stream()
+                    .parallel()
+                    .map(doc -> doc.getFirstValue("id"))
+                    .collect(Collectors.toSet());
+            assertThat("ids", ids, is(new HashSet<>(Arrays.asList(EXPECTED_IDS))));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void streamCursorBasedIteration() throws SolrServerException {
+        final List<Object> ids = new SolrSearch(cloudSolrClient, COLLECTION)
+                .withQuery("*:*")
+                .withRows(3)
+                .withFields("id")
+                .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                .executeForCursorBasedIteration()
+                .stream()
+                .parallel()
+                .map(doc -> doc.getFirstValue("id"))
+                .collect(Collectors.toList());
+
+        assertThat("ids", ids, is(Arrays.asList(EXPECTED_IDS)));
+    }
+
+    @Test
+    public void searchUsingRangePartitionedIteration() throws SolrServerException {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final SolrSearch.ResultSet resultSet = new SolrSearch(cloudSolrClient, COLLECTION)
+                    .withQuery("*:*")
+                    .withRows(2)
+                    .withFields("id")
+                    .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                    .executeForRangePartitionedIteration(3, SolrSearch.ResultOrder.SORTED, executor);
+
+            assertThat("number of hits", resultSet.getSize(), is(10L));
+
+            final List<Object> ids = resultSet.stream()
+                    .parallel()
+                    .map(doc -> doc.getFirstValue("id"))
+                    .collect(Collectors.toList());
+            assertThat("ids", ids, is(Arrays.asList(EXPECTED_IDS)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void rangePartitionedIterationOfSelectiveQueryMatchesSingleQuery() throws SolrServerException {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final SolrSearch search = new SolrSearch(cloudSolrClient, COLLECTION)
+                    .withQuery("genre:fantasy")
+                    .withRows(2)
+                    .withFields("id")
+                    .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.desc));
+            final List<Object> expected = new ArrayList<>();
+            for (SolrDocument doc : search.executeForCursorBasedIteration()) {
+                expected.add(doc.getFirstValue("id"));
+            }
+            final List<Object> ids = search
+                    .executeForRangePartitionedIteration(3, SolrSearch.ResultOrder.SORTED, executor)
+                    .stream()
+                    .map(doc -> doc.getFirstValue("id"))
+                    .collect(Collectors.toList());
+            assertThat(ids, is(expected));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void resumeCursorBasedIterationFromCheckpoint() throws IOException, ClassNotFoundException, SolrServerException {
+        // checkpoints both within and at the end of a page
+        for (int consumed : new int[] {4, 6}) {
+            final SolrSearch.ResultSet resultSet = new SolrSearch(cloudSolrClient, COLLECTION)
+                    .withQuery("*:*")
+                    .withRows(3)
+                    .withFields("id")
+                    .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                    .executeForCursorBasedIteration();
+            final List<Object> ids = new ArrayList<>();
+            final Iterator<SolrDocument> iterator = resultSet.iterator();
+            for (int i = 0; i < consumed; i++) {
+                ids.add(iterator.next().getFirstValue("id"));
+            }
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(resultSet.checkpoint());
+            }
+            final CursorCheckpoint checkpoint;
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                checkpoint = (CursorCheckpoint) in.readObject();
+            }
+            assertThat("emitted", checkpoint.getEmitted(), is((long) consumed));
+
+            final SolrSearch.ResultSet resumed = new SolrSearch(cloudSolrClient, COLLECTION)
+                    .withRetries(2, Duration.ofMillis(10))
+                    .resumeCursorBasedIteration(checkpoint);
+            assertThat("number of hits", resumed.getSize(), is(10L));
+            assertThat("remaining", resumed.spliterator().estimateSize(), is(10L - consumed));
+            ids.addAll(Arrays.asList(resumed.stream().map(doc -> doc.getFirstValue("id")).toArray()));
+            assertThat("ids", ids, is(Arrays.asList(EXPECTED_IDS)));
+            assertThat("emitted when done", resumed.checkpoint().getEmitted(), is(10L));
+        }
+    }
+
+    @Test
+    public void resumeFromCheckpointTakenAfterAdaptiveRowsGrew() throws SolrServerException {
+        // pages of 1, 2 and 4 rows, checkpoint within the page of 4 rows
+        final SolrSearch.ResultSet resultSet = new SolrSearch(cloudSolrClient, COLLECTION)
+                .withQuery("*:*")
+                .withRows(1)
+                .withFields("id")
+                .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                .withAdaptiveRows(1, 4, Duration.ofSeconds(10), 0)
+                .executeForCursorBasedIteration();
+        final List<Object> ids = new ArrayList<>();
+        final Iterator<SolrDocument> iterator = resultSet.iterator();
+        for (int i = 0; i < 6; i++) {
+            ids.add(iterator.next().getFirstValue("id"));
+        }
+        final CursorCheckpoint checkpoint = resultSet.checkpoint();
+        assertThat("consumed in page", checkpoint.getConsumedInPage(), is(3));
+
+        final SolrSearch.ResultSet resumed = new SolrSearch(cloudSolrClient, COLLECTION)
+                .resumeCursorBasedIteration(checkpoint);
+        for (SolrDocument doc : resumed) {
+            ids.add(doc.getFirstValue("id"));
+        }
+        assertThat("ids", ids, is(Arrays.asList(EXPECTED_IDS)));
+    }
+
+    @Test
+    public void searchUsingCursorBasedIterationWithAdaptiveRows() throws SolrServerException {
+        final SolrSearch.ResultSet resultSet = new SolrSearch(cloudSolrClient, COLLECTION)
+                .withQuery("*:*")
+                .withRows(1)
+                .withFields("id")
+                .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                .withAdaptiveRows(1, 4, Duration.ofSeconds(10), 0)
+                .executeForCursorBasedIteration();
+
+        assertThat("number of hits", resultSet.getSize(), is(10L));
+
+        final List<Object> ids = new ArrayList<>();
+        for (SolrDocument doc : resultSet) {
+            ids.add(doc.getFirstValue("id"));
+        }
+        assertThat("ids", ids, is(Arrays.asList(EXPECTED_IDS)));
+    }
+
+    @Test
+    public void searchUsingDeepPaging() throws IOException, SolrServerException {
+        final CursorMarkCache cursorMarkCache = new CursorMarkCache(10, 10);
+        for (int start : new int[] {7, 4, 9, 12}) {
+            final QueryResponse response = new SolrSearch(cloudSolrClient, COLLECTION)
+                    .withQuery("*:*")
+                    .withStart(start)
+                    .withRows(2)
+                    .withFields("id")
+                    .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                    .withDeepPaging(cursorMarkCache, 3)
+                    .execute();
+
+            final SolrDocumentList results = response.getResults();
+            assertThat("number of hits", results.getNumFound(), is(10L));
+            assertThat("start", results.getStart(), is((long) start));
+            final List<Object> ids = results.stream()
+                    .map(doc -> doc.getFirstValue("id"))
+                    .collect(Collectors.toList());
+            final List<String> expectedIds = Arrays.asList(EXPECTED_IDS)
+                    .subList(Math.min(start, 10), Math.min(start + 2, 10));
+            assertThat("ids from " + start, ids, is(expectedIds));
+        }
+        assertThat("cached queries", cursorMarkCache.size(), is(1));
+    }
+
+    @Test
+    public void count() throws IOException, SolrServerException {
+        final long count = new SolrSearch(cloudSolrClient, COLLECTION)
+                .withQuery("title:game")
+                .withRows(1)
+                .withSortClauses(new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))
+                .count();
+        assertThat(count, is(2L));
+    }
+
+    @Test
+    public void exists() throws IOException, SolrServerException {
+        assertThat("match", new SolrSearch(cloudSolrClient, COLLECTION)
+                .withQuery("title:game")
+                .exists(Duration.ofSeconds(1)), is(true));
+        assertThat("no match", new SolrSearch(cloudSolrClient, COLLECTION)
+                .withQuery("title:nosuchword")
+                .exists(Duration.ofSeconds(1)), is(false));
+        assertThat("short time allowed", new SolrSearch(cloudSolrClient, COLLECTION)
+                .withQuery("title:game")
+                .exists(Duration.ofMillis(1)), is(true));
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.SolrDocument;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SortClauseComparatorTest {
+    @Test
+    public void multipleSortClauses() {
+        final SortClauseComparator comparator = new SortClauseComparator(Arrays.asList(
+                new SolrQuery.SortClause("price", SolrQuery.ORDER.desc),
+                new SolrQuery.SortClause("id", SolrQuery.ORDER.asc)));
+
+        final List<SolrDocument> docs = Arrays.asList(
+                doc("b", 6.99), doc("a", 6.99), doc("c", 7.99), doc("d", null));
+        docs.sort(comparator);
+
+        assertThat(ids(docs), is(Arrays.asList("c", "a", "b", "d")));
+    }
+
+    @Test
+    public void missingStringsAreLowest() {
+        final List<SolrDocument> docs = Arrays.asList(doc("b", null), doc(null, null), doc("a", null));
+        docs.sort(new SortClauseComparator(Collections.singletonList(
+                new SolrQuery.SortClause("id", SolrQuery.ORDER.asc))));
+        assertThat("asc", ids(docs), is(Arrays.asList(null, "a", "b")));
+
+        docs.sort(new SortClauseComparator(Collections.singletonList(
+                new SolrQuery.SortClause("id", SolrQuery.ORDER.desc))));
+        assertThat("desc", ids(docs), is(Arrays.asList("b", "a", null)));
+    }
+
+    @Test
+    public void missingNumbersCompareAsZero() {
+        final SortClauseComparator comparator = new SortClauseComparator(Collections.singletonList(
+                new SolrQuery.SortClause("price", SolrQuery.ORDER.asc)));
+
+        final List<SolrDocument> docs = Arrays.asList(doc("a", 1.0), doc("b", null), doc("c", -1.0));
+        docs.sort(comparator);
+
+        assertThat(ids(docs), is(Arrays.asList("c", "b", "a")));
+    }
+
+    @Test
+    public void sortMissingFirstAndLast() {
+        final List<SolrDocument> docs = Arrays.asList(doc("a", 1.0), doc("b", null), doc("c", -1.0));
+        docs.sort(new SortClauseComparator(Collections.singletonList(
+                new SolrQuery.SortClause("price", SolrQuery.ORDER.asc))).withSortMissingLast("price"));
+        assertThat("last asc", ids(docs), is(Arrays.asList("c", "a", "b")));
+
+        docs.sort(new SortClauseComparator(Collections.singletonList(
+                new SolrQuery.SortClause("price", SolrQuery.ORDER.desc))).withSortMissingLast("price"));
+        assertThat("last desc", ids(docs), is(Arrays.asList("a", "c", "b")));
+
+        docs.sort(new SortClauseComparator(Collections.singletonList(
+                new SolrQuery.SortClause("price", SolrQuery.ORDER.desc))).withSortMissingFirst("price"));
+        assertThat("first desc", ids(docs), is(Arrays.asList("b", "a", "c")));
+    }
+
+    @Test
+    public void stringsAreOrderedByCodePoint() {
+        final SortClauseComparator comparator = new SortClauseComparator(Collections.singletonList(
+                new SolrQuery.SortClause("id", SolrQuery.ORDER.asc)));
+
+        // U+1F600 precedes U+FF21 in UTF-16 but not in UTF-8 byte order
+        final List<SolrDocument> docs = Arrays.asList(doc("\uFF21", null), doc("\uD83D\uDE00", null));
+        docs.sort(comparator);
+
+        assertThat(ids(docs), is(Arrays.asList("\uFF21", "\uD83D\uDE00")));
+    }
+
+    private static SolrDocument doc(String id, Double price) {
+        final SolrDocument doc = new SolrDocument();
+        if (id != null) {
+            doc.setField("id", id);
+        }
+        if (price != null) {
+            doc.setField("price", price);
+        }
+        return doc;
+    }
+
+    private static List<Object> ids(List<SolrDocument> docs) {
+        return docs.stream()
+                .map(doc -> doc.getFirstValue("id"))
+                .collect(Collectors.toList());
+    }
+}
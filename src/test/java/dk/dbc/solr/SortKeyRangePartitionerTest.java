@@ -0,0 +1,58 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SortKeyRangePartitionerTest {
+    @Test
+    public void integralNumericBoundaries() {
+        assertThat(SortKeyRangePartitioner.getNumericBoundaries(1, 10, 3),
+                is(Arrays.asList("4", "7")));
+    }
+
+    @Test
+    public void fractionalNumericBoundaries() {
+        assertThat(SortKeyRangePartitioner.getNumericBoundaries(0.5, 2.5, 2),
+                is(Collections.singletonList("1.5")));
+    }
+
+    @Test
+    public void missingStringsFirstWhenAscending() {
+        assertThat(SortKeyRangePartitioner.createFilters("f", Arrays.asList("\"b\"", "\"d\""), -1, false,
+                SortKeyRangePartitioner.MissingValues.FIRST),
+                is(Arrays.asList("-f:[* TO *]", "f:[* TO \"b\"}", "f:[\"b\" TO \"d\"}", "f:[\"d\" TO *]")));
+    }
+
+    @Test
+    public void missingStringsLastWhenDescending() {
+        assertThat(SortKeyRangePartitioner.createFilters("f", Collections.singletonList("\"b\""), -1, true,
+                SortKeyRangePartitioner.MissingValues.LAST),
+                is(Arrays.asList("f:[\"b\" TO *]", "f:[* TO \"b\"}", "-f:[* TO *]")));
+    }
+
+    @Test
+    public void missingNumbersInRangeHoldingZero() {
+        final List<String> boundaries = SortKeyRangePartitioner.getNumericBoundaries(-10, 20, 3);
+        assertThat("boundaries", boundaries, is(Arrays.asList("0", "10")));
+        assertThat(SortKeyRangePartitioner.createFilters("f", boundaries, 1, false,
+                SortKeyRangePartitioner.MissingValues.AS_ZERO),
+                is(Arrays.asList("f:[* TO 0}", "f:[0 TO 10} OR (*:* -f:[* TO *])", "f:[10 TO *]")));
+    }
+
+    @Test
+    public void narrowIntegralRangeYieldsFewerBoundaries() {
+        assertThat(SortKeyRangePartitioner.getNumericBoundaries(1, 2, 4),
+                is(Collections.singletonList("2")));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.solr;
+
+import org.apache.solr.client.solrj.response.TermsResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TermDictionaryTest {
+    // spans several blocks, in code point order
+    private static final List<TermsResponse.Term> TERMS = Arrays.asList(
+            term("", 1), term("a", 5), term("ab", 2), term("abc", 7), term("abd", 1),
+            term("abda", 3), term("b", 9), term("ba", 4), term("bab", 4), term("babe", 2),
+            term("bb", 1), term("c", 1), term("ca", 6), term("caa", 1), term("cab", 8),
+            term("cac", 2), term("cad", 5), term("d", 3), term("da", 1), term("db", 2),
+            term("z", 1), term("zz", 4), term("\u00E6", 2), term("\u00E6bler", 3), term("\uD83D\uDE00", 1));
+
+    private final TermDictionary termDictionary = TermDictionary.build(TERMS.iterator());
+
+    @Test
+    public void getFrequency() {
+        assertThat("size", termDictionary.size(), is(TERMS.size()));
+        for (TermsResponse.Term term : TERMS) {
+            assertThat(term.getTerm(), termDictionary.getFrequency(term.getTerm()), is(term.getFrequency()));
+        }
+        assertThat("missing between", termDictionary.getFrequency("aa"), is(0L));
+        assertThat("missing after", termDictionary.getFrequency("\uFFFF"), is(0L));
+    }
+
+    @Test
+    public void prefix() {
+        assertThat("a", termsOf(termDictionary.prefix("a")), is(Arrays.asList("a", "ab", "abc", "abd", "abda")));
+        assertThat("ca", termsOf(termDictionary.prefix("ca")), is(Arrays.asList("ca", "caa", "cab", "cac", "cad")));
+        assertThat("\u00E6", termsOf(termDictionary.prefix("\u00E6")), is(Arrays.asList("\u00E6", "\u00E6bler")));
+        assertThat("no match", termsOf(termDictionary.prefix("e")), is(Collections.emptyList()));
+        assertThat("all", termsOf(termDictionary.prefix("")).size(), is(TERMS.size()));
+    }
+
+    @Test
+    public void range() {
+        assertThat("inclusive", termsOf(termDictionary.range("bab", true, "bb", true)),
+                is(Arrays.asList("bab", "babe", "bb")));
+        assertThat("exclusive", termsOf(termDictionary.range("bab", false, "bb", false)),
+                is(Arrays.asList("babe")));
+        assertThat("bounds not contained", termsOf(termDictionary.range("cz", true, "dc", true)),
+                is(Arrays.asList("d", "da", "db")));
+        assertThat("unbounded", termsOf(termDictionary.range("zz", true, null, false)),
+                is(Arrays.asList("zz", "\u00E6", "\u00E6bler", "\uD83D\uDE00")));
+        assertThat("empty", termsOf(termDictionary.range("d", true, "c", true)), is(Collections.emptyList()));
+        assertThat("frequencies", termDictionary.range(null, true, "a", true).next().getFrequency(), is(1L));
+    }
+
+    @Test
+    public void topK() {
+        assertThat("all", frequenciesOf(termDictionary.topK("", 3)),
+                is(Arrays.asList("b=9", "cab=8", "abc=7")));
+        assertThat("prefix", frequenciesOf(termDictionary.topK("ba", 10)),
+                is(Arrays.asList("ba=4", "bab=4", "babe=2")));
+        assertThat("ties in index order", frequenciesOf(termDictionary.topK("", 9)).subList(6, 9),
+                is(Arrays.asList("ba=4", "bab=4", "zz=4")));
+        assertThat("no match", termDictionary.topK("e", 3), is(Collections.emptyList()));
+    }
+
+    @Test
+    public void largeDictionary() {
+        final List<TermsResponse.Term> terms = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            terms.add(term(String.format("term%05d", i), i % 100));
+        }
+        final TermDictionary large = TermDictionary.build(terms.iterator());
+        assertThat("size", large.size(), is(10000));
+        assertThat("lookup", large.getFrequency("term04321"), is(21L));
+        assertThat("prefix", termsOf(large.prefix("term0999")).size(), is(10));
+        assertThat("range", termsOf(large.range("term01000", true, "term02000", false)).size(), is(1000));
+        assertThat("top", large.topK("term00", 1).get(0).getTerm(), is("term00099"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void termsOutOfOrder() {
+        TermDictionary.build(Arrays.asList(term("b", 1), term("a", 1)).iterator());
+    }
+
+    @Test
+    public void empty() {
+        final TermDictionary empty = TermDictionary.build(Collections.emptyIterator());
+        assertThat("size", empty.size(), is(0));
+        assertThat("frequency", empty.getFrequency("a"), is(0L));
+        assertThat("prefix", empty.prefix("a").hasNext(), is(false));
+        assertThat("top", empty.topK("", 1), is(Collections.emptyList()));
+    }
+
+    private static TermsResponse.Term term(String term, long frequency) {
+        return new TermsResponse.Term(term, frequency);
+    }
+
+    private static List<String> termsOf(Iterator<TermsResponse.Term> terms) {
+        final List<String> values = new ArrayList<>();
+        terms.forEachRemaining(term -> values.add(term.getTerm()));
+        return values;
+    }
+
+    private static List<String> frequenciesOf(List<TermsResponse.Term> terms) {
+        return terms.stream()
+                .map(term -> term.getTerm() + "=" + term.getFrequency())
+                .collect(Collectors.toList());
+    }
+}